@@ -202,6 +202,41 @@ public class CoffSection {
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
     }
 
+    /**
+     * Load consecutive pages from this segment into physical memory, using a
+     * single read of the executable.
+     *
+     * @param	spn	the page number within this segment of the first page.
+     * @param	ppns	the physical pages to load into, one per page.
+     * @param	count	the number of pages to load.
+     */
+    public void loadPages(int spn, int[] ppns, int count) {
+	Lib.assertTrue(file != null);
+
+	Lib.assertTrue(spn>=0 && count>0 && spn+count<=numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buf = new byte[count*pageSize];
+	int faddr = contentOffset + spn*pageSize;
+	int initlen;
+
+	if (!initialized)
+	    initlen = 0;
+	else
+	    initlen = Math.min(count*pageSize, size - spn*pageSize);
+
+	if (initlen > 0)
+	    Lib.strictReadFile(file, faddr, buf, 0, initlen);
+
+	for (int i=0; i<count; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+	    System.arraycopy(buf, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+	}
+    }
+
     /** The COFF object to which this section belongs. */
     protected Coff coff;
     /** The COFF name of this section. */
@@ -0,0 +1,268 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk, backed by a file on the host. The disk is an array of
+ * fixed-size sectors, numbered consecutively along each track from the outer
+ * track in.
+ *
+ * <p>
+ * Requests are asynchronous. <tt>readRequest()</tt> and <tt>writeRequest()</tt>
+ * start a transfer of one or more consecutive sectors, and the interrupt
+ * handler is called once the transfer is complete. Only one request may be
+ * outstanding at a time.
+ *
+ * <p>
+ * The time a request takes is modelled on a real disk. First the head seeks to
+ * the track holding the first sector. Any seek takes <tt>Stats.SeekTime</tt>
+ * to settle, plus up to another <tt>Stats.SeekTime</tt> in proportion to the
+ * number of tracks crossed. Then the head waits for the sector to rotate
+ * under it. The platter turns once every <tt>Stats.RotationTime</tt> ticks,
+ * whether or not the disk is busy. Finally, the sectors pass under the head
+ * at <tt>Stats.RotationTime / sectorsPerTrack</tt> ticks each. Moving on to
+ * the next track during a transfer costs nothing extra.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk, creating the backing file if it does not exist.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	file		the host file holding the disk's contents.
+     * @param	sectorSize	the number of bytes in a sector.
+     * @param	sectorsPerTrack	the number of sectors on each track.
+     * @param	numTracks	the number of tracks.
+     */
+    public Disk(Privilege privilege, final File file, int sectorSize,
+		int sectorsPerTrack, int numTracks) {
+	System.out.print(" disk");
+
+	Lib.assertTrue(sectorSize > 0 && sectorsPerTrack > 0 && numTracks > 0);
+
+	this.privilege = privilege;
+	this.sectorSize = sectorSize;
+	this.sectorsPerTrack = sectorsPerTrack;
+	this.numTracks = numTracks;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openBackingFile(file); }
+	    });
+
+	Lib.assertTrue(backingFile != null,
+		       "unable to open disk file " + file.getName());
+
+	requestDone = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+    }
+
+    private void openBackingFile(File file) {
+	try {
+	    backingFile = new RandomAccessFile(file, "rw");
+	    if (backingFile.length() < (long) getNumSectors() * sectorSize)
+		backingFile.setLength((long) getNumSectors() * sectorSize);
+	}
+	catch (IOException e) {
+	    backingFile = null;
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called every time a
+     * request completes, after which another request may be made.
+     *
+     * @param	handler	the callback to call when a request completes.
+     */
+    public void setInterruptHandler(Runnable handler) {
+	this.handler = handler;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Return the number of sectors on each track.
+     *
+     * @return	the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return sectorsPerTrack * numTracks;
+    }
+
+    /**
+     * Return the track holding a sector.
+     *
+     * @param	sector	the sector number.
+     * @return	the track number.
+     */
+    public int trackOf(int sector) {
+	return sector / sectorsPerTrack;
+    }
+
+    /**
+     * Return the track the head is over, or is seeking to.
+     *
+     * @return	the head's track.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    /**
+     * Test whether a request is outstanding.
+     *
+     * @return	<tt>true</tt> if the disk is busy.
+     */
+    public boolean isBusy() {
+	return busy;
+    }
+
+    /**
+     * Start reading consecutive sectors into a buffer. The buffer is filled
+     * when the interrupt handler is called.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to fill.
+     * @param	offset	the index in <i>data</i> of the first byte to fill.
+     */
+    public void readRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(false, sector, count, data, offset);
+    }
+
+    /**
+     * Start writing consecutive sectors from a buffer. The buffer must not be
+     * changed until the interrupt handler is called.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer holding the data.
+     * @param	offset	the index in <i>data</i> of the first byte to write.
+     */
+    public void writeRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(true, sector, count, data, offset);
+    }
+
+    private void startRequest(boolean writing, int sector, int count,
+			      byte[] data, int offset) {
+	Lib.assertTrue(!busy, "disk request while busy");
+	Lib.assertTrue(count > 0 && sector >= 0 &&
+		       sector + count <= getNumSectors());
+	Lib.assertTrue(offset >= 0 && offset + count*sectorSize <= data.length);
+
+	busy = true;
+	requestWriting = writing;
+	requestSector = sector;
+	requestCount = count;
+	requestData = data;
+	requestOffset = offset;
+
+	long now = privilege.stats.totalTicks;
+	int track = trackOf(sector);
+	int distance = Math.abs(track - headTrack);
+
+	long seek = 0;
+	if (distance > 0)
+	    seek = Stats.SeekTime + (long) Stats.SeekTime * distance / numTracks;
+
+	// wait for the first sector to come around, counting from the time the
+	// seek ends
+	long angle = (now + seek) % Stats.RotationTime;
+	long start = sectorStart(sector % sectorsPerTrack);
+	long latency = (start - angle + Stats.RotationTime) % Stats.RotationTime;
+
+	long transfer = sectorStart(count);
+
+	headTrack = trackOf(sector + count - 1);
+
+	Lib.debug(dbgDisk, (writing ? "write" : "read") + " sector " + sector
+		  + " x" + count + ": seek " + seek + ", rotate " + latency
+		  + ", transfer " + transfer);
+
+	privilege.interrupt.schedule(Math.max(1, seek + latency + transfer),
+				     "disk", requestDone);
+    }
+
+    /**
+     * Return the number of ticks from the start of a rotation until a sector
+     * position comes under the head.
+     */
+    private long sectorStart(int position) {
+	return (long) position * Stats.RotationTime / sectorsPerTrack;
+    }
+
+    private void requestDone() {
+	Lib.assertTrue(busy);
+
+	long pos = (long) requestSector * sectorSize;
+	int length = requestCount * sectorSize;
+
+	try {
+	    backingFile.seek(pos);
+	    if (requestWriting)
+		backingFile.write(requestData, requestOffset, length);
+	    else
+		backingFile.readFully(requestData, requestOffset, length);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk I/O failed");
+	}
+
+	if (requestWriting)
+	    privilege.stats.numDiskWrites++;
+	else
+	    privilege.stats.numDiskReads++;
+
+	busy = false;
+	requestData = null;
+
+	if (handler != null)
+	    handler.run();
+    }
+
+    private Privilege privilege;
+    private RandomAccessFile backingFile = null;
+    private Runnable requestDone;
+    private Runnable handler = null;
+
+    private int sectorSize, sectorsPerTrack, numTracks;
+    private int headTrack = 0;
+
+    private boolean busy = false;
+    private boolean requestWriting;
+    private int requestSector, requestCount, requestOffset;
+    private byte[] requestData;
+
+    private static final char dbgDisk = 'd';
+}
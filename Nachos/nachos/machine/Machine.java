@@ -185,6 +185,14 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege,
+			    new File(testDirectory,
+				     Config.getString("Disk.file", "DISK")),
+			    Config.getInteger("Disk.sectorSize", 512),
+			    Config.getInteger("Disk.sectorsPerTrack", 25),
+			    Config.getInteger("Disk.numTracks", 160));
+
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
     }
@@ -336,6 +344,22 @@ public final class Machine {
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
+
+    /**
+     * Return the hardware disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+
+    /**
+     * Return the statistics that are printed when Nachos halts. The kernel
+     * keeps the counters that no hardware device maintains, such as those of
+     * the buffer cache, up to date itself.
+     *
+     * @return	the statistics.
+     */
+    public static Stats stats() { return stats; }
     
     /**
      * Return the network link.
@@ -357,6 +381,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -175,6 +175,43 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	this.pageDirectory = null;
+    }
+
+    /**
+     * Get the current page directory, set by the last call to
+     * setPageDirectory().
+     *
+     * @return	the current page directory, or <tt>null</tt> if a flat page
+     *		table is in use.
+     */
+    public TranslationEntry[][] getPageDirectory() {
+	Lib.assertTrue(!usingTLB);
+
+	return pageDirectory;
+    }
+
+    /**
+     * Set the page directory pointer, switching to two-level translation.
+     * The entry for virtual page <i>vpn</i> is found at
+     *
+     * <p><blockquote>
+     * <tt>pageDirectory[vpn / pageTableSize][vpn % pageTableSize]</tt>
+     * </blockquote>
+     *
+     * <p>
+     * A missing second-level table or entry causes a page fault, just like an
+     * invalid entry, so a sparse address space only needs second-level tables
+     * for the regions it uses. The size of the current address space will be
+     * determined from the length of the page directory array.
+     *
+     * @param	pageDirectory	the page directory to use.
+     */
+    public void setPageDirectory(TranslationEntry[][] pageDirectory) {
+	Lib.assertTrue(!usingTLB);
+
+	this.pageDirectory = pageDirectory;
+	this.translations = null;
     }
 
     /**
@@ -310,8 +347,23 @@ public final class Processor {
 
 	TranslationEntry entry = null;
 
+	// with a page directory, the vpn is split into two indices
+	if (pageDirectory != null) {
+	    int dir = vpn / pageTableSize;
+	    TranslationEntry[] table =
+		(dir < pageDirectory.length) ? pageDirectory[dir] : null;
+
+	    if (table != null)
+		entry = table[vpn % pageTableSize];
+
+	    if (entry == null || !entry.valid) {
+		privilege.stats.numPageFaults++;
+		Lib.debug(dbgProcessor, "\t\tpage fault");
+		throw new MipsException(exceptionPageFault, vaddr);
+	    }
+	}
 	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
+	else if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
@@ -546,6 +598,11 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The two-level page table, if one is in use instead of a flat one. */
+    private TranslationEntry[][] pageDirectory = null;
+
+    /** Number of entries in each second-level page table. */
+    public static final int pageTableSize = 64;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -29,6 +29,9 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numCacheHits + numCacheMisses > 0)
+	    System.out.println("Buffer cache: hits " + numCacheHits
+			       + ", misses " + numCacheMisses);
     }
 
     /**
@@ -61,6 +64,16 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of file block accesses that the kernel's buffer cache
+     * found cached.
+     */
+    public int numCacheHits = 0;
+    /**
+     * The total number of file block accesses that the kernel's buffer cache
+     * had to read or allocate.
+     */
+    public int numCacheMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
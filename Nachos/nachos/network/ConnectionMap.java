@@ -9,8 +9,8 @@ import java.util.LinkedList;
 /**
  * Map of <ConnectionState, Connections> where ConnectionState represents constant 
  * variables in Connection (CLOSED, SYN_SENT, etc...) and Connections represent a list of 
- * Connections (currently using LinkedList). Unfortunately, this does not guarantee 
- * synchronization as there are unknown sync bugs to fix.
+ * Connections (currently using LinkedList). The map is guarded by a ReadWriteLock, so 
+ * lookups may run concurrently while any change to the map is exclusive.
  * 
  * Each Connection is unique throughout the map, so no multiple same Connection would exist 
  * in the map.
@@ -21,6 +21,7 @@ public class ConnectionMap {
 	 */
 	public ConnectionMap() {
 		map = new HashMap<Integer, LinkedList<Connection>>();
+		lock = new ReadWriteLock(true);
 	}
 	
 	/**
@@ -31,6 +32,8 @@ public class ConnectionMap {
 	public void add(Connection c) {
 		Lib.assertTrue(c != null && c.validState());
 		
+		lock.acquireWrite();
+		
 		// Get the connection state
 		Integer connectionState = c.state;
 		
@@ -52,6 +55,7 @@ public class ConnectionMap {
 				if(con.equals(c)) {
 					// Insert the list back to the map
 					map.put(connectionState, connections);
+					lock.releaseWrite();
 					return;
 				}
 			}
@@ -62,6 +66,8 @@ public class ConnectionMap {
 		
 		// Insert the list back to the map
 		map.put(connectionState, connections);
+		
+		lock.releaseWrite();
 	}
 	
 	/**
@@ -73,8 +79,11 @@ public class ConnectionMap {
     public Connection close(Connection c) {
     	Lib.assertTrue(c != null && c.state == Connection.CLOSING);
     	
+    	lock.acquireWrite();
+    	
     	// Return null if there are no CLOSING connections
     	if(!map.containsKey(Connection.CLOSING)) {
+    		lock.releaseWrite();
     		return null;
     	}
     	
@@ -90,12 +99,14 @@ public class ConnectionMap {
 				
 				// Insert (back) into the map
 				map.put(connectionState, connections);
+				lock.releaseWrite();
 				return c;
 			}
 		}
 		
     	// Connection doesn't exist. Reinsert (back) into the map and return null
 		map.put(connectionState, connections);
+		lock.releaseWrite();
 
 		return null;
     }
@@ -110,6 +121,8 @@ public class ConnectionMap {
     public boolean switchConnection(int newState, Connection c) {
     	Lib.assertTrue(c != null && c.validState() && Connection.validState(newState));
     	
+    	lock.acquireWrite();
+    	
     	// Get the original connection state
     	Integer originalConnState = c.state;
     	
@@ -154,6 +167,7 @@ public class ConnectionMap {
 				
 				// Insert the new list back into the map
 				map.put(newConnState, newConns);
+				lock.releaseWrite();
 				return true;
 			}
 		}
@@ -162,6 +176,7 @@ public class ConnectionMap {
     	// and new list back to where they belong
 		map.put(originalConnState, originalConns);
 		map.put(newConnState, newConns);
+		lock.releaseWrite();
     	return false;
     }
     
@@ -173,13 +188,19 @@ public class ConnectionMap {
      * @return	state of the connection (CLOSED or -1 if not found)
      */
     public int getConnectionState(int dstLink, int dstPort, int srcLink, int srcPort) {
+    	lock.acquireRead();
+    	
     	// Search through all connection states
     	for(Integer connectionState : map.keySet())
     		// Search through all Connections in the list
     		for(Connection c : map.get(connectionState))
     			// Return the connection state if the connection is found
-    			if(c.srcLink == srcLink && c.srcPort == srcPort && c.dstLink == dstLink && c.dstPort == dstPort)
+    			if(c.srcLink == srcLink && c.srcPort == srcPort && c.dstLink == dstLink && c.dstPort == dstPort) {
+    				lock.releaseRead();
     				return connectionState;
+    			}
+    	
+    	lock.releaseRead();
     	
     	// Connection doesn't exist. Conclude as closed
     	return Connection.CLOSED;
@@ -193,6 +214,9 @@ public class ConnectionMap {
      * @return	corresponding connection (null if not found)
      */
     public Connection findWaitingConnection(int srcLink, int srcPort) {
+    	// The connection found is removed, so this is a change to the map
+    	lock.acquireWrite();
+    	
 		// Check if there are any SYN_RCVD (or waiting) Connections
     	if(map.get(Connection.SYN_RCVD) != null && !map.get(Connection.SYN_RCVD).isEmpty()) {
     		// Find a connection that matches srcLink and srcPort
@@ -204,14 +228,18 @@ public class ConnectionMap {
 					
 					// Reinsert the list to the map
 					map.put(Connection.SYN_RCVD, connections);
+					lock.releaseWrite();
 					return c;
 				}
 			}
     	}
     	
+    	lock.releaseWrite();
+    	
     	// Connection doesn't exist. Return null
 		return null;
 	}
 	
 	private HashMap<Integer, LinkedList<Connection>> map;
+	private ReadWriteLock lock;
 }
\ No newline at end of file
@@ -32,56 +32,24 @@ public class NetCommandCenter extends PostOffice {
 			public void run() { resendAll(); }
 		});
 		
-		
-		// PostOffice variables (Reinitializing variables)
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
-
-		Runnable receiveHandler = new Runnable() {
-			public void run() { receiveInterrupt(); }
-		};
-		Runnable sendHandler = new Runnable() {
-			public void run() { sendInterrupt(); }
-		};
-		Machine.networkLink().setInterruptHandlers(receiveHandler,
-				sendHandler);
-
-		KThread pd = new KThread(new Runnable() {
-			public void run() { postalDelivery(); }
-		});
-		
-		// This automates postalDelivery(), which handles MailMessage receiving
-		// procedures, and resendAll(), which handles resending unACKed MailMessages
+		// PostOffice's constructor has already registered the interrupt handlers,
+		// which defer each arrived MailMessage to deliver(). resendAll() handles
+		// resending unACKed MailMessages
 		ra.fork();
-		pd.fork();
 		Lib.debug(dbgNet, "Constructor finished");
 	}
 
 	/**
-	 * Modified version of PostOffice's postalDelivery(). Instead of inserting 
-	 * arrived message at the SynchList, it calls a helper method, handlePacket(),
+	 * Modified version of PostOffice's deliver(). Instead of inserting 
+	 * arrived message at the mailbox, it calls a helper method, handleMessage(),
 	 * to insert it into the correct data structure.
 	 */
-	protected void postalDelivery() {
-		while(true) {
-			// Wait until a Packet arrives at NetworkLink
-			messageReceived.P();
-
-			// A Packet is received. Checking whether the arrival was successful.
-			Packet p = Machine.networkLink().receive();
-			try {
-				MailMessage mail = new MailMessage(p);
-				Lib.debug(dbgNet, "receiving mail: " + mail);
+	protected boolean deliver(MailMessage mail) {
+		Lib.debug(dbgNet, "receiving mail: " + mail);
 
-				// The arrival was successful. Calling the helper method to handle MailMessage
-				handleMessage(mail);
-			}
-			catch (MalformedPacketException e) {
-				Lib.assertNotReached("Packet is null at postalDelivery()");
-				// continue;
-			}
-		}
+		// The arrival was successful. Calling the helper method to handle MailMessage
+		handleMessage(mail);
+		return true;
 	}
 
 	/**
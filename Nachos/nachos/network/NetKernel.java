@@ -35,6 +35,7 @@ public class NetKernel extends UserKernel {
 	 */
 	public void selfTest() {
 		super.selfTest();
+//		PostOffice.selfTest();
 		
 		// stalling to prepare other machines to run
 		System.out.println("Press any key to start the network test...");
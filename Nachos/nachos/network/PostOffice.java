@@ -3,6 +3,9 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.List;
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -10,10 +13,18 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler takes each packet off the network link as soon
+ * as it arrives, and schedules the kernel's deferred work queue to place the
+ * messages in the appropriate queues. This cannot be done in the receive
+ * interrupt handler itself because each queue (implemented with a
+ * <tt>BoundedQueue</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>mailboxSize</tt> messages. Mail for a full
+ * mailbox waits at the head of the line until a message is received from
+ * that port, and the post office stops taking packets off the network link
+ * in the meantime, so that a slow receiver holds back its senders instead of
+ * losing their mail.
  */
 /**
  * @author Yun
@@ -21,18 +32,20 @@ import nachos.threads.*;
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using an array of <tt>BoundedQueue</tt>s.
+     * Register the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
+	arrived = new LinkedList<Packet>();
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	@SuppressWarnings("unchecked")
+	BoundedQueue<MailMessage>[] mailboxes =
+	    (BoundedQueue<MailMessage>[]) new BoundedQueue<?>[MailMessage.portLimit];
+	queues = mailboxes;
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedQueue<MailMessage>(mailboxSize);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -43,11 +56,9 @@ public class PostOffice {
 	Machine.networkLink().setInterruptHandlers(receiveHandler,
 						   sendHandler);
 
-	KThread t = new KThread(new Runnable() {
+	postalDelivery = new Runnable() {
 		public void run() { postalDelivery(); }
-	    });
-
-	t.fork();
+	    };
     }
 
     /**
@@ -62,7 +73,8 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues[port].removeFirst();
+	madeRoom(port);
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -71,13 +83,72 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Retrieve up to <i>max</i> messages on the specified port, waiting until
+     * at least one has arrived. Any other messages already waiting are
+     * returned with it.
+     *
+     * @param	port	the port on which to wait for messages.
+     * @param	mail	the list to which to append the messages received.
+     * @param	max	the maximum number of messages to retrieve. Must be
+     *			positive.
+     *
+     * @return	the number of messages appended to <i>mail</i>.
+     */
+    public int receive(int port, List<MailMessage> mail, int max) {
+	Lib.assertTrue(port >= 0 && port < queues.length && max > 0);
+
+	mail.add(receive(port));
+
+	int amount = queues[port].drainTo(mail, max-1);
+	madeRoom(port);
+
+	return 1 + amount;
+    }
+
+    /**
+     * Retrieve a message on the specified port if one has arrived. Never
+     * waits.
+     *
+     * @param	port	the port to check for a message.
+     *
+     * @return	the message received, or <tt>null</tt> if none is waiting.
+     */
+    public MailMessage poll(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	MailMessage mail = queues[port].poll();
+	if (mail != null)
+	    madeRoom(port);
+
+	return mail;
+    }
+
+    /**
+     * Resume delivery if it was waiting for room in the specified mailbox.
+     */
+    private void madeRoom(int port) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (stalledPort == port)
+	    ThreadedKernel.workQueue.schedule(postalDelivery);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Deliver every packet that has arrived since the last call. Run from the
+     * deferred work queue, with interrupts enabled. The work queue never runs
+     * this on two threads at once, so packets are delivered in the order they
+     * arrived.
      */
     protected void postalDelivery() {
 	while (true) {
-	    messageReceived.P();
+	    boolean intStatus = Machine.interrupt().disable();
+	    Packet p = arrived.isEmpty() ? null : arrived.getFirst();
+	    Machine.interrupt().restore(intStatus);
 
-	    Packet p = Machine.networkLink().receive();
+	    if (p == null)
+		return;
 
 	    MailMessage mail;
 
@@ -85,24 +156,79 @@ public class PostOffice {
 		mail = new MailMessage(p);
 	    }
 	    catch (MalformedPacketException e) {
+		mail = null;
+	    }
+
+	    boolean delivered = (mail == null || deliver(mail));
+
+	    intStatus = Machine.interrupt().disable();
+
+	    if (!delivered) {
+		// unless a receiver has made room since, wait for one to
+		BoundedQueue<MailMessage> mailbox = queues[mail.dstPort];
+		boolean full = (mailbox.size() == mailbox.capacity());
+		if (full) {
+		    Lib.debug(dbgNet, "mailbox " + mail.dstPort
+			      + " full, holding delivery");
+		    stalledPort = mail.dstPort;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		if (full)
+		    return;
 		continue;
 	    }
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	    arrived.removeFirst();
+	    stalledPort = -1;
+
+	    // the link has kept any packet that came in while delivery waited
+	    if (linkHeld) {
+		linkHeld = false;
+		takePacket();
+	    }
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    Machine.interrupt().restore(intStatus);
 	}
     }
 
+    /**
+     * Put an incoming message in the correct mailbox, if it has room.
+     *
+     * @param	mail	the message that arrived.
+     * @return	<tt>true</tt> if the message was delivered, or <tt>false</tt>
+     *		if it must wait for room in its mailbox.
+     */
+    protected boolean deliver(MailMessage mail) {
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
+
+	// atomically add message to the mailbox and wake a waiting thread
+	return queues[mail.dstPort].offer(mail);
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
-     * link.
+     * link. Dequeues it right away, so the link can receive the next packet,
+     * and defers its delivery. While delivery waits for room in a mailbox,
+     * the packet is left on the link, which receives nothing more until it is
+     * taken.
      */
     protected void receiveInterrupt() {
-	messageReceived.V();
+	if (stalledPort != -1)
+	    linkHeld = true;
+	else
+	    takePacket();
+    }
+
+    private void takePacket() {
+	Packet p = Machine.networkLink().receive();
+
+	if (p != null) {
+	    arrived.add(p);
+	    ThreadedKernel.workQueue.schedule(postalDelivery);
+	}
     }
 
     /**
@@ -129,10 +255,46 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    protected SynchList[] queues;
-    protected Semaphore messageReceived;	// V'd when a message can be dequeued
+    /**
+     * Test that mail sent to a mailbox faster than it is read waits for room
+     * instead of being dropped, and arrives in order. The test post office
+     * sends to itself, and takes over the network link's interrupt handlers.
+     * Assumes the network is reliable.
+     */
+    public static void selfTest() {
+	PostOffice postOffice = new PostOffice();
+	int local = Machine.networkLink().getLinkAddress();
+	int count = 2*mailboxSize + 2;
+
+	try {
+	    for (int i=0; i<count; i++)
+		postOffice.send(new MailMessage(local, 1, local, 0,
+						new byte[] { (byte) i }));
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	}
+
+	// the mailbox fills, and the next packet is left on the link
+	while (postOffice.stalledPort != 1 || !postOffice.linkHeld)
+	    ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(postOffice.queues[1].size() == mailboxSize);
+
+	for (int i=0; i<count; i++)
+	    Lib.assertTrue(postOffice.receive(1).contents[0] == (byte) i);
+	Lib.assertTrue(postOffice.poll(1) == null && postOffice.stalledPort == -1);
+    }
+
+    protected BoundedQueue<MailMessage>[] queues;
+    protected LinkedList<Packet> arrived;	// packets awaiting delivery
+    protected Runnable postalDelivery;	// deferred work that delivers them
+    protected int stalledPort = -1;	// full mailbox delivery waits for, or -1
+    protected boolean linkHeld = false;	// a packet was left on the link
     protected Semaphore messageSent;	// V'd when a message can be queued
     protected Lock sendLock;
 
+    /** The maximum number of messages waiting in each mailbox. */
+    protected static final int mailboxSize = 16;
+
     protected static final char dbgNet = 'n';
 }
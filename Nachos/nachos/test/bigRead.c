@@ -0,0 +1,38 @@
+/* bigRead.c
+ *
+ * Tests reads and writes whose count is far larger than the file. The kernel
+ * must only copy as much as the file holds, without allocating a buffer for
+ * the whole count.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 8192
+#define BIGCOUNT 10000000
+
+char buf[BUFSIZE];
+
+int main(int argc, char** argv)
+{
+  int fd, amount;
+  char *name = (argc > 1) ? argv[1] : "sort.c";
+
+  fd = open(name);
+  if (fd == -1) {
+    printf("Unable to open %s\n", name);
+    return 1;
+  }
+
+  /* the file must fit in buf, or the read would run past its end */
+  amount = read(fd, buf, BIGCOUNT);
+  assert(amount > 0 && amount < BUFSIZE);
+  assert(read(fd, buf, BIGCOUNT) == 0);
+  close(fd);
+
+  assert(write(fdStandardOutput, buf, amount) == amount);
+
+  printf("bigRead passed\n");
+  return 0;
+}
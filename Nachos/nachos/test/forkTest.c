@@ -0,0 +1,55 @@
+/* forkTest.c
+ *
+ * Tests fork(). The child gets a copy-on-write copy of its parent's memory,
+ * so neither sees the other's writes, and shares the position of every open
+ * file with its parent.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BUFSIZE 4096
+
+char buf[BUFSIZE];
+
+int main(int argc, char** argv)
+{
+  int fd, pid, status, i;
+
+  for (i=0; i<BUFSIZE; i++)
+    buf[i] = 'A';
+
+  creat("forkTest.out");
+  fd = open("forkTest.out");
+  assert(fd != -1);
+
+  pid = fork();
+  assert(pid != -1);
+
+  if (pid == 0) {
+    /* the child's writes go to its own copy of each page */
+    for (i=0; i<BUFSIZE; i++)
+      assert(buf[i] == 'A');
+    buf[0] = 'C';
+    buf[BUFSIZE-1] = 'C';
+
+    write(fd, "ab", 2);
+    exit(0);
+  }
+
+  assert(join(pid, &status) == 1 && status == 0);
+  assert(buf[0] == 'A' && buf[BUFSIZE-1] == 'A');
+
+  /* the child moved the shared position past its own write */
+  write(fd, "cd", 2);
+  close(fd);
+
+  fd = open("forkTest.out");
+  assert(read(fd, buf, BUFSIZE) == 4 && strncmp(buf, "abcd", 4) == 0);
+  close(fd);
+  unlink("forkTest.out");
+
+  printf("forkTest passed\n");
+  return 0;
+}
@@ -0,0 +1,66 @@
+/* growTest.c
+ *
+ * Tests the growth of the stack and the heap. The stack grows into new
+ * pages as it is used, the heap grows and shrinks with sbrk(), and neither
+ * may grow over a mapped file.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE 1024
+#define DEPTH 20
+
+/* uses about a page of stack at each level */
+int recurse(int depth)
+{
+  volatile char frame[PAGESIZE];
+
+  frame[0] = depth;
+  frame[PAGESIZE-1] = depth;
+  if (depth > 0 && !recurse(depth - 1))
+    return 0;
+
+  return frame[0] == depth && frame[PAGESIZE-1] == depth;
+}
+
+int main(int argc, char** argv)
+{
+  char *heap, *end;
+  int fd;
+
+  assert(recurse(DEPTH));
+
+  heap = sbrk(3000);
+  assert(heap != (char *) -1);
+  heap[0] = 'H';
+  heap[2999] = 'H';
+  assert(heap[0] == 'H' && heap[2999] == 'H');
+  assert((char *) sbrk(0) == heap + 3000);
+
+  /* memory given back to the heap comes back zeroed */
+  sbrk(-3000);
+  assert(sbrk(2048) == heap && heap[0] == 0);
+  assert(sbrk(0x7FFFFFFF) == (void *) -1);
+  sbrk(-2048);
+
+  /* map a file just past the next 4 pages of the heap */
+  creat("growTest.out");
+  fd = open("growTest.out");
+  write(fd, "growTest", 8);
+  end = (char *) (divRoundUp((int) sbrk(0), PAGESIZE)*PAGESIZE);
+  assert(mmap(fd, end + 4*PAGESIZE) == 8);
+
+  /* the heap may grow up to the mapping, but not over it */
+  assert(sbrk(8*PAGESIZE) == (void *) -1);
+  assert(sbrk(end + 4*PAGESIZE - heap) == heap);
+  assert(sbrk(1) == (void *) -1);
+  assert((end + 4*PAGESIZE)[0] == 'g');
+
+  close(fd);
+  unlink("growTest.out");
+
+  printf("growTest passed\n");
+  return 0;
+}
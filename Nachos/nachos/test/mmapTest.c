@@ -0,0 +1,64 @@
+/* mmapTest.c
+ *
+ * Tests mmap(). Changes to a mapped file are written back when its file
+ * descriptor is closed, and a forked child shares its parent's mappings.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE 1024
+#define FILESIZE (2*PAGESIZE + 2)
+
+char buf[FILESIZE];
+
+/* a page-aligned address well past the end of the heap */
+char *mapAddress()
+{
+  int end = (int) sbrk(0);
+
+  return (char *) (divRoundUp(end, PAGESIZE)*PAGESIZE + 16*PAGESIZE);
+}
+
+int main(int argc, char** argv)
+{
+  int fd, pid, status;
+  char *map = mapAddress();
+
+  memset(buf, 'a', FILESIZE);
+  creat("mmapTest.out");
+  fd = open("mmapTest.out");
+  assert(write(fd, buf, FILESIZE) == FILESIZE);
+
+  assert(mmap(fd, map) == FILESIZE);
+  assert(map[0] == 'a' && map[FILESIZE-1] == 'a');
+
+  /* a mapped file cannot be read or written through its descriptor */
+  assert(read(fd, buf, 1) == -1);
+
+  map[0] = 'Z';
+  map[FILESIZE-1] = 'Q';
+
+  pid = fork();
+  assert(pid != -1);
+  if (pid == 0) {
+    assert(map[0] == 'Z');
+    map[1] = 'C';
+    exit(0);
+  }
+
+  assert(join(pid, &status) == 1 && status == 0);
+  assert(map[1] == 'C');
+  close(fd);
+
+  fd = open("mmapTest.out");
+  assert(read(fd, buf, FILESIZE) == FILESIZE);
+  assert(buf[0] == 'Z' && buf[1] == 'C' && buf[2] == 'a' &&
+	 buf[FILESIZE-1] == 'Q');
+  close(fd);
+  unlink("mmapTest.out");
+
+  printf("mmapTest passed\n");
+  return 0;
+}
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallSbrk		14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +111,23 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, and starts running at the return from fork(),
+ * with a copy of the parent's address space. The pages of that copy are
+ * shared with the parent until one of them writes to a page, so fork() is
+ * cheap even for a large process.
+ *
+ * The child inherits every open file descriptor. A descriptor that refers to
+ * a disk file shares its file position with the parent's descriptor, so a
+ * read or write by either process moves the position for both.
+ *
+ * fork() returns the child's process ID to the parent, which can pass it to
+ * join(), and returns 0 to the child. On error, returns -1 and no child is
+ * created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -228,6 +247,17 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Move the end of the heap, the data area that starts just past the end of
+ * the executable, by increment bytes. A positive increment adds zero-filled
+ * memory to the heap; a negative increment releases memory from its end.
+ * Memory is only allocated when it is first touched.
+ *
+ * Returns the previous end of the heap on success, or (void *) -1 if the heap
+ * would grow past its limit or shrink below its start.
+ */
+void *sbrk(int increment);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -131,10 +131,12 @@ public class Alarm {
 		 * 
 		 * @return negative if this.wakeTime < p.wakeTime
 		 * 		   positive if this.wakeTime > p.wakeTime
-		 * 		   zero if this.wakeTime == p.wakeTime
+		 * 		   otherwise, the order of the threads, so that threads
+		 * 		   waking at the same time are all kept in the set
 		 */
 		public int compareTo(Pair p) {
-			return Long.valueOf(this.wakeTime).compareTo(Long.valueOf(p.wakeTime));
+			int order = Long.valueOf(this.wakeTime).compareTo(Long.valueOf(p.wakeTime));
+			return (order != 0) ? order : this.thread.compareTo(p.thread);
 		}
 	}
 }
@@ -0,0 +1,116 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>barrier</i> makes a fixed number of threads wait for each other. Each
+ * thread calls <tt>await()</tt>, and no thread returns until all of them
+ * have arrived. The barrier then resets itself, so the same threads can use
+ * it again for their next phase.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them proceed. Must be positive.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+	lock = new Lock();
+	tripped = new Condition2(lock);
+    }
+
+    /**
+     * Wait until all parties have called <tt>await()</tt> on this barrier.
+     *
+     * @return	the order in which the current thread arrived, from 0 for the
+     *		first thread to <tt>parties - 1</tt> for the thread that
+     *		released the others.
+     */
+    public int await() {
+	lock.acquire();
+
+	long myGeneration = generation;
+	int index = arrived++;
+
+	if (arrived == parties) {
+	    arrived = 0;
+	    generation++;
+	    tripped.wakeAll();
+	}
+	else {
+	    while (generation == myGeneration)
+		tripped.sleep();
+	}
+
+	lock.release();
+	return index;
+    }
+
+    /**
+     * Return the number of threads that must still arrive before the barrier
+     * opens.
+     *
+     * @return	the number of threads not yet waiting.
+     */
+    public int getRemaining() {
+	return parties - arrived;
+    }
+
+    private static class BarrierTest implements Runnable {
+	BarrierTest(Barrier barrier, int[] phase, int which) {
+	    this.barrier = barrier;
+	    this.phase = phase;
+	    this.which = which;
+	}
+
+	public void run() {
+	    for (int i=0; i<3; i++) {
+		phase[which] = i;
+		for (int j=0; j<which; j++)
+		    KThread.yield();
+
+		barrier.await();
+
+		// everyone reached phase i before anyone left it
+		for (int j=0; j<phase.length; j++)
+		    Lib.assertTrue(phase[j] >= i);
+	    }
+	}
+
+	private Barrier barrier;
+	private int[] phase;
+	private int which;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Barrier barrier = new Barrier(4);
+	int[] phase = new int[4];
+
+	KThread[] threads = new KThread[3];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new BarrierTest(barrier, phase, i+1));
+	    threads[i].setName("barrier" + (i+1)).fork();
+	}
+
+	new BarrierTest(barrier, phase, 0).run();
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(barrier.getRemaining() == 4);
+    }
+
+    private int parties;
+    private int arrived = 0;
+    private long generation = 0;
+
+    private Lock lock;
+    private Condition2 tripped;
+}
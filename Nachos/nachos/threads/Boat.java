@@ -29,7 +29,7 @@ public class Boat
 	static int boat_capacity = 0; // boat is empty (max capacity = 2 children or 1 adult)
 	static boolean allow_adult = false; // adults may not use boat unless a child flags them to
 
-	static Alarm block_sync; // used to attempt block synchronization after spawning threads
+	static CountDownLatch spawned; // opens once every forked thread has arrived at Oahu
 
 	static Condition spawning;
 	static Condition finishing;
@@ -43,7 +43,7 @@ public class Boat
 		// Instantiate global variables here
 		Oahu_pop = new Lock();
 		boat_permit = new Lock();
-		block_sync = new Alarm();
+		spawned = new CountDownLatch(adults + children);
 		spawning = new Condition(Oahu_pop);
 		finishing = new Condition(boat_permit);
 		
@@ -87,10 +87,10 @@ public class Boat
 
 		Oahu_pop.acquire();
 		num_adults_at_Oahu++; // atomically increment the population of adults at Oahu
+		spawned.countDown();
 		spawning.sleep();
 		Oahu_pop.release();
 
-		block_sync.waitUntil(100); // block synchronization
 		KThread.yield(); // let children go first
 
 		while (!finished) // loop to finish
@@ -131,7 +131,8 @@ public class Boat
 		num_children_at_Oahu++; // atomically increment number of children at Oahu
 		Oahu_pop.release();
 
-		block_sync.waitUntil(100); // block synchronization so threads finish spawning
+		spawned.countDown();
+		spawned.await(); // wait until every thread has been counted at Oahu
 
 		while (!finished) // loop to finish
 		{
@@ -0,0 +1,216 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.List;
+import java.util.LinkedList;
+
+/**
+ * A synchronized FIFO queue with a fixed capacity, stored in a ring buffer.
+ *
+ * <p>
+ * <tt>add()</tt> waits while the queue is full, so a producer cannot run
+ * arbitrarily far ahead of its consumers; <tt>offer()</tt> returns
+ * immediately instead. Consumers may take one element at a time, or use
+ * <tt>drainTo()</tt> to take everything that has accumulated with a single
+ * lock acquisition.
+ */
+public class BoundedQueue<T> {
+    /**
+     * Allocate a new bounded queue.
+     *
+     * @param	capacity	the maximum number of elements the queue can
+     *				hold. Must be positive.
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedQueue(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = (T[]) new Object[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+    }
+
+    /**
+     * Add the specified element to the end of the queue, waiting until there
+     * is room for it if the queue is full.
+     *
+     * @param	o	the element to add. Must not be <tt>null</tt>.
+     */
+    public void add(T o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	enqueue(o);
+
+	lock.release();
+    }
+
+    /**
+     * Add the specified element to the end of the queue if there is room for
+     * it. Never waits.
+     *
+     * @param	o	the element to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the element was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(T o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+
+	boolean added = (count < buffer.length);
+	if (added)
+	    enqueue(o);
+
+	lock.release();
+	return added;
+    }
+
+    /**
+     * Remove an element from the front of the queue, waiting until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public T removeFirst() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	T o = dequeue();
+
+	lock.release();
+	return o;
+    }
+
+    /**
+     * Remove an element from the front of the queue if there is one. Never
+     * waits.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public T poll() {
+	lock.acquire();
+
+	T o = (count > 0) ? dequeue() : null;
+
+	lock.release();
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> elements from the front of the queue and append
+     * them to the specified list, in order. Never waits.
+     *
+     * @param	list	the list to which to append the elements removed.
+     * @param	max	the maximum number of elements to remove.
+     * @return	the number of elements removed.
+     */
+    public int drainTo(List<? super T> list, int max) {
+	lock.acquire();
+
+	int amount = Math.min(max, count);
+	for (int i=0; i<amount; i++)
+	    list.add(dequeue());
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Return the number of elements currently in the queue. As with any
+     * unsynchronized read, the value may be stale by the time it is used.
+     *
+     * @return	the number of queued elements.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Return the maximum number of elements the queue can hold.
+     *
+     * @return	the capacity of this queue.
+     */
+    public int capacity() {
+	return buffer.length;
+    }
+
+    private void enqueue(T o) {
+	buffer[(head + count) % buffer.length] = o;
+	count++;
+
+	notEmpty.wake();
+    }
+
+    private T dequeue() {
+	T o = buffer[head];
+	buffer[head] = null;
+	head = (head + 1) % buffer.length;
+	count--;
+
+	notFull.wake();
+	return o;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedQueue<Integer> ping, BoundedQueue<Integer> pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    for (int i=0; i<20; i++)
+		pong.add(ping.removeFirst());
+	}
+
+	private BoundedQueue<Integer> ping;
+	private BoundedQueue<Integer> pong;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	BoundedQueue<Integer> ping = new BoundedQueue<Integer>(4);
+	BoundedQueue<Integer> pong = new BoundedQueue<Integer>(4);
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	// add() blocks once ping and pong are both full, until we drain pong
+	LinkedList<Integer> received = new LinkedList<Integer>();
+	for (int i=0; i<20; i++) {
+	    if (ping.size() == ping.capacity())
+		while (pong.drainTo(received, 20) == 0)
+		    KThread.yield();
+	    ping.add(i);
+	}
+	while (received.size() < 20)
+	    received.add(pong.removeFirst());
+
+	for (int i=0; i<20; i++)
+	    Lib.assertTrue(received.get(i) == i);
+
+	Lib.assertTrue(pong.poll() == null);
+	for (int i=0; i<4; i++)
+	    Lib.assertTrue(pong.offer(i));
+	Lib.assertTrue(!pong.offer(4));
+	Lib.assertTrue(pong.poll() == 0 && pong.size() == 3);
+    }
+
+    private T[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+}
@@ -0,0 +1,996 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * A cache of file blocks in front of another file system. Every read and
+ * write goes through the cache a block at a time, and only misses and
+ * write-backs reach the file system underneath, so repeated reads of the same
+ * blocks cost no I/O.
+ *
+ * <p>
+ * Blocks are named by file name and block number, and are shared by every
+ * handle on the same file, from any process. Clean blocks stay cached after
+ * the file is closed. Writes only modify the cached block; modified blocks are
+ * written back when they are evicted, when the file is last closed, and every
+ * <tt>flushInterval</tt> ticks by a flusher thread. Runs of consecutive blocks
+ * are read and written with a single operation.
+ *
+ * <p>
+ * Each handle detects sequential reading, and has the blocks ahead of it read
+ * into the cache in the background by a read-ahead thread. The read-ahead
+ * window starts at two blocks, doubles with each further sequential read up to
+ * <tt>maxReadAhead</tt> blocks, and is reset by a read anywhere else. Read-ahead
+ * only evicts clean blocks.
+ *
+ * <p>
+ * Blocks are evicted either in LRU order or with the 2Q policy. Under 2Q, a
+ * block read for the first time enters a FIFO queue, <tt>A1in</tt>, which
+ * holds at most a quarter of the cache. Blocks evicted from it are remembered
+ * in a ghost queue, <tt>A1out</tt>, and a block that misses again while
+ * remembered there goes to the main LRU queue, <tt>Am</tt>. A single scan of a
+ * large file therefore cannot flush the blocks that are used repeatedly.
+ *
+ * <p>
+ * A block whose write-back fails stays modified, and is tried again by the
+ * next flush; a file keeps its underlying handle open until all of its
+ * modified blocks have been written. Hits and misses are also counted in the
+ * machine's <tt>Stats</tt>.
+ *
+ * <p>
+ * All state is guarded by a lock, which is released while a block is read or
+ * written. A block being read is marked invalid until the read completes, and
+ * a block being written cannot be evicted until the write completes.
+ */
+public class BufferCache implements FileSystem {
+    /**
+     * Allocate a new buffer cache.
+     *
+     * @param	fileSystem	the file system to cache.
+     * @param	numBlocks	the number of blocks to cache.
+     * @param	twoQueue	<tt>true</tt> to evict with 2Q, or <tt>false</tt>
+     *				to evict with LRU.
+     * @param	flushInterval	the number of ticks between write-backs of
+     *				modified blocks.
+     * @param	maxReadAhead	the most blocks to read ahead of a sequential
+     *				reader, or 0 for no read-ahead.
+     */
+    public BufferCache(FileSystem fileSystem, int numBlocks, boolean twoQueue,
+		       int flushInterval, int maxReadAhead) {
+	Lib.assertTrue(numBlocks > 0);
+
+	this.fileSystem = fileSystem;
+	this.numBlocks = numBlocks;
+	this.twoQueue = twoQueue;
+	this.flushInterval = flushInterval;
+
+	maxIn = Math.max(1, numBlocks/4);
+	maxOut = Math.max(1, numBlocks/2);
+	maxRun = Math.max(1, numBlocks/4);
+
+	// never read ahead more than the scan queue can hold
+	this.maxReadAhead = Math.min(maxReadAhead, maxIn);
+	minReadAhead = Math.min(2, this.maxReadAhead);
+    }
+
+    /**
+     * Start the thread that periodically writes back modified blocks, and
+     * the read-ahead thread.
+     */
+    public void start() {
+	new KThread(new Runnable() {
+		public void run() { flushLoop(); }
+	    }).setName("buffer flusher").fork();
+
+	if (maxReadAhead > 0) {
+	    new KThread(new Runnable() {
+		    public void run() { readAheadLoop(); }
+		}).setName("read-ahead").fork();
+	}
+    }
+
+    /**
+     * Return the file system underneath this cache.
+     *
+     * @return	the cached file system.
+     */
+    public FileSystem getFileSystem() {
+	return fileSystem;
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+	CachedFile file = files.get(name);
+	if (truncate && file != null)
+	    discard(file);
+	lock.release();
+
+	OpenFile handle = fileSystem.open(name, truncate);
+	if (handle == null)
+	    return null;
+
+	lock.acquire();
+
+	file = files.get(name);
+	if (file == null) {
+	    file = new CachedFile(name, nextFileId++);
+	    files.put(name, file);
+	}
+
+	if (file.backing == null) {
+	    // drop cached blocks if the file has changed underneath us
+	    int length = handle.length();
+	    if (length != file.length)
+		discard(file);
+
+	    file.backing = handle;
+	    file.length = length;
+	}
+	else {
+	    handle.close();
+	    if (truncate)
+		discard(file);
+	}
+
+	file.users++;
+
+	lock.release();
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	if (!fileSystem.remove(name))
+	    return false;
+
+	lock.acquire();
+	CachedFile file = files.remove(name);
+	if (file != null) {
+	    file.removed = true;
+	    if (file.users == 0) {
+		discard(file);
+		closeIfUnused(file);
+	    }
+	}
+	lock.release();
+
+	return true;
+    }
+
+    /**
+     * Write back every modified block, and wait for the writes to complete.
+     */
+    public void flush() {
+	lock.acquire();
+
+	flush(null);
+
+	// close files that were kept open only to retry their write-backs
+	for (CachedFile file : files.values())
+	    closeIfUnused(file);
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of block accesses that found the block cached.
+     *
+     * @return	the number of hits.
+     */
+    public int getNumHits() {
+	return numHits;
+    }
+
+    /**
+     * Return the number of block accesses that had to read the block.
+     *
+     * @return	the number of misses.
+     */
+    public int getNumMisses() {
+	return numMisses;
+    }
+
+    /**
+     * Print the cache's statistics, if file system debugging is enabled.
+     */
+    public void report() {
+	Lib.debug(dbgCache, "cache: " + numHits + " hits, " + numMisses
+		  + " misses, " + numReads + " reads, " + numWrites
+		  + " writes (" + numBlocksWritten + " blocks), "
+		  + numPrefetched + " blocks read ahead");
+    }
+
+    private void flushLoop() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(flushInterval);
+	    flush();
+	}
+    }
+
+    private void readAheadLoop() {
+	lock.acquire();
+
+	while (true) {
+	    while (readAheadQueue.isEmpty())
+		readAheadNeeded.sleep();
+
+	    ReadAhead request = readAheadQueue.removeFirst();
+	    prefetch(request.file, request.first, request.count);
+	}
+    }
+
+    /**
+     * Update a handle's read-ahead window after a read, and schedule the
+     * blocks in the window that have not been scheduled already.
+     */
+    private void noteRead(CachedOpenFile handle, int pos, int amount) {
+	lock.acquire();
+
+	if (pos == handle.nextPosition) {
+	    handle.window = (handle.window == 0) ? minReadAhead :
+		Math.min(handle.window*2, maxReadAhead);
+	}
+	else {
+	    handle.window = 0;
+	    handle.windowEnd = 0;
+	}
+
+	handle.nextPosition = pos + amount;
+
+	int first = Math.max(handle.windowEnd, handle.nextPosition / blockSize);
+	int end = handle.nextPosition / blockSize + handle.window;
+	if (end > first) {
+	    readAheadQueue.add(new ReadAhead(handle.file, first, end - first));
+	    readAheadNeeded.wake();
+	    handle.windowEnd = end;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Read the uncached blocks in a range of a file into the cache, if it is
+     * still open. The caller must hold <tt>lock</tt>, which is released
+     * during the reads.
+     */
+    private void prefetch(CachedFile file, int first, int count) {
+	int number = first;
+
+	while (true) {
+	    int last = Math.min(first + count,
+				Lib.divRoundUp(file.length, blockSize)) - 1;
+	    if (file.backing == null)
+		return;
+
+	    while (number <= last && blocks.containsKey(key(file, number)))
+		number++;
+
+	    LinkedList<Block> run = new LinkedList<Block>();
+	    while (number <= last && run.size() < maxRun &&
+		   !blocks.containsKey(key(file, number))) {
+		Block block = newBlock(file, number);
+		if (block == null)
+		    break;
+
+		block.valid = false;
+		run.add(block);
+		number++;
+	    }
+
+	    if (run.isEmpty())
+		return;
+
+	    numPrefetched += run.size();
+	    readRun(run);
+	}
+    }
+
+    private int read(CachedFile file, int pos, byte[] buf, int offset,
+		     int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	int end = (int) Math.min((long) pos + length, file.length);
+	int p = pos;
+
+	while (p < end) {
+	    int number = p / blockSize;
+	    int blockOffset = p % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, end - p);
+
+	    Block block = getBlock(file, number, true,
+				   (end - 1) / blockSize);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(block.data, blockOffset, buf, offset + p - pos,
+			     amount);
+	    p += amount;
+	}
+
+	lock.release();
+
+	return Math.max(0, p - pos);
+    }
+
+    private int write(CachedFile file, int pos, byte[] buf, int offset,
+		      int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	int end = pos + length;
+	int p = pos;
+
+	while (p < end) {
+	    int number = p / blockSize;
+	    int blockOffset = p % blockSize;
+	    int amount = Math.min(blockSize - blockOffset, end - p);
+
+	    // only read the block if the write leaves some of its data
+	    int blockStart = number * blockSize;
+	    int validEnd = Math.min(blockStart + blockSize, file.length);
+	    boolean fill = blockStart < file.length &&
+		(blockOffset > 0 || p + amount < validEnd);
+
+	    Block block = getBlock(file, number, fill, number);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(buf, offset + p - pos, block.data, blockOffset,
+			     amount);
+	    block.dirty = true;
+
+	    p += amount;
+	    file.length = Math.max(file.length, p);
+	}
+
+	lock.release();
+
+	return (p == pos && length > 0) ? -1 : p - pos;
+    }
+
+    private void close(CachedFile file) {
+	lock.acquire();
+
+	if (--file.users == 0) {
+	    // a removed file's blocks are never needed again
+	    if (file.removed)
+		discard(file);
+	    else
+		flush(file);
+
+	    closeIfUnused(file);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Close the underlying handle on a file that has no open handles, unless
+     * it still has modified blocks to write back. The caller must hold
+     * <tt>lock</tt>.
+     */
+    private void closeIfUnused(CachedFile file) {
+	if (file.users > 0 || file.backing == null || file.ioCount > 0)
+	    return;
+
+	for (Block block : blocks.values()) {
+	    if (block.file == file && block.dirty)
+		return;
+	}
+
+	file.backing.close();
+	file.backing = null;
+    }
+
+    /**
+     * Return a cached block of a file, reading it if it is not cached, along
+     * with any uncached blocks after it up to block <i>last</i>. The caller
+     * must hold <tt>lock</tt>, which may be released.
+     *
+     * @param	file	the file.
+     * @param	number	the block number.
+     * @param	fill	<tt>false</tt> if the caller will overwrite the block's
+     *			valid data, so that it need not be read.
+     * @param	last	the last block the caller will need.
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(CachedFile file, int number, boolean fill,
+			   int last) {
+	while (true) {
+	    Block block = blocks.get(key(file, number));
+	    if (block != null) {
+		if (!block.valid) {
+		    blockChanged.sleep();
+		    continue;
+		}
+
+		numHits++;
+		Machine.stats().numCacheHits++;
+		if (am.containsKey(block.key))
+		    am.get(block.key);
+		return block;
+	    }
+
+	    block = newBlock(file, number);
+	    if (block == null) {
+		if (!makeRoom())
+		    return null;
+		continue;
+	    }
+
+	    numMisses++;
+	    Machine.stats().numCacheMisses++;
+
+	    if (!fill) {
+		Arrays.fill(block.data, (byte) 0);
+		return block;
+	    }
+
+	    LinkedList<Block> run = new LinkedList<Block>();
+	    run.add(block);
+	    block.valid = false;
+
+	    for (int i=number+1; i<=last && run.size()<maxRun; i++) {
+		if (blocks.containsKey(key(file, i)))
+		    break;
+
+		Block next = newBlock(file, i);
+		if (next == null)
+		    break;
+
+		numMisses++;
+		Machine.stats().numCacheMisses++;
+		next.valid = false;
+		run.add(next);
+	    }
+
+	    return readRun(run) ? block : null;
+	}
+    }
+
+    /**
+     * Read a run of new, consecutive blocks from the file. The caller must
+     * hold <tt>lock</tt>, which is released during the read.
+     *
+     * @return	<tt>true</tt> if the read succeeded.
+     */
+    private boolean readRun(LinkedList<Block> run) {
+	CachedFile file = run.getFirst().file;
+	int start = run.getFirst().number * blockSize;
+	byte[] buf = new byte[run.size() * blockSize];
+
+	Lib.assertTrue(file.backing != null);
+	file.ioCount++;
+	numReads++;
+
+	lock.release();
+	int amount = file.backing.read(start, buf, 0, buf.length);
+	lock.acquire();
+
+	file.ioCount--;
+
+	int i = 0;
+	for (Block block : run) {
+	    if (amount < 0) {
+		removeBlock(block);
+	    }
+	    else {
+		System.arraycopy(buf, i*blockSize, block.data, 0, blockSize);
+		block.valid = true;
+	    }
+	    i++;
+	}
+
+	blockChanged.wakeAll();
+	return amount >= 0;
+    }
+
+    /**
+     * Write a run of consecutive blocks back to their file. The blocks are
+     * marked clean when the write starts, so that writes to them while it is
+     * in progress mark them dirty again. If the write fails they are marked
+     * dirty again as well. The caller must hold <tt>lock</tt>, which is
+     * released during the write.
+     *
+     * @return	<tt>true</tt> if the write succeeded.
+     */
+    private boolean writeRun(LinkedList<Block> run) {
+	CachedFile file = run.getFirst().file;
+	int start = run.getFirst().number * blockSize;
+	int size = Math.min(run.size() * blockSize, file.length - start);
+	byte[] buf = new byte[run.size() * blockSize];
+
+	int i = 0;
+	for (Block block : run) {
+	    System.arraycopy(block.data, 0, buf, i*blockSize, blockSize);
+	    block.dirty = false;
+	    block.writing = true;
+	    i++;
+	}
+
+	Lib.assertTrue(file.backing != null);
+	file.ioCount++;
+	numWrites++;
+	numBlocksWritten += run.size();
+
+	lock.release();
+	int amount = file.backing.write(start, buf, 0, size);
+	lock.acquire();
+
+	file.ioCount--;
+
+	for (Block block : run) {
+	    block.writing = false;
+	    if (amount != size)
+		block.dirty = true;
+	}
+
+	if (amount != size)
+	    Lib.debug(dbgCache, "write-back of " + file.name + " failed");
+
+	blockChanged.wakeAll();
+	return amount == size;
+    }
+
+    /**
+     * Write back the modified blocks of a file, or of every file, and wait
+     * for any I/O on the file to complete. Blocks whose write-back fails are
+     * not tried again until the next flush. The caller must hold
+     * <tt>lock</tt>.
+     */
+    private void flush(CachedFile file) {
+	HashSet<Block> failed = new HashSet<Block>();
+
+	while (true) {
+	    Block first = null;
+	    for (Block block : blocks.values()) {
+		if ((file == null || block.file == file) && isIdle(block) &&
+		    block.dirty && !failed.contains(block) &&
+		    (first == null || block.file.id < first.file.id ||
+		     (block.file == first.file && block.number < first.number)))
+		    first = block;
+	    }
+
+	    if (first == null)
+		break;
+
+	    LinkedList<Block> run = dirtyRun(first);
+	    if (!writeRun(run))
+		failed.addAll(run);
+	}
+
+	while (file != null && file.ioCount > 0)
+	    blockChanged.sleep();
+    }
+
+    /**
+     * Return a modified block, and the idle modified blocks that follow it.
+     */
+    private LinkedList<Block> dirtyRun(Block first) {
+	LinkedList<Block> run = new LinkedList<Block>();
+	run.add(first);
+
+	for (int i=first.number+1; run.size()<maxRun; i++) {
+	    Block next = blocks.get(key(first.file, i));
+	    if (next == null || !isIdle(next) || !next.dirty)
+		break;
+	    run.add(next);
+	}
+
+	return run;
+    }
+
+    /**
+     * Add a block to the cache, evicting a clean block if the cache is full.
+     * Does not release <tt>lock</tt>.
+     *
+     * @return	the block, whose contents are undefined, or <tt>null</tt> if
+     *		the cache is full and no block can be evicted without I/O.
+     */
+    private Block newBlock(CachedFile file, int number) {
+	byte[] data;
+	if (blocks.size() < numBlocks) {
+	    data = new byte[blockSize];
+	}
+	else {
+	    Block victim = findVictim(false);
+	    if (victim == null)
+		return null;
+
+	    removeBlock(victim);
+	    if (twoQueue && victim.inA1) {
+		ghosts.put(victim.key, Boolean.TRUE);
+		if (ghosts.size() > maxOut)
+		    ghosts.remove(ghosts.keySet().iterator().next());
+	    }
+
+	    data = victim.data;
+	}
+
+	Block block = new Block(file, number, data);
+	blocks.put(block.key, block);
+
+	if (twoQueue && ghosts.remove(block.key) == null) {
+	    block.inA1 = true;
+	    a1in.put(block.key, block);
+	}
+	else {
+	    am.put(block.key, block);
+	}
+
+	return block;
+    }
+
+    /**
+     * Make a block evictable without I/O, by writing back a modified block,
+     * or by waiting for I/O in progress to complete. The caller must hold
+     * <tt>lock</tt>, which is released.
+     *
+     * @return	<tt>false</tt> if a write-back failed, so that no block may
+     *		become evictable.
+     */
+    private boolean makeRoom() {
+	Block victim = findVictim(true);
+	if (victim != null)
+	    return writeRun(dirtyRun(victim));
+
+	blockChanged.sleep();
+	return true;
+    }
+
+    /**
+     * Choose the block to evict: the oldest in <tt>A1in</tt> if it is over
+     * its share of the cache, otherwise the least recently used in
+     * <tt>Am</tt>.
+     *
+     * @param	dirty	<tt>true</tt> to choose among modified blocks,
+     *			<tt>false</tt> to choose among clean ones.
+     */
+    private Block findVictim(boolean dirty) {
+	boolean inFirst = a1in.size() > maxIn || am.isEmpty();
+
+	Block victim = findVictim(inFirst ? a1in : am, dirty);
+	if (victim == null)
+	    victim = findVictim(inFirst ? am : a1in, dirty);
+
+	return victim;
+    }
+
+    private Block findVictim(LinkedHashMap<Long, Block> queue, boolean dirty) {
+	for (Block block : queue.values()) {
+	    if (isIdle(block) && block.dirty == dirty)
+		return block;
+	}
+
+	return null;
+    }
+
+    private void removeBlock(Block block) {
+	blocks.remove(block.key);
+	a1in.remove(block.key);
+	am.remove(block.key);
+    }
+
+    /**
+     * Remove every block of a file from the cache, modified or not, after
+     * waiting for I/O on it to complete. The caller must hold <tt>lock</tt>.
+     */
+    private void discard(CachedFile file) {
+	while (file.ioCount > 0)
+	    blockChanged.sleep();
+
+	for (Block block : blocks.values().toArray(new Block[0])) {
+	    if (block.file == file)
+		removeBlock(block);
+	}
+
+	file.length = 0;
+    }
+
+    private static boolean isIdle(Block block) {
+	return block.valid && !block.writing;
+    }
+
+    private static long key(CachedFile file, int number) {
+	return ((long) file.id << 32) | number;
+    }
+
+    /**
+     * A file with blocks in the cache.
+     */
+    private static class CachedFile {
+	CachedFile(String name, int id) {
+	    this.name = name;
+	    this.id = id;
+	}
+
+	String name;
+	int id;
+
+	/** A handle on the underlying file, while the file is open. */
+	OpenFile backing = null;
+	/** The number of open handles. */
+	int users = 0;
+	/** The length of the file, including blocks not yet written back. */
+	int length = 0;
+	/** The number of reads and writes in progress. */
+	int ioCount = 0;
+	/** Whether the file has been removed while open. */
+	boolean removed = false;
+    }
+
+    /**
+     * A block of a file.
+     */
+    private static class Block {
+	Block(CachedFile file, int number, byte[] data) {
+	    this.file = file;
+	    this.number = number;
+	    this.data = data;
+	    key = key(file, number);
+	}
+
+	CachedFile file;
+	int number;
+	long key;
+	byte[] data;
+
+	/** False while the block is being read. */
+	boolean valid = true;
+	/** Whether the block is being written back. */
+	boolean writing = false;
+	/** Whether the block has been modified since it was written back. */
+	boolean dirty = false;
+	/** Whether the block is in <tt>A1in</tt> rather than <tt>Am</tt>. */
+	boolean inA1 = false;
+    }
+
+    /**
+     * A range of blocks to read ahead.
+     */
+    private static class ReadAhead {
+	ReadAhead(CachedFile file, int first, int count) {
+	    this.file = file;
+	    this.first = first;
+	    this.count = count;
+	}
+
+	CachedFile file;
+	int first, count;
+    }
+
+    /**
+     * A handle on a cached file.
+     */
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(BufferCache.this, file.name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    int amount = BufferCache.this.read(file, pos, buf, offset, length);
+	    if (amount > 0 && maxReadAhead > 0)
+		noteRead(this, pos, amount);
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    return BufferCache.this.write(file, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return file.length;
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		BufferCache.this.close(file);
+	    }
+	}
+
+	private CachedFile file;
+	private boolean open = true;
+
+	/** Where a sequential read would start next. */
+	private int nextPosition = 0;
+	/** The number of blocks to keep read ahead of the reader. */
+	private int window = 0;
+	/** The block after the last one scheduled to be read ahead. */
+	private int windowEnd = 0;
+    }
+
+    /**
+     * Test the cache on a file in the file system underneath the kernel's
+     * cache, and on a file whose writes always fail. The tests use caches of
+     * their own, with no flusher or read-ahead thread.
+     */
+    public static void selfTest() {
+	FileSystem base = ThreadedKernel.fileSystem;
+	if (base instanceof BufferCache)
+	    base = ((BufferCache) base).getFileSystem();
+	if (base == null)
+	    return;
+
+	String name = "cache.tst";
+	byte[] data = new byte[3*blockSize];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) (i*13 + 5);
+	byte[] buf = new byte[data.length];
+
+	// a write only reaches the file when the last handle is closed
+	BufferCache cache = new BufferCache(base, 8, true, 0, 0);
+	OpenFile file = cache.open(name, true);
+	Lib.assertTrue(file != null && file.write(0, data, 0, data.length) ==
+		       data.length);
+
+	OpenFile direct = base.open(name, false);
+	Lib.assertTrue(direct.length() == 0, "write was not cached");
+	direct.close();
+
+	file.close();
+	direct = base.open(name, false);
+	Lib.assertTrue(direct.read(0, buf, 0, buf.length) == data.length);
+	direct.close();
+	Lib.assertTrue(Arrays.equals(buf, data), "close did not write back");
+
+	// the blocks stay cached after the file is closed
+	int hits = cache.getNumHits(), misses = cache.getNumMisses();
+	file = cache.open(name, false);
+	Arrays.fill(buf, (byte) 0);
+	for (int b=0; b<3; b++)
+	    file.read(b*blockSize, buf, b*blockSize, blockSize);
+	Lib.assertTrue(Arrays.equals(buf, data));
+	Lib.assertTrue(cache.getNumHits() == hits + 3 &&
+		       cache.getNumMisses() == misses);
+	file.close();
+
+	// truncating drops the cached blocks
+	file = cache.open(name, true);
+	Lib.assertTrue(file.length() == 0 && file.read(0, buf, 0, 1) == 0);
+	Lib.assertTrue(file.write(0, data, 0, 10) == 10);
+	file.close();
+	direct = base.open(name, false);
+	Lib.assertTrue(direct.length() == 10);
+	direct.close();
+
+	// so does removing the file
+	Lib.assertTrue(cache.remove(name));
+	Lib.assertTrue(cache.open(name, false) == null);
+	Lib.assertTrue(cache.blocks.isEmpty());
+
+	scanTest(base, true);
+	scanTest(base, false);
+
+	// a failed write-back is retried by the next flush, and the file stays
+	// open until then
+	FileSystem readOnly = new FileSystem() {
+		public OpenFile open(String name, boolean truncate) {
+		    return new OpenFile(this, name) {
+			    public int read(int pos, byte[] buf, int offset,
+					    int length) {
+				return 0;
+			    }
+			};
+		}
+
+		public boolean remove(String name) {
+		    return true;
+		}
+	    };
+
+	cache = new BufferCache(readOnly, 4, true, 0, 0);
+	file = cache.open("read only", false);
+	Lib.assertTrue(file.write(0, data, 0, blockSize) == blockSize);
+	file.close();
+	Lib.assertTrue(cache.numWrites == 1, "failed write-back was retried");
+
+	CachedFile cached = cache.files.get("read only");
+	Lib.assertTrue(cached.backing != null, "dirty file was closed");
+	cache.flush();
+	Lib.assertTrue(cache.numWrites == 2 && cached.backing != null);
+
+	// with every block modified and unwritable, a miss fails rather than
+	// waiting for room forever
+	file = cache.open("read only", false);
+	Lib.assertTrue(file.write(blockSize, data, 0, data.length) ==
+		       data.length);
+	Lib.assertTrue(file.write(4*blockSize, data, 0, 1) == -1);
+	file.close();
+    }
+
+    /**
+     * Read two blocks of a file twice, so that under 2Q they are promoted to
+     * <tt>Am</tt>, then scan more blocks than the cache holds, then read the
+     * two blocks again. Under 2Q the scan must not evict them; under LRU it
+     * must.
+     */
+    private static void scanTest(FileSystem base, boolean twoQueue) {
+	String name = "scan.tst";
+	int numBlocks = 8;
+
+	OpenFile direct = base.open(name, true);
+	byte[] data = new byte[4*numBlocks*blockSize];
+	Lib.assertTrue(direct.write(0, data, 0, data.length) == data.length);
+	direct.close();
+
+	BufferCache cache = new BufferCache(base, numBlocks, twoQueue, 0, 0);
+	OpenFile file = cache.open(name, false);
+	byte[] buf = new byte[1];
+
+	int hot = 0;
+	int cold = 2;
+	for (int pass=0; pass<2; pass++) {
+	    file.read(hot*blockSize, buf, 0, 1);
+	    file.read((hot+1)*blockSize, buf, 0, 1);
+
+	    // enough other blocks to evict the hot ones from A1in
+	    for (int i=0; i<numBlocks; i++, cold++)
+		file.read(cold*blockSize, buf, 0, 1);
+	}
+
+	for (; cold < 4*numBlocks; cold++)
+	    file.read(cold*blockSize, buf, 0, 1);
+
+	int hits = cache.getNumHits();
+	file.read(hot*blockSize, buf, 0, 1);
+	file.read((hot+1)*blockSize, buf, 0, 1);
+	Lib.assertTrue(cache.getNumHits() - hits == (twoQueue ? 2 : 0),
+		       "scan flushed the blocks in use");
+
+	file.close();
+	Lib.assertTrue(cache.remove(name));
+    }
+
+    private FileSystem fileSystem;
+    private int numBlocks;
+    private boolean twoQueue;
+    private int flushInterval;
+    private int maxIn, maxOut, maxRun;
+    private int minReadAhead, maxReadAhead;
+
+    private Lock lock = new Lock();
+    private Condition2 blockChanged = new Condition2(lock);
+    private Condition2 readAheadNeeded = new Condition2(lock);
+    private LinkedList<ReadAhead> readAheadQueue = new LinkedList<ReadAhead>();
+
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    private int nextFileId = 0;
+
+    /** Every cached block, by key. */
+    private HashMap<Long, Block> blocks = new HashMap<Long, Block>();
+    /** Blocks read once, oldest first; unused under LRU. */
+    private LinkedHashMap<Long, Block> a1in = new LinkedHashMap<Long, Block>();
+    /** Blocks read again, least recently used first. */
+    private LinkedHashMap<Long, Block> am =
+	new LinkedHashMap<Long, Block>(16, 0.75f, true);
+    /** The keys of blocks recently evicted from <tt>A1in</tt>. */
+    private LinkedHashMap<Long, Boolean> ghosts =
+	new LinkedHashMap<Long, Boolean>();
+
+    private int numHits = 0, numMisses = 0;
+    private int numReads = 0, numWrites = 0, numBlocksWritten = 0;
+    private int numPrefetched = 0;
+
+    private static final int blockSize = Processor.pageSize;
+    private static final char dbgCache = 'f';
+}
@@ -0,0 +1,324 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words shared by any number of
+ * sending and receiving threads.
+ *
+ * <p>
+ * Unlike a <tt>Communicator</tt>, a sender does not wait to be paired with a
+ * receiver: <tt>send()</tt> returns as soon as its words have been copied into
+ * the buffer, and <tt>receive()</tt> takes every buffered word it has room
+ * for in a single call. A pipeline of threads connected by channels therefore
+ * only blocks when a buffer is full or empty, instead of once per word.
+ *
+ * <p>
+ * Words from a single <tt>send()</tt> are delivered in order. If the batch is
+ * larger than the free space in the buffer, it is copied in pieces as space
+ * becomes available, so it may be interleaved with words from other senders.
+ *
+ * <p>
+ * A thread can wait for any one of several channels to have data by calling
+ * <tt>select()</tt>.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the maximum number of words this channel can
+     *				buffer. Must be positive.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+	selectors = new LinkedList<Semaphore>();
+    }
+
+    /**
+     * Send a single word through this channel, waiting if the buffer is full.
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	lock.acquire();
+
+	while (count == buffer.length)
+	    notFull.sleep();
+
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+	delivered();
+
+	if (count < buffer.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Send all of the specified words through this channel. Same as
+     * <tt>send(words, 0, words.length)</tt>.
+     *
+     * @param	words	the words to send.
+     */
+    public void send(int[] words) {
+	send(words, 0, words.length);
+    }
+
+    /**
+     * Send the specified words through this channel, waiting for buffer space
+     * as necessary. Does not return until every word has been buffered.
+     *
+     * @param	words	the array containing the words to send.
+     * @param	offset	the index of the first word to send.
+     * @param	length	the number of words to send.
+     */
+    public void send(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    int amount = Math.min(length, buffer.length - count);
+	    copyIn(words, offset, amount);
+	    offset += amount;
+	    length -= amount;
+	    delivered();
+	}
+
+	// pass any remaining space on to the next waiting sender
+	if (count < buffer.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Receive a single word from this channel, waiting until one is
+     * available.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+	consumed();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Receive up to <i>max</i> words from this channel, waiting until at
+     * least one is available. All words buffered at the time of the call (up
+     * to <i>max</i>) are returned together.
+     *
+     * @param	words	the array in which to store the words received.
+     * @param	max	the maximum number of words to receive. Must be
+     *			positive and no greater than <tt>words.length</tt>.
+     * @return	the number of words stored in <i>words</i>.
+     */
+    public int receive(int[] words, int max) {
+	Lib.assertTrue(max > 0 && max <= words.length);
+
+	lock.acquire();
+
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(max, count);
+	copyOut(words, 0, amount);
+	consumed();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Return the number of words currently buffered in this channel. As with
+     * any unsynchronized read, the value may be stale by the time it is used.
+     *
+     * @return	the number of buffered words.
+     */
+    public int available() {
+	return count;
+    }
+
+    /**
+     * Wait until at least one of the specified channels has a buffered word,
+     * and return its index. If several channels are ready, the one with the
+     * lowest index is chosen.
+     *
+     * <p>
+     * The word is not removed from the channel. If other threads also receive
+     * from the chosen channel, a following <tt>receive()</tt> may still block.
+     *
+     * @param	channels	the channels to wait on.
+     * @return	the index of a channel with buffered data.
+     */
+    public static int select(Channel[] channels) {
+	Lib.assertTrue(channels.length > 0);
+
+	// register before checking, so a send between the check and P() is
+	// not lost
+	Semaphore ready = new Semaphore(0);
+	for (int i=0; i<channels.length; i++)
+	    channels[i].addSelector(ready);
+
+	int index;
+	while ((index = firstReady(channels)) == -1)
+	    ready.P();
+
+	for (int i=0; i<channels.length; i++)
+	    channels[i].removeSelector(ready);
+
+	return index;
+    }
+
+    private static int firstReady(Channel[] channels) {
+	for (int i=0; i<channels.length; i++) {
+	    Channel c = channels[i];
+
+	    c.lock.acquire();
+	    boolean ready = (c.count > 0);
+	    c.lock.release();
+
+	    if (ready)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private void addSelector(Semaphore ready) {
+	lock.acquire();
+	selectors.add(ready);
+	lock.release();
+    }
+
+    private void removeSelector(Semaphore ready) {
+	lock.acquire();
+	selectors.remove(ready);
+	lock.release();
+    }
+
+    /**
+     * Called with the lock held after words are added to the buffer. Wakes a
+     * single receiver, which takes as much as it can, and notifies every
+     * thread in <tt>select()</tt>.
+     */
+    private void delivered() {
+	notEmpty.wake();
+
+	for (Semaphore ready : selectors)
+	    ready.V();
+    }
+
+    /**
+     * Called with the lock held after words are removed from the buffer.
+     * Wakes a single sender, and passes any leftover words on to the next
+     * receiver.
+     */
+    private void consumed() {
+	notFull.wake();
+
+	if (count > 0)
+	    notEmpty.wake();
+    }
+
+    private void copyIn(int[] words, int offset, int length) {
+	int tail = (head + count) % buffer.length;
+	int first = Math.min(length, buffer.length - tail);
+
+	System.arraycopy(words, offset, buffer, tail, first);
+	System.arraycopy(words, offset + first, buffer, 0, length - first);
+	count += length;
+    }
+
+    private void copyOut(int[] words, int offset, int length) {
+	int first = Math.min(length, buffer.length - head);
+
+	System.arraycopy(buffer, head, words, offset, first);
+	System.arraycopy(buffer, 0, words, offset + first, length - first);
+	head = (head + length) % buffer.length;
+	count -= length;
+    }
+
+    private static class PipeTest implements Runnable {
+	PipeTest(Channel in, Channel out) {
+	    this.in = in;
+	    this.out = out;
+	}
+
+	public void run() {
+	    int[] words = new int[8];
+	    int total = 0;
+
+	    while (total < 100) {
+		int amount = in.receive(words, words.length);
+		out.send(words, 0, amount);
+		total += amount;
+	    }
+	}
+
+	private Channel in;
+	private Channel out;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Channel ping = new Channel(16);
+	Channel pong = new Channel(4);
+
+	new KThread(new PipeTest(ping, pong)).setName("pipe").fork();
+
+	final int[] words = new int[100];
+	for (int i=0; i<words.length; i++)
+	    words[i] = i;
+
+	new KThread(new Runnable() {
+		public void run() { ping.send(words); }
+	    }).setName("source").fork();
+
+	for (int i=0; i<words.length; i++)
+	    Lib.assertTrue(pong.receive() == i);
+
+	final Channel[] channels = { new Channel(1), new Channel(1) };
+
+	new KThread(new Runnable() {
+		public void run() { channels[1].send(42); }
+	    }).setName("select").fork();
+
+	Lib.assertTrue(select(channels) == 1);
+	Lib.assertTrue(channels[1].receive() == 42);
+	Lib.assertTrue(channels[0].available() == 0);
+    }
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+    private LinkedList<Semaphore> selectors;
+}
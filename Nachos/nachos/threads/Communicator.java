@@ -21,6 +21,7 @@ public class Communicator {
 	this.waiting = new Lock();
 	this.speak = new Condition2(waiting);
 	this.listen = new Condition2(waiting);
+	this.handoff = new Condition2(waiting);
 	this.spoke = false;
 	}
 
@@ -38,20 +39,21 @@ public class Communicator {
 	{
 		this.waiting.acquire(); // acquire lock
 		
-		while (spoke)	// spoke is true if another thread previously called speak(int)
+		while (spoke)	// spoke is true while a word is waiting for a listener
 		{
-			this.listen.wakeAll(); //wake the listeners
-			this.speak.sleep(); // so sleep until that thread is done
+			this.speak.sleep(); // a listener wakes one speaker per word it takes
 		}
 
-		//else
-		//burner = false;
 		this.toTransfer = word;	// set message to pass
 		this.spoke = true;	// flag other speakers to sleep
-		this.listen.wakeAll();
-		this.speak.sleep();	// hopefully wake a listener
+		long ticket = ++deposited;
+		this.listen.wake();	// only one listener can take the word
+
+		while (taken < ticket)	// words are taken in the order they were deposited
+		{
+			this.handoff.sleep();
+		}
 		this.waiting.release();	// release lock 
-		// NOTE: order of messages conveyed is NOT deterministic and actually unlikely to occur sequentially
 	}
 
 	/**
@@ -69,10 +71,11 @@ public class Communicator {
 		}
 
 		int transferring = this.toTransfer;
-
-		this.speak.wakeAll();
 		spoke = false;
-		//waitQueue.wake();
+		taken++;
+
+		this.handoff.wake();	// the speaker of this word (the only one waiting for handoff)
+		this.speak.wake();	// the next speaker may now deposit its word
 		this.waiting.release();
 		return transferring;
 	}
@@ -80,9 +83,12 @@ public class Communicator {
 	private Lock waiting;
 	private Condition2 speak;
 	private Condition2 listen;
+	private Condition2 handoff;
 
 	private int toTransfer;
 	private boolean spoke;
+	private long deposited = 0;	// number of words ever deposited
+	private long taken = 0;	// number of words ever taken by a listener
 	
 	
 	
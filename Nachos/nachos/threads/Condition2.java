@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -8,8 +9,18 @@ import java.util.LinkedList;
  * synchronization.
  *
  * <p>
- * You must implement this.
- *S
+ * Besides the usual <tt>sleep()</tt>, <tt>wake()</tt> and <tt>wakeAll()</tt>,
+ * a thread may sleep with a <i>key</i> describing what it is waiting for, so
+ * that a waker can wake only the threads that can make progress
+ * (<tt>wake(key)</tt>), or only as many threads as there is work for
+ * (<tt>wake(n)</tt>).
+ *
+ * <p>
+ * A woken thread is not put on the ready queue. Since the waker must hold the
+ * associated lock, the woken thread could only run as far as blocking in
+ * <tt>Lock.acquire()</tt>; instead it is moved straight onto the lock's wait
+ * queue and readied when the lock is handed to it.
+ *
  * @see	nachos.threads.Condition
  */
 public class Condition2 {
@@ -25,8 +36,7 @@ public class Condition2 {
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 
-		// waitQueue = new LinkedList<Lock>();
-		waitQueue = new LinkedList<KThread>();
+		waitQueue = new LinkedList<Waiter>();
 	}
 
 	/**
@@ -36,22 +46,29 @@ public class Condition2 {
 	 * automatically reacquire the lock before <tt>sleep()</tt> returns.
 	 */
 	public void sleep() {
+		sleep(null);
+	}
+
+	/**
+	 * Same as <tt>sleep()</tt>, but tag this thread with the specified key.
+	 * The thread can then be woken selectively by <tt>wake(key)</tt>, as
+	 * well as by any of the untagged wake operations.
+	 *
+	 * @param	key	what this thread is waiting for, or <tt>null</tt>.
+	 */
+	public void sleep(Object key) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
 		boolean status = Machine.interrupt().disable(); 
 		
 		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
+		waitQueue.add(new Waiter(KThread.currentThread(), key));
 		KThread.sleep();
-		conditionLock.acquire();
+
+		// the waker moved us onto the lock's wait queue, so by the time we
+		// run again the lock has already been handed to us
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		Machine.interrupt().restore(status);
-		
-//		Lock waiter = new Lock();
-//		waitQueue.add(waiter);
-//
-//		conditionLock.release();
-//		waiter.acquire();
-//		conditionLock.acquire();
 	}
 
 	/**
@@ -59,33 +76,76 @@ public class Condition2 {
 	 * current thread must hold the associated lock.
 	 */
 	public void wake() {
+		wake(1);
+	}
+
+	/**
+	 * Wake up at most <i>n</i> threads sleeping on this condition variable,
+	 * in the order they went to sleep. The current thread must hold the
+	 * associated lock.
+	 *
+	 * @param	n	the maximum number of threads to wake.
+	 * @return	the number of threads woken.
+	 */
+	public int wake(int n) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
 		boolean status = Machine.interrupt().disable(); 
 		
-		if (!waitQueue.isEmpty())
+		int woken = 0;
+		while (woken < n && !waitQueue.isEmpty())
 		{
-			// ((Lock)waitQueue.removeFirst()).release();
-			(waitQueue.removeFirst()).ready();
+			transfer(waitQueue.removeFirst());
+			woken++;
 		}
 		
 		Machine.interrupt().restore(status);
+		return woken;
 	}
 
 	/**
-	 * Wake up all threads sleeping on this condition variable. The current
-	 * thread must hold the associated lock.
+	 * Wake up the longest-sleeping thread that went to sleep with the
+	 * specified key. The current thread must hold the associated lock.
+	 *
+	 * @param	key	the key to match, using <tt>equals()</tt>.
+	 * @return	<tt>true</tt> if a thread was woken.
 	 */
-	public void wakeAll() {
+	public boolean wake(Object key) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
 		boolean status = Machine.interrupt().disable(); 
 		
-		while (!waitQueue.isEmpty())
+		boolean woken = false;
+		for (Iterator<Waiter> i = waitQueue.iterator(); i.hasNext(); )
 		{
-			wake();
+			Waiter waiter = i.next();
+			if (key == null ? waiter.key == null : key.equals(waiter.key))
+			{
+				i.remove();
+				transfer(waiter);
+				woken = true;
+				break;
+			}
 		}
+		
 		Machine.interrupt().restore(status);
+		return woken;
+	}
+
+	/**
+	 * Wake up all threads sleeping on this condition variable. The current
+	 * thread must hold the associated lock.
+	 */
+	public void wakeAll() {
+		wake(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Move a woken thread onto the associated lock's wait queue (wait
+	 * morphing). Interrupts must be disabled.
+	 */
+	private void transfer(Waiter waiter) {
+		conditionLock.waitForAccess(waiter.thread);
 	}
 
 	public static void selfTest()
@@ -95,6 +155,9 @@ public class Condition2 {
        //Variables for testing functions
        final Lock lock = new Lock();
        final Condition2 con2 = new Condition2(lock);
+       // the number of threads that have gone to sleep, so that no wake comes
+       // first whatever the scheduler
+       final int[] sleepers = new int[1];
        
        KThread sleep = new KThread(new Runnable()
        {
@@ -106,6 +169,7 @@ public class Condition2 {
     	   
     	   System.out.println("TESTING SLEEP"); 
     	   System.out.println("Test 1:\n...Going to sleep.....\n");
+    	   sleepers[0]++;
     	   con2.sleep();
     	   System.out.println("Test 1 Complete: Woke up!\n");
     	   lock.release();
@@ -127,6 +191,8 @@ public class Condition2 {
 				System.out.println("Test 2 Complete: Waking Up!");
 				lock.release();
        } } );
+		while (sleepers[0] < 1)
+			KThread.yield();
 		wake.fork();
 		sleep.join();
 		
@@ -138,6 +204,7 @@ public class Condition2 {
            {
         	   lock.acquire();
                System.out.println("\n...Sleep1 going to sleep...\n");
+               sleepers[0]++;
                con2.sleep();      
 				System.out.println("Test 3: Sleep1 waking up!");
 				lock.release();
@@ -151,6 +218,7 @@ public class Condition2 {
            {
         	   lock.acquire();
                System.out.println("\n...Sleep2 going to sleep...\n");
+               sleepers[0]++;
                con2.sleep();      
 				System.out.println("Test 3: Sleep2 waking up!");
 
@@ -171,13 +239,67 @@ public class Condition2 {
                con2.wakeAll();    
 				lock.release();
        } } );
+		while (sleepers[0] < 3)
+			KThread.yield();
 		wakeall.fork();
+		wakeall.join();
 
+		System.out.println("\nTEST 4: KEYED WAKE");
+		final int[] order = new int[2];
+		final int[] asleep = new int[1];
+		final int[] woken = new int[1];
+		for (int i = 0; i < 2; i++)
+		{
+			final Integer key = Integer.valueOf(i);
+			new KThread(new Runnable()
+			{
+			//Test 4: sleep with a key, record wake order
+	           public void run()
+	           {
+	        	   lock.acquire();
+	        	   asleep[0]++;
+	        	   con2.sleep(key);
+	        	   order[woken[0]++] = key.intValue();
+	        	   lock.release();
+	       } } ).fork();
+		}
+		while (asleep[0] < 2)
+			KThread.yield();
 
+		// wake the second sleeper first; the first stays asleep until the
+		// next wake, so the check does not depend on the scheduler
+		lock.acquire();
+		Lib.assertTrue(con2.wake(Integer.valueOf(1)));
+		Lib.assertTrue(!con2.wake(Integer.valueOf(7)));
+		lock.release();
+		while (woken[0] < 1)
+			KThread.yield();
+		Lib.assertTrue(order[0] == 1);
+
+		lock.acquire();
+		Lib.assertTrue(con2.wake(2) == 1);
+		lock.release();
+		while (woken[0] < 2)
+			KThread.yield();
+		Lib.assertTrue(order[1] == 0);
+		System.out.println("Test 4 Complete: keyed wake woke the right thread first");
 	}
 
 	
 	private Lock conditionLock;
-	// private LinkedList<Lock> waitQueue;
-	private LinkedList<KThread> waitQueue;
+	private LinkedList<Waiter> waitQueue;
+
+	/**
+	 * A thread sleeping on this condition variable, and the key (if any) it
+	 * is waiting for.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread, Object key) {
+			this.thread = thread;
+			this.key = key;
+		}
+
+		KThread thread;
+		Object key;
+	}
 }
@@ -0,0 +1,100 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>count-down latch</i> lets threads wait until a set number of events
+ * have happened. Each event calls <tt>countDown()</tt>; threads calling
+ * <tt>await()</tt> block until the count reaches zero, after which the latch
+ * stays open and <tt>await()</tt> returns immediately.
+ *
+ * <p>
+ * Unlike a <tt>Barrier</tt>, the threads counting down do not wait, and a
+ * latch cannot be reused.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of <tt>countDown()</tt> calls needed to open
+     *			the latch. Must not be negative.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+	lock = new Lock();
+	zero = new Condition2(lock);
+    }
+
+    /**
+     * Decrement the count, waking every waiting thread if it reaches zero.
+     * Has no effect if the latch is already open.
+     */
+    public void countDown() {
+	lock.acquire();
+
+	if (count > 0 && --count == 0)
+	    zero.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * Wait until the count reaches zero.
+     */
+    public void await() {
+	lock.acquire();
+
+	while (count > 0)
+	    zero.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Return the current count.
+     *
+     * @return	the number of <tt>countDown()</tt> calls still needed.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(3);
+	final int[] started = new int[1];
+
+	for (int i=0; i<3; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			started[0]++;
+			done.countDown();
+		    }
+		}).setName("latch" + i).fork();
+	}
+
+	KThread.yield();
+	Lib.assertTrue(started[0] == 0);
+
+	start.countDown();
+	done.await();
+
+	Lib.assertTrue(started[0] == 3 && done.getCount() == 0);
+
+	// an open latch never blocks
+	start.await();
+	start.countDown();
+	Lib.assertTrue(start.getCount() == 0);
+    }
+
+    private int count;
+
+    private Lock lock;
+    private Condition2 zero;
+}
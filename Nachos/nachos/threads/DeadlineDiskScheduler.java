@@ -0,0 +1,135 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * An elevator disk scheduler that bounds how long a request can wait. Each
+ * request has a deadline, set when it is queued: by default 50000 ticks later
+ * for a read and 250000 ticks later for a write, configured by
+ * <tt>DeadlineDiskScheduler.readExpire</tt> and
+ * <tt>DeadlineDiskScheduler.writeExpire</tt>. Reads get the shorter deadline
+ * because a faulting thread cannot run until its page is read, while writes
+ * are mostly page-outs and cache flushes.
+ *
+ * <p>
+ * While no deadline has passed, requests are served in elevator order. Once
+ * the oldest read or write has expired it is served next, and the sweep
+ * carries on from there, so a stream of requests near the head cannot starve
+ * one far away for longer than its deadline plus one request.
+ */
+public class DeadlineDiskScheduler extends ElevatorDiskScheduler {
+    /**
+     * Allocate a new deadline disk scheduler.
+     */
+    public DeadlineDiskScheduler() {
+	this(Config.getInteger("DeadlineDiskScheduler.readExpire", 50000),
+	     Config.getInteger("DeadlineDiskScheduler.writeExpire", 250000));
+    }
+
+    /**
+     * Allocate a new deadline disk scheduler.
+     *
+     * @param	readExpire	the number of ticks a read may wait.
+     * @param	writeExpire	the number of ticks a write may wait.
+     */
+    DeadlineDiskScheduler(int readExpire, int writeExpire) {
+	this.readExpire = readExpire;
+	this.writeExpire = writeExpire;
+    }
+
+    public Request next(int head) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = getTime();
+
+	// the queue is in order of arrival, so the first read and the first
+	// write are the ones whose deadlines pass first
+	Request oldestRead = null, oldestWrite = null;
+	for (Request request : queue) {
+	    if (request.writing) {
+		if (oldestWrite == null)
+		    oldestWrite = request;
+	    }
+	    else if (oldestRead == null) {
+		oldestRead = request;
+	    }
+
+	    if (oldestRead != null && oldestWrite != null)
+		break;
+	}
+
+	Request expired = null;
+	if (oldestRead != null && now - oldestRead.arrival >= readExpire)
+	    expired = oldestRead;
+	else if (oldestWrite != null &&
+		 now - oldestWrite.arrival >= writeExpire)
+	    expired = oldestWrite;
+
+	if (expired == null)
+	    return super.next(head);
+
+	numExpired++;
+	Lib.debug(dbgDisk, "deadline passed for sector " + expired.sector);
+
+	queue.remove(expired);
+	return expired;
+    }
+
+    /**
+     * Return the number of requests served out of order because their
+     * deadline had passed.
+     *
+     * @return	the number of expired requests.
+     */
+    public int getNumExpired() {
+	return numExpired;
+    }
+
+    /**
+     * Test that an expired read is served ahead of the sweep, and that writes
+     * wait longer than reads before they expire.
+     */
+    public static void selfTest() {
+	final long[] now = new long[1];
+	DeadlineDiskScheduler scheduler = new DeadlineDiskScheduler(100, 500) {
+		protected long getTime() {
+		    return now[0];
+		}
+	    };
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	scheduler.add(new Request(true, 5, 1, null, 0));
+	scheduler.add(new Request(false, 10, 1, null, 0));
+	now[0] = 10;
+	for (int sector=60; sector<=80; sector+=10)
+	    scheduler.add(new Request(false, sector, 1, null, 0));
+
+	// nothing has expired, so the sweep goes on up from the head
+	now[0] = 20;
+	Lib.assertTrue(scheduler.next(50).sector == 60);
+
+	// the read at 10 has expired, but the write queued with it has not
+	now[0] = 100;
+	Lib.assertTrue(scheduler.next(61).sector == 10);
+	Lib.assertTrue(scheduler.next(11).sector == 70);
+
+	Lib.assertTrue(scheduler.next(71).sector == 80);
+
+	// a write takes longer to expire, but then goes ahead of a newer read
+	now[0] = 450;
+	scheduler.add(new Request(false, 90, 1, null, 0));
+	now[0] = 500;
+	Lib.assertTrue(scheduler.next(81).sector == 5);
+	Lib.assertTrue(scheduler.next(6).sector == 90);
+	Lib.assertTrue(scheduler.next(91) == null);
+	Lib.assertTrue(scheduler.getNumExpired() == 2);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int readExpire, writeExpire;
+    private int numExpired = 0;
+
+    private static final char dbgDisk = 'd';
+}
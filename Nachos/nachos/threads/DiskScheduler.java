@@ -0,0 +1,150 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Chooses the order in which queued disk requests are sent to the disk. This
+ * base class serves requests first-come first-served; subclasses reorder them
+ * to reduce seeking.
+ *
+ * <p>
+ * <tt>SynchDisk</tt> calls every method with interrupts disabled, since
+ * requests are dispatched from the disk's interrupt handler.
+ *
+ * @see	nachos.threads.SynchDisk
+ */
+public class DiskScheduler {
+    /**
+     * Allocate a new first-come first-served disk scheduler.
+     */
+    public DiskScheduler() {
+    }
+
+    /**
+     * A request to read or write consecutive sectors.
+     */
+    public static class Request {
+	/**
+	 * Allocate a new request.
+	 *
+	 * @param	writing	<tt>true</tt> to write, <tt>false</tt> to read.
+	 * @param	sector	the first sector.
+	 * @param	count	the number of sectors.
+	 * @param	data	the buffer to read into or write from.
+	 * @param	offset	the index in <i>data</i> of the first byte.
+	 */
+	public Request(boolean writing, int sector, int count, byte[] data,
+		       int offset) {
+	    this.writing = writing;
+	    this.sector = sector;
+	    this.count = count;
+	    this.data = data;
+	    this.offset = offset;
+	}
+
+	/**
+	 * Return the sector after the last one in this request.
+	 *
+	 * @return	the end of the request.
+	 */
+	public int end() {
+	    return sector + count;
+	}
+
+	/** Whether this request writes. */
+	public final boolean writing;
+	/** The first sector. */
+	public final int sector;
+	/** The number of sectors. */
+	public final int count;
+	/** The buffer to read into or write from. */
+	public final byte[] data;
+	/** The index in <tt>data</tt> of the first byte. */
+	public final int offset;
+
+	/** The time the request was queued. */
+	long arrival;
+	/** Signalled when the request has completed. */
+	Semaphore done = new Semaphore(0);
+    }
+
+    /**
+     * Add a request to the queue.
+     *
+     * @param	request	the request.
+     */
+    public void add(Request request) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	request.arrival = getTime();
+	queue.add(request);
+    }
+
+    /**
+     * Return the current time, which is recorded as each request's arrival.
+     * Tests override this to drive the scheduler with a clock of their own.
+     *
+     * @return	the current number of ticks.
+     */
+    protected long getTime() {
+	return Machine.timer().getTime();
+    }
+
+    /**
+     * Remove the next request to serve from the queue.
+     *
+     * @param	head	the sector after the last one transferred.
+     * @return	the request, or <tt>null</tt> if the queue is empty.
+     */
+    public Request next(int head) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (queue.isEmpty())
+	    return null;
+
+	return queue.removeFirst();
+    }
+
+    /**
+     * Remove a queued request of the same kind that starts right after, or
+     * ends right before, a request that is about to be served, so that the
+     * two can be merged into one transfer.
+     *
+     * @param	writing		whether the request must be a write.
+     * @param	after		the sector the request may start at.
+     * @param	before		the sector after the last one of the request,
+     *				if it comes first.
+     * @param	maxCount	the most sectors the request may have.
+     * @return	the request, or <tt>null</tt> if there is none.
+     */
+    public Request takeAdjacent(boolean writing, int after, int before,
+				int maxCount) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (Iterator<Request> i = queue.iterator(); i.hasNext(); ) {
+	    Request request = i.next();
+	    if (request.writing == writing && request.count <= maxCount &&
+		(request.sector == after || request.end() == before)) {
+		i.remove();
+		return request;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Test whether any requests are queued.
+     *
+     * @return	<tt>true</tt> if the queue is empty.
+     */
+    public boolean isEmpty() {
+	return queue.isEmpty();
+    }
+
+    /** Every queued request, in order of arrival. */
+    protected LinkedList<Request> queue = new LinkedList<Request>();
+}
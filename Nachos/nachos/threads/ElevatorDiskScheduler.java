@@ -0,0 +1,119 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A disk scheduler that sweeps the head across the disk, serving requests in
+ * sector order rather than in the order they arrive.
+ *
+ * <p>
+ * By default this is C-LOOK: the head serves the nearest request at or after
+ * its position, and when there are none it returns to the lowest queued
+ * sector and sweeps up again. Every sector waits at most one sweep, and
+ * sectors in the middle of the disk are not favoured over those at the
+ * edges. If <tt>ElevatorDiskScheduler.circular</tt> is <tt>false</tt> in the
+ * configuration, the head instead reverses direction at the last request in
+ * each direction (LOOK), which seeks less but makes the edges wait longer.
+ */
+public class ElevatorDiskScheduler extends DiskScheduler {
+    /**
+     * Allocate a new elevator disk scheduler.
+     */
+    public ElevatorDiskScheduler() {
+	this(Config.getBoolean("ElevatorDiskScheduler.circular", true));
+    }
+
+    /**
+     * Allocate a new elevator disk scheduler.
+     *
+     * @param	circular	<tt>true</tt> for C-LOOK, <tt>false</tt> for LOOK.
+     */
+    ElevatorDiskScheduler(boolean circular) {
+	this.circular = circular;
+    }
+
+    public Request next(int head) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (queue.isEmpty())
+	    return null;
+
+	Request request = nearest(head, up);
+	if (request == null) {
+	    if (circular)
+		request = nearest(0, true);
+	    else
+		request = nearest(head, up = !up);
+	}
+
+	queue.remove(request);
+	return request;
+    }
+
+    /**
+     * Return the queued request whose first sector is nearest to a sector in
+     * one direction, or <tt>null</tt> if there is none.
+     *
+     * @param	head	the sector to start from.
+     * @param	up	<tt>true</tt> to look at higher sectors, including
+     *			<i>head</i>; <tt>false</tt> to look at lower sectors.
+     * @return	the nearest request.
+     */
+    protected Request nearest(int head, boolean up) {
+	Request best = null;
+
+	for (Request request : queue) {
+	    if (up ? request.sector < head : request.sector >= head)
+		continue;
+
+	    if (best == null ||
+		(up ? request.sector < best.sector
+		    : request.sector > best.sector))
+		best = request;
+	}
+
+	return best;
+    }
+
+    /**
+     * Test that requests are served in C-LOOK and LOOK order.
+     */
+    public static void selfTest() {
+	int[] sectors = { 10, 60, 30, 90, 55 };
+
+	Lib.assertTrue(Arrays.equals(sweep(new ElevatorDiskScheduler(true),
+					   sectors, 50),
+				     new int[] { 55, 60, 90, 10, 30 }));
+	Lib.assertTrue(Arrays.equals(sweep(new ElevatorDiskScheduler(false),
+					   sectors, 50),
+				     new int[] { 55, 60, 90, 30, 10 }));
+    }
+
+    /**
+     * Queue a single-sector read of each sector, and return the order in
+     * which the scheduler serves them with the head starting at <i>head</i>.
+     */
+    private static int[] sweep(DiskScheduler scheduler, int[] sectors,
+			       int head) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int sector : sectors)
+	    scheduler.add(new Request(false, sector, 1, null, 0));
+
+	int[] order = new int[sectors.length];
+	for (int i=0; i<order.length; i++) {
+	    Request request = scheduler.next(head);
+	    order[i] = request.sector;
+	    head = request.end();
+	}
+	Lib.assertTrue(scheduler.next(head) == null);
+
+	Machine.interrupt().restore(intStatus);
+	return order;
+    }
+
+    private boolean circular;
+    private boolean up = true;
+}
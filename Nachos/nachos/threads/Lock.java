@@ -65,6 +65,22 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Put a thread sleeping on a condition variable associated with this lock
+     * directly on this lock's wait queue. The thread will be readied by
+     * <tt>release()</tt> when the lock is handed to it, rather than readied
+     * now only to block again in <tt>acquire()</tt>. The current thread must
+     * hold this lock, and interrupts must be disabled.
+     *
+     * @param	thread	the thread to queue; it must be blocked.
+     */
+    void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -142,7 +142,8 @@ public class LotteryScheduler extends PriorityScheduler {
 		// called before returning effective priority in getEffectivePriority()
 		public void overkill(){
 			for (LotteryQueue Q : acquired){ // recursively call overkill on ALL threads waiting on this
-				for (ThreadState T : Q.waitQueue){
+				// only queues that transfer priority donate; following the ready queue could cycle back here
+				if (Q.transferPriority) for (ThreadState T : Q.waitQueue){
 					T.overkill();
 				}
 				Q.update(); // claim donations from acquired queues
@@ -145,7 +145,7 @@ public class PriorityScheduler extends Scheduler {
 				current_holder.calcEffective();
 				for (PriorityQueue p : current_holder.currently_acquired)	// iterate through every resource queue
 				{
-					if (!p.thread_states.isEmpty())
+					if (p.transferPriority && !p.thread_states.isEmpty())	// the ready queue donates nothing
 						for (ThreadState t : p.thread_states)
 						{
 							t.calcEffective();		// update every thread's effective priority 
@@ -336,7 +336,6 @@ public class PriorityScheduler extends Scheduler {
 					currently_waiting = null;
 				}
 			}
-			waitQueue.thread_states.remove(this);
 			currently_acquired.add(waitQueue);		// update set of acquired resources
 
 			if (waitQueue.current_holder != null && waitQueue.current_holder != this)	// replace previous resource owner and update its priority
@@ -355,10 +354,12 @@ public class PriorityScheduler extends Scheduler {
 			if (currently_acquired != null)
 				for (PriorityQueue Q : currently_acquired)
 				{
+					if (!Q.transferPriority)		// following the ready queue would cycle back here
+						continue;
 					for (ThreadState t : Q.thread_states)
 					{
 						if (offer(t.getEffectivePriority(), t))
-							if (currently_waiting != null && currently_waiting.current_holder != null)
+							if (currently_waiting != null && currently_waiting.transferPriority && currently_waiting.current_holder != null)
 								currently_waiting.current_holder.calcEffective();
 					}
 				}
@@ -0,0 +1,325 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds the lock, then
+ * become one of its readers.
+ * <li><tt>acquireWrite()</tt>: wait until no reader or writer holds the lock,
+ * then become its writer.
+ * </ul>
+ *
+ * <p>
+ * A lock created with <i>writer preference</i> admits no new readers while a
+ * writer is waiting, so a steady stream of readers cannot starve writers.
+ * Otherwise readers are admitted whenever no writer holds the lock, and a
+ * releasing writer hands the lock to all waiting readers before the next
+ * writer.
+ *
+ * <p>
+ * Like <tt>Lock</tt>, waiting threads donate priority through the scheduler's
+ * thread queues. A writer receives donations from every thread waiting for
+ * the lock. While readers hold the lock, waiting threads donate to a single
+ * reader, the oldest one, since a thread queue has only one owner. Both
+ * queues change owner every time the lock changes hands, including the
+ * queue whose waiters were not granted the lock.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock without writer preference. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	writerPreference	<tt>true</tt> if new readers should wait
+     *					while any writer is waiting.
+     */
+    public ReadWriteLock(boolean writerPreference) {
+	this.writerPreference = writerPreference;
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && !(writerPreference && waitingWriters > 0)) {
+	    readers.add(thread);
+	    if (readers.size() == 1)
+		setOwner(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.remove(thread));
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		grantWrite();
+	}
+	else {
+	    // the oldest remaining reader receives donations from now on
+	    setOwner(readers.getFirst());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    setOwner(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock after writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0 && (writerPreference || waitingReaders == 0))
+	    grantWrite();
+	else if (waitingReaders > 0)
+	    grantRead();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, either for reading or for
+     * writing.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return isHeld(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread is this lock's writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand the lock to the next waiting writer and ready it.
+     */
+    private void grantWrite() {
+	writer = writeQueue.nextThread();
+	Lib.assertTrue(writer != null);
+	waitingWriters--;
+
+	setOwner(writer);
+	writer.ready();
+    }
+
+    /**
+     * Admit every waiting reader and ready them.
+     */
+    private void grantRead() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waitingReaders--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+
+	setOwner(readers.getFirst());
+    }
+
+    /**
+     * Make the specified thread the recipient of priority donated by threads
+     * waiting on either queue.
+     */
+    private void setOwner(KThread thread) {
+	// the priority schedulers let a queue change owner while threads wait
+	// on it; other schedulers do no donation, so there is nothing to move
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler) {
+	    readQueue.acquire(thread);
+	    writeQueue.acquire(thread);
+	}
+    }
+
+    private static class RWTest implements Runnable {
+	RWTest(ReadWriteLock lock, int[] value, boolean write) {
+	    this.lock = lock;
+	    this.value = value;
+	    this.write = write;
+	}
+
+	public void run() {
+	    for (int i=0; i<5; i++) {
+		if (write) {
+		    lock.acquireWrite();
+		    int old = value[0];
+		    KThread.yield();
+		    value[0] = old + 1;
+		    lock.releaseWrite();
+		}
+		else {
+		    lock.acquireRead();
+		    int old = value[0];
+		    KThread.yield();
+		    Lib.assertTrue(value[0] == old);
+		    lock.releaseRead();
+		}
+		KThread.yield();
+	    }
+	}
+
+	private ReadWriteLock lock;
+	private int[] value;
+	private boolean write;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	for (int pref=0; pref<2; pref++) {
+	    ReadWriteLock lock = new ReadWriteLock(pref == 1);
+	    int[] value = new int[1];
+
+	    KThread[] threads = new KThread[6];
+	    for (int i=0; i<threads.length; i++) {
+		threads[i] = new KThread(new RWTest(lock, value, i%3 == 0));
+		threads[i].setName((i%3 == 0 ? "writer" : "reader") + i).fork();
+	    }
+	    for (int i=0; i<threads.length; i++)
+		threads[i].join();
+
+	    Lib.assertTrue(value[0] == 10);
+	}
+
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler) {
+	    // a writer waiting behind the readers it was passed over for must
+	    // donate to them, and readers passed over for a writer to it
+	    donationTest(false);
+	    donationTest(true);
+	}
+    }
+
+    /**
+     * Hold the lock for writing while a low-priority thread and a
+     * high-priority thread wait for it, one to read and the other to write,
+     * then release it. The low-priority thread is granted the lock and must
+     * receive the high-priority thread's donation.
+     */
+    private static void donationTest(final boolean writerPreference) {
+	final ReadWriteLock lock = new ReadWriteLock(writerPreference);
+	lock.acquireWrite();
+
+	Runnable read = new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    lock.releaseRead();
+		}
+	    };
+	Runnable write = new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    lock.releaseWrite();
+		}
+	    };
+
+	// without writer preference the waiting reader is granted the lock;
+	// with it, the waiting writer is
+	KThread low = new KThread(writerPreference ? write : read);
+	KThread high = new KThread(writerPreference ? read : write);
+	low.setName("low");
+	high.setName("high");
+
+	boolean intStatus = Machine.interrupt().disable();
+	int highPriority = ThreadedKernel.scheduler.getPriority() + 1;
+	ThreadedKernel.scheduler.setPriority(high, highPriority);
+	Machine.interrupt().restore(intStatus);
+
+	low.fork();
+	high.fork();
+	while (lock.waitingReaders + lock.waitingWriters < 2)
+	    KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	lock.releaseWrite();
+	Lib.assertTrue(lock.isHeld(low));
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low) >=
+		       highPriority, "waiting thread did not donate");
+	Machine.interrupt().restore(intStatus);
+
+	low.join();
+	high.join();
+    }
+
+    private boolean isHeld(KThread thread) {
+	return (writer == thread || readers.contains(thread));
+    }
+
+    private boolean writerPreference;
+
+    private KThread writer = null;
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -0,0 +1,365 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A driver for the machine's disk that makes its requests synchronous. A
+ * thread that reads or writes sectors waits until the transfer is complete.
+ *
+ * <p>
+ * Requests from different threads are queued, and each time the disk becomes
+ * idle a <tt>DiskScheduler</tt> picks the next one to serve; the class is
+ * named by <tt>SynchDisk.scheduler</tt> in the configuration. Queued requests
+ * of the same kind for sectors adjacent to the chosen one are merged with it
+ * into a single transfer of at most <tt>SynchDisk.maxMerge</tt> sectors, so
+ * they share one seek and one rotational delay. Requests that overlap may be
+ * served in either order, so callers must not have a read and a write of the
+ * same sector outstanding at once.
+ *
+ * <p>
+ * A range of sectors can also be accessed as an <tt>OpenFile</tt>, with
+ * <tt>openPartition()</tt>, for kernel code that works with files, such as
+ * the swap file.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	scheduler = (DiskScheduler) Lib.constructObject(
+	    Config.getString("SynchDisk.scheduler",
+			     "nachos.threads.DeadlineDiskScheduler"));
+	maxMerge = Config.getInteger("SynchDisk.maxMerge", 32);
+	Lib.assertTrue(maxMerge > 0);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return disk.getSectorSize();
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Read consecutive sectors into a buffer, waiting until they have been
+     * read.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to fill.
+     * @param	offset	the index in <i>data</i> of the first byte to fill.
+     */
+    public void read(int sector, int count, byte[] data, int offset) {
+	submit(new DiskScheduler.Request(false, sector, count, data, offset));
+    }
+
+    /**
+     * Write consecutive sectors from a buffer, waiting until they have been
+     * written.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer holding the data.
+     * @param	offset	the index in <i>data</i> of the first byte to write.
+     */
+    public void write(int sector, int count, byte[] data, int offset) {
+	submit(new DiskScheduler.Request(true, sector, count, data, offset));
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that reads and writes a range of sectors as
+     * a file of fixed length. Partial sectors are read before they are
+     * written.
+     *
+     * @param	firstSector	the first sector of the range.
+     * @param	numSectors	the number of sectors in the range.
+     * @return	a file that accesses the range.
+     */
+    public OpenFile openPartition(int firstSector, int numSectors) {
+	Lib.assertTrue(firstSector >= 0 && numSectors >= 0 &&
+		       firstSector + numSectors <= getNumSectors());
+
+	return new Partition(firstSector, numSectors);
+    }
+
+    /**
+     * Print the driver's statistics, if disk debugging is enabled.
+     */
+    public void report() {
+	Lib.debug(dbgDisk, "disk: " + numRequests + " requests, "
+		  + numTransfers + " transfers (" + numMerged + " merged), "
+		  + numTracksCrossed + " tracks crossed");
+    }
+
+    private void submit(DiskScheduler.Request request) {
+	Lib.assertTrue(request.count > 0 && request.sector >= 0 &&
+		       request.end() <= getNumSectors());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	numRequests++;
+	scheduler.add(request);
+	if (current == null)
+	    dispatch();
+
+	Machine.interrupt().restore(intStatus);
+
+	request.done.P();
+    }
+
+    /**
+     * Start the next transfer, merging the request the scheduler chooses with
+     * any queued neighbours. Called with interrupts disabled.
+     */
+    private void dispatch() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(current == null);
+
+	DiskScheduler.Request first = scheduler.next(head);
+	if (first == null)
+	    return;
+
+	current = new LinkedList<DiskScheduler.Request>();
+	current.add(first);
+
+	currentStart = first.sector;
+	int end = first.end();
+
+	while (end - currentStart < maxMerge) {
+	    DiskScheduler.Request request =
+		scheduler.takeAdjacent(first.writing, end, currentStart,
+				       maxMerge - (end - currentStart));
+	    if (request == null)
+		break;
+
+	    current.add(request);
+	    currentStart = Math.min(currentStart, request.sector);
+	    end = Math.max(end, request.end());
+	    numMerged++;
+	}
+
+	int count = end - currentStart;
+	int sectorSize = getSectorSize();
+
+	if (current.size() == 1) {
+	    currentData = first.data;
+	    currentOffset = first.offset;
+	}
+	else {
+	    currentData = new byte[count * sectorSize];
+	    currentOffset = 0;
+
+	    if (first.writing) {
+		for (DiskScheduler.Request request : current)
+		    System.arraycopy(request.data, request.offset, currentData,
+				     (request.sector - currentStart) * sectorSize,
+				     request.count * sectorSize);
+	    }
+	}
+
+	numTransfers++;
+	numTracksCrossed += Math.abs(disk.trackOf(currentStart) -
+				     disk.getHeadTrack());
+	head = end;
+
+	if (first.writing)
+	    disk.writeRequest(currentStart, count, currentData, currentOffset);
+	else
+	    disk.readRequest(currentStart, count, currentData, currentOffset);
+    }
+
+    private void requestDone() {
+	int sectorSize = getSectorSize();
+
+	for (DiskScheduler.Request request : current) {
+	    if (!request.writing && current.size() > 1)
+		System.arraycopy(currentData,
+				 (request.sector - currentStart) * sectorSize,
+				 request.data, request.offset,
+				 request.count * sectorSize);
+	    request.done.V();
+	}
+
+	current = null;
+	currentData = null;
+
+	dispatch();
+    }
+
+    private class Partition extends OpenFileWithPosition {
+	Partition(int firstSector, int numSectors) {
+	    super(null, "disk");
+
+	    this.firstSector = firstSector;
+	    this.length = numSectors * getSectorSize();
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || length < 0)
+		return -1;
+
+	    length = Math.min(length, this.length - pos);
+	    if (length <= 0)
+		return 0;
+
+	    int sectorSize = getSectorSize();
+	    int first = pos / sectorSize;
+	    int count = Lib.divRoundUp(pos + length, sectorSize) - first;
+
+	    byte[] sectors = new byte[count * sectorSize];
+	    SynchDisk.this.read(firstSector + first, count, sectors, 0);
+	    System.arraycopy(sectors, pos - first*sectorSize, buf, offset,
+			     length);
+
+	    return length;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || length < 0)
+		return -1;
+
+	    length = Math.min(length, this.length - pos);
+	    if (length <= 0)
+		return 0;
+
+	    int sectorSize = getSectorSize();
+	    int first = pos / sectorSize;
+	    int count = Lib.divRoundUp(pos + length, sectorSize) - first;
+
+	    byte[] sectors = new byte[count * sectorSize];
+	    if (pos % sectorSize != 0 || (pos + length) % sectorSize != 0)
+		SynchDisk.this.read(firstSector + first, count, sectors, 0);
+
+	    System.arraycopy(buf, offset, sectors, pos - first*sectorSize,
+			     length);
+	    SynchDisk.this.write(firstSector + first, count, sectors, 0);
+
+	    return length;
+	}
+
+	public int length() {
+	    return length;
+	}
+
+	public void close() {
+	    open = false;
+	}
+
+	private int firstSector;
+	private int length;
+	private boolean open = true;
+    }
+
+    /**
+     * Test that sectors read back as they were written, through the driver
+     * and through a partition. Overwrites the last two sectors of the disk.
+     */
+    public static void selfTest() {
+	SynchDisk disk = ThreadedKernel.disk;
+	if (disk == null)
+	    return;
+
+	int sectorSize = disk.getSectorSize();
+	int last = disk.getNumSectors() - 2;
+
+	byte[] out = new byte[2*sectorSize];
+	for (int i=0; i<out.length; i++)
+	    out[i] = (byte) (i*7 + 3);
+
+	disk.write(last, 2, out, 0);
+
+	byte[] in = new byte[2*sectorSize];
+	disk.read(last, 2, in, 0);
+	for (int i=0; i<in.length; i++)
+	    Lib.assertTrue(in[i] == out[i], "disk read back wrong data");
+
+	OpenFile partition = disk.openPartition(last, 2);
+	byte[] mid = new byte[] { 1, 2, 3, 4 };
+	Lib.assertTrue(partition.write(sectorSize - 2, mid, 0, 4) == 4);
+	Lib.assertTrue(partition.read(sectorSize - 3, in, 0, 6) == 6);
+	Lib.assertTrue(in[0] == out[sectorSize - 3] && in[1] == 1 &&
+		       in[4] == 4 && in[5] == out[sectorSize + 2],
+		       "partial sector write corrupted its neighbours");
+	partition.close();
+
+	// queue single-sector writes and then reads from several threads at
+	// once, in scrambled order, so that they are sorted and merged
+	final int first = disk.getNumSectors() - 8;
+	final byte[][] sectors = new byte[8][sectorSize];
+	int merged = disk.numMerged;
+
+	runConcurrently(disk, first, sectors, true);
+	for (int i=0; i<8; i++)
+	    sectors[i] = new byte[sectorSize];
+	runConcurrently(disk, first, sectors, false);
+
+	for (int i=0; i<8; i++)
+	    for (int j=0; j<sectorSize; j++)
+		Lib.assertTrue(sectors[i][j] == (byte) (i + j),
+			       "merged request moved the wrong data");
+	Lib.assertTrue(disk.numMerged > merged, "no requests were merged");
+    }
+
+    private static void runConcurrently(final SynchDisk disk, final int first,
+					final byte[][] sectors,
+					final boolean writing) {
+	KThread[] threads = new KThread[sectors.length];
+	for (int i=0; i<sectors.length; i++) {
+	    final int which = (i*3) % sectors.length;
+	    if (writing) {
+		for (int j=0; j<sectors[which].length; j++)
+		    sectors[which][j] = (byte) (which + j);
+	    }
+
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			if (writing)
+			    disk.write(first + which, 1, sectors[which], 0);
+			else
+			    disk.read(first + which, 1, sectors[which], 0);
+		    }
+		}).setName("disk test " + which);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    private Disk disk;
+    private DiskScheduler scheduler;
+    private int maxMerge;
+
+    /** The requests being transferred, or <tt>null</tt> if the disk is idle. */
+    private LinkedList<DiskScheduler.Request> current = null;
+    private int currentStart, currentOffset;
+    private byte[] currentData;
+    /** The sector after the last one transferred. */
+    private int head = 0;
+
+    private int numRequests = 0, numTransfers = 0, numMerged = 0;
+    private long numTracksCrossed = 0;
+
+    private static final char dbgDisk = 'd';
+}
@@ -14,8 +14,10 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.   
+     * Initialize this kernel. Creates a scheduler, the first thread, an
+     * alarm, and the deferred work queue, and enables interrupts. Creates a
+     * file system if necessary, and puts a buffer cache in front of it if
+     * <tt>ThreadedKernel.bufferCacheBlocks</tt> is set.
      */
     public void initialize(String[] args) {
 	// set scheduler
@@ -36,7 +38,28 @@ public class ThreadedKernel extends Kernel {
 
 	alarm  = new Alarm();
 
+	if (Machine.disk() != null)
+	    disk = new SynchDisk(Machine.disk());
+
+	workQueue = new WorkQueue("deferred",
+				  Config.getInteger("ThreadedKernel.workers", 1));
+
+	int cacheBlocks = Config.getInteger("ThreadedKernel.bufferCacheBlocks",
+					    0);
+	if (fileSystem != null && cacheBlocks > 0) {
+	    bufferCache = new BufferCache(
+		fileSystem, cacheBlocks,
+		!Config.getString("ThreadedKernel.bufferCachePolicy", "2q")
+		.equals("lru"),
+		Config.getInteger("ThreadedKernel.bufferFlushInterval", 20000),
+		Config.getInteger("ThreadedKernel.readAheadBlocks", 8));
+	    fileSystem = bufferCache;
+	}
+
 	Machine.interrupt().enable();
+
+	if (bufferCache != null)
+	    bufferCache.start();
     }
 
     /**
@@ -51,7 +74,17 @@ public class ThreadedKernel extends Kernel {
 //	//Testing for condition2
 //	Condition2.selfTest();
 //	SynchList.selfTest();
+//	Channel.selfTest();
+//	ReadWriteLock.selfTest();
+//	Barrier.selfTest();
+//	CountDownLatch.selfTest();
+//	BoundedQueue.selfTest();
+//	WorkQueue.selfTest();
 //	PriorityScheduler.selfTest();
+//	BufferCache.selfTest();
+//	SynchDisk.selfTest();
+//	ElevatorDiskScheduler.selfTest();
+//	DeadlineDiskScheduler.selfTest();
 //	if (Machine.bank() != null) {
 //	    ElevatorBank.selfTest();
 //	}
@@ -69,6 +102,13 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (bufferCache != null) {
+	    bufferCache.flush();
+	    bufferCache.report();
+	}
+	if (disk != null)
+	    disk.report();
+
 	Machine.halt();
     }
 
@@ -78,6 +118,12 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** The buffer cache in front of the file system, if there is one. */
+    public static BufferCache bufferCache = null;
+    /** Globally accessible reference to the disk driver, if there is a disk. */
+    public static SynchDisk disk = null;
+    /** Globally accessible reference to the deferred work queue. */
+    public static WorkQueue workQueue = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
@@ -87,4 +133,10 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static Channel dummy8 = null;
+    private static ReadWriteLock dummy9 = null;
+    private static Barrier dummy10 = null;
+    private static CountDownLatch dummy11 = null;
+    private static BoundedQueue<?> dummy12 = null;
+    private static WorkQueue dummy13 = null;
 }
@@ -0,0 +1,195 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * A queue of deferred work, in the style of a UNIX bottom half.
+ *
+ * <p>
+ * An interrupt handler cannot acquire a lock or wait, so it should only do
+ * the minimum needed to service the device and then <tt>schedule()</tt> the
+ * rest of the work. Scheduled work items run later with interrupts enabled,
+ * either on one of the queue's worker threads, or on whichever thread calls
+ * <tt>runPending()</tt> first. The user kernel calls <tt>runPending()</tt>
+ * before returning to user mode, so deferred work never waits long behind a
+ * running user process.
+ *
+ * <p>
+ * A work item that is scheduled again while it is still pending only runs
+ * once, so a device may schedule the same handler for every interrupt and
+ * have it process everything that arrived in a single batch. A work item
+ * never runs on two threads at once: one that is scheduled while it is
+ * running stays pending until it returns, and then runs again on the same
+ * thread. Work items may acquire locks, but should not wait for long, since
+ * other pending items run on the same thread after them.
+ */
+public class WorkQueue {
+    /**
+     * Allocate a new work queue and fork its worker threads.
+     *
+     * @param	name	the name of the queue, used to name its workers.
+     * @param	workers	the number of worker threads. Must be positive.
+     */
+    public WorkQueue(String name, int workers) {
+	Lib.assertTrue(workers > 0);
+
+	this.name = name;
+	work = new Semaphore(0);
+	pending = new LinkedList<Runnable>();
+
+	for (int i=0; i<workers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() { worker(); }
+		}).setName(name + " worker " + i).fork();
+	}
+    }
+
+    /**
+     * Queue the specified work item to be run later. May be called from an
+     * interrupt handler. Has no effect if the item is already pending.
+     *
+     * @param	item	the work to run. Must not be <tt>null</tt>.
+     */
+    public void schedule(Runnable item) {
+	Lib.assertTrue(item != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!pending.contains(item)) {
+	    pending.add(item);
+	    Lib.debug(dbgWork, "scheduled work on " + name);
+
+	    // only one idle worker is needed to take the whole batch
+	    if (pending.size() == 1)
+		work.V();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Run every pending work item on the current thread, including any that
+     * are scheduled while doing so, except those already running on another
+     * thread. Must be called with interrupts enabled.
+     *
+     * @return	the number of work items run.
+     */
+    public int runPending() {
+	Lib.assertTrue(Machine.interrupt().enabled());
+
+	int ran = 0;
+
+	while (true) {
+	    Machine.interrupt().disable();
+
+	    Runnable item = null;
+	    for (Runnable candidate : pending) {
+		if (!running.contains(candidate)) {
+		    item = candidate;
+		    break;
+		}
+	    }
+
+	    if (item == null) {
+		Machine.interrupt().enable();
+		return ran;
+	    }
+
+	    pending.remove(item);
+	    running.add(item);
+
+	    Machine.interrupt().enable();
+
+	    item.run();
+	    ran++;
+
+	    Machine.interrupt().disable();
+	    running.remove(item);
+	    Machine.interrupt().enable();
+	}
+    }
+
+    /**
+     * Return the number of work items waiting to run.
+     *
+     * @return	the number of pending work items.
+     */
+    public int size() {
+	return pending.size();
+    }
+
+    private void worker() {
+	while (true) {
+	    work.P();
+
+	    int ran = runPending();
+	    if (ran > 0)
+		Lib.debug(dbgWork, KThread.currentThread().getName() + " ran "
+			  + ran + " work items");
+	}
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	WorkQueue queue = new WorkQueue("test", 2);
+	final int[] runs = new int[1];
+
+	Runnable item = new Runnable() {
+		public void run() { runs[0]++; }
+	    };
+
+	// scheduling a pending item again has no effect
+	boolean intStatus = Machine.interrupt().disable();
+	queue.schedule(item);
+	queue.schedule(item);
+	Machine.interrupt().restore(intStatus);
+
+	Lib.assertTrue(queue.runPending() == 1 && runs[0] == 1);
+
+	// a worker runs the item without our help
+	queue.schedule(item);
+	while (runs[0] < 2)
+	    KThread.yield();
+
+	Lib.assertTrue(queue.size() == 0);
+
+	// an item scheduled while it runs waits for that run to return
+	final int[] active = new int[1];
+	final Semaphore gate = new Semaphore(0);
+	Runnable slow = new Runnable() {
+		public void run() {
+		    Lib.assertTrue(++active[0] == 1);
+		    gate.P();
+		    active[0]--;
+		    runs[0]++;
+		}
+	    };
+
+	queue.schedule(slow);
+	while (active[0] == 0)
+	    KThread.yield();
+
+	queue.schedule(slow);
+	Lib.assertTrue(queue.runPending() == 0 && queue.size() == 1);
+
+	gate.V();
+	while (runs[0] < 3)
+	    KThread.yield();
+	gate.V();
+	while (runs[0] < 4)
+	    KThread.yield();
+    }
+
+    private String name;
+    private Semaphore work;
+    private LinkedList<Runnable> pending;
+    /** The work items running on some thread. */
+    private HashSet<Runnable> running = new HashSet<Runnable>();
+
+    private static final char dbgWork = 'w';
+}
@@ -0,0 +1,93 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A fixed set of kernel buffers, reused for every transfer between a file and
+ * user memory. A transfer larger than a buffer is done in buffer-sized chunks,
+ * so the memory the kernel uses for I/O stays the same however much is
+ * requested, and however many processes are doing I/O at once.
+ *
+ * <p>
+ * <tt>acquire()</tt> waits for a buffer if they are all in use, so every
+ * buffer acquired must be released.
+ */
+public class BufferPool {
+    /**
+     * Allocate a new pool of buffers.
+     *
+     * @param	numBuffers	the number of buffers.
+     * @param	bufferSize	the size of each buffer, in bytes.
+     */
+    public BufferPool(int numBuffers, int bufferSize) {
+	Lib.assertTrue(numBuffers > 0 && bufferSize > 0);
+
+	this.bufferSize = bufferSize;
+
+	for (int i=0; i<numBuffers; i++)
+	    free.add(new byte[bufferSize]);
+    }
+
+    /**
+     * Take a buffer from the pool, waiting for one to be released if they are
+     * all in use. The contents of the buffer are undefined.
+     *
+     * @return	the buffer.
+     */
+    public byte[] acquire() {
+	lock.acquire();
+
+	while (free.isEmpty()) {
+	    numWaits++;
+	    available.sleep();
+	}
+
+	byte[] buffer = free.removeFirst();
+
+	lock.release();
+	return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param	buffer	a buffer returned by <tt>acquire()</tt>.
+     */
+    public void release(byte[] buffer) {
+	Lib.assertTrue(buffer.length == bufferSize);
+
+	lock.acquire();
+	free.add(buffer);
+	available.wake();
+	lock.release();
+    }
+
+    /**
+     * Return the size of each buffer in the pool.
+     *
+     * @return	the number of bytes in a buffer.
+     */
+    public int getBufferSize() {
+	return bufferSize;
+    }
+
+    /**
+     * Return the number of times a thread has had to wait for a buffer.
+     *
+     * @return	the number of waits.
+     */
+    public int getNumWaits() {
+	return numWaits;
+    }
+
+    private int bufferSize;
+    private LinkedList<byte[]> free = new LinkedList<byte[]>();
+
+    private Lock lock = new Lock();
+    private Condition2 available = new Condition2(lock);
+
+    private int numWaits = 0;
+}
@@ -0,0 +1,386 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Tracks which of a fixed number of pages are free, using one bit per page.
+ *
+ * <p>
+ * Pages can be allocated one at a time, as a contiguous run, or as a batch
+ * of any free pages (such as all the frames of a new address space), and a
+ * batch can be freed in one call. All operations disable interrupts rather
+ * than acquiring a lock, so they are safe to call from any thread, and do
+ * not block.
+ *
+ * <p>
+ * Free pages are kept in two sets: pages known to be zero-filled, and
+ * <i>dirty</i> pages that may hold anything. Every page starts out zeroed,
+ * as physical memory is, and becomes dirty when it is freed. Allocations take
+ * dirty pages first, and keep the zeroed pages for
+ * <tt>allocateZeroed()</tt>; a background thread can turn dirty pages back
+ * into zeroed ones with <tt>allocateDirty()</tt> and
+ * <tt>freeZeroed()</tt>.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new page allocator. All pages are initially free.
+     *
+     * @param	numPages	the number of pages to manage.
+     */
+    public PageAllocator(int numPages) {
+	Lib.assertTrue(numPages >= 0);
+
+	this.numPages = numPages;
+	numFree = numPages;
+
+	freeMap = new long[(numPages + 63) / 64];
+	for (int i=0; i<numPages; i++)
+	    freeMap[i/64] |= 1L << (i%64);
+
+	zeroMap = freeMap.clone();
+	numZeroed = numPages;
+    }
+
+    /**
+     * Allocate a single page, whose contents are undefined. A dirty page is
+     * taken if there is one.
+     *
+     * @return	the number of the page allocated, or -1 if no page is free.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int page = findFree(false);
+	if (page == -1)
+	    page = findFree(true);
+
+	if (page != -1)
+	    markUsed(page, 1);
+	else
+	    failures++;
+
+	Machine.interrupt().restore(intStatus);
+	return page;
+    }
+
+    /**
+     * Allocate a single page that is known to be zero-filled.
+     *
+     * @return	the number of the page allocated, or -1 if no free page has
+     *		been zeroed.
+     */
+    public int allocateZeroed() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int page = findFree(true);
+	if (page != -1)
+	    markUsed(page, 1);
+
+	Machine.interrupt().restore(intStatus);
+	return page;
+    }
+
+    /**
+     * Allocate a single dirty page, so that it can be zeroed and returned
+     * with <tt>freeZeroed()</tt>.
+     *
+     * @return	the number of the page allocated, or -1 if every free page has
+     *		been zeroed.
+     */
+    public int allocateDirty() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int page = findFree(false);
+	if (page != -1)
+	    markUsed(page, 1);
+
+	Machine.interrupt().restore(intStatus);
+	return page;
+    }
+
+    /**
+     * Allocate a free page for each element of <i>pages</i>. Either every
+     * element is filled in, or no page is allocated.
+     *
+     * @param	pages	the array in which to store the allocated page numbers.
+     * @return	<tt>true</tt> if the pages were allocated.
+     */
+    public boolean allocate(int[] pages) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean success = (pages.length <= numFree);
+	if (success) {
+	    int word = hint;
+	    for (int i=0; i<pages.length; word = (word + 1) % freeMap.length) {
+		// take every free page in this word before moving on
+		while (freeMap[word] != 0 && i < pages.length) {
+		    int page = word*64 + Long.numberOfTrailingZeros(freeMap[word]);
+		    markUsed(page, 1);
+		    pages[i++] = page;
+		}
+	    }
+	    hint = word;
+	}
+	else {
+	    failures++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return success;
+    }
+
+    /**
+     * Allocate <i>count</i> pages with consecutive page numbers.
+     *
+     * @param	count	the number of pages to allocate. Must be positive.
+     * @return	the number of the first page allocated, or -1 if there is no
+     *		free run that long.
+     */
+    public int allocateContiguous(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = -1;
+	if (count <= numFree) {
+	    int run = 0;
+	    for (int page=0; page<numPages; page++) {
+		if (!isFreePage(page)) {
+		    run = 0;
+		}
+		else if (++run == count) {
+		    first = page - count + 1;
+		    break;
+		}
+	    }
+	}
+
+	if (first != -1)
+	    markUsed(first, count);
+	else
+	    failures++;
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Free a single page.
+     *
+     * @param	page	the page to free. Must currently be allocated.
+     */
+    public void free(int page) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	markFree(page);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free a single page that the caller has zero-filled.
+     *
+     * @param	page	the page to free. Must currently be allocated.
+     */
+    public void freeZeroed(int page) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	markFree(page);
+	zeroMap[page/64] |= 1L << (page%64);
+	numZeroed++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free the first <i>count</i> pages listed in <i>pages</i>.
+     *
+     * @param	pages	the pages to free. Each must currently be allocated.
+     * @param	count	the number of elements of <i>pages</i> to free.
+     */
+    public void free(int[] pages, int count) {
+	Lib.assertTrue(count >= 0 && count <= pages.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<count; i++)
+	    markFree(pages[i]);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free a run of consecutive pages allocated by
+     * <tt>allocateContiguous()</tt>.
+     *
+     * @param	first	the first page of the run.
+     * @param	count	the number of pages in the run.
+     */
+    public void freeContiguous(int first, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<count; i++)
+	    markFree(first + i);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether the specified page is free.
+     *
+     * @param	page	the page to check.
+     * @return	<tt>true</tt> if the page is not allocated.
+     */
+    public boolean isFree(int page) {
+	Lib.assertTrue(page >= 0 && page < numPages);
+
+	return isFreePage(page);
+    }
+
+    /**
+     * Return the total number of pages managed by this allocator.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the number of pages currently free.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of free pages that are known to be zero-filled.
+     *
+     * @return	the number of zeroed pages.
+     */
+    public int getNumZeroed() {
+	return numZeroed;
+    }
+
+    /**
+     * Return the number of allocation requests that could not be satisfied.
+     *
+     * @return	the number of failed allocations.
+     */
+    public int getNumFailures() {
+	return failures;
+    }
+
+    /**
+     * Return the length of the longest run of consecutive free pages, which
+     * is the largest request <tt>allocateContiguous()</tt> can satisfy.
+     *
+     * @return	the length of the longest free run.
+     */
+    public int getLargestFreeRun() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int largest = 0, run = 0;
+	for (int page=0; page<numPages; page++) {
+	    run = isFreePage(page) ? run+1 : 0;
+	    largest = Math.max(largest, run);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return largest;
+    }
+
+    private boolean isFreePage(int page) {
+	return (freeMap[page/64] & (1L << (page%64))) != 0;
+    }
+
+    /**
+     * Find a free page that is zeroed or dirty, as specified, starting at the
+     * word of the last allocation so that repeated allocations do not rescan
+     * the full words at the start of the map.
+     */
+    private int findFree(boolean zeroed) {
+	if ((zeroed ? numZeroed : numFree - numZeroed) == 0)
+	    return -1;
+
+	for (int i=0; i<freeMap.length; i++) {
+	    int word = (hint + i) % freeMap.length;
+	    long bits = freeMap[word] & (zeroed ? zeroMap[word] : ~zeroMap[word]);
+	    if (bits != 0) {
+		hint = word;
+		return word*64 + Long.numberOfTrailingZeros(bits);
+	    }
+	}
+
+	Lib.assertNotReached("free count out of sync with bitmap");
+	return -1;
+    }
+
+    private void markUsed(int first, int count) {
+	for (int page=first; page<first+count; page++) {
+	    Lib.assertTrue(isFreePage(page));
+	    freeMap[page/64] &= ~(1L << (page%64));
+
+	    if ((zeroMap[page/64] & (1L << (page%64))) != 0) {
+		zeroMap[page/64] &= ~(1L << (page%64));
+		numZeroed--;
+	    }
+	}
+
+	numFree -= count;
+    }
+
+    private void markFree(int page) {
+	Lib.assertTrue(page >= 0 && page < numPages && !isFreePage(page));
+
+	freeMap[page/64] |= 1L << (page%64);
+	numFree++;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	PageAllocator allocator = new PageAllocator(130);
+
+	int[] pages = new int[100];
+	Lib.assertTrue(allocator.allocate(pages));
+	Lib.assertTrue(allocator.getNumFree() == 30);
+	Lib.assertTrue(!allocator.allocate(new int[31]));
+
+	// free every other page, leaving no run longer than 30
+	int[] even = new int[50];
+	for (int i=0; i<50; i++)
+	    even[i] = pages[2*i];
+	allocator.free(even, even.length);
+	Lib.assertTrue(allocator.getLargestFreeRun() == 30);
+
+	int first = allocator.allocateContiguous(30);
+	Lib.assertTrue(first == 100 && allocator.allocateContiguous(2) == -1);
+	allocator.freeContiguous(first, 30);
+
+	int page = allocator.allocate();
+	Lib.assertTrue(page != -1 && !allocator.isFree(page));
+	allocator.free(page);
+	Lib.assertTrue(allocator.getNumFree() == 80);
+
+	// every page has been allocated once, so none is known to be zeroed
+	Lib.assertTrue(allocator.getNumZeroed() == 0);
+	page = allocator.allocateDirty();
+	allocator.freeZeroed(page);
+	Lib.assertTrue(allocator.getNumZeroed() == 1);
+	Lib.assertTrue(allocator.allocate() != page);
+	Lib.assertTrue(allocator.allocateZeroed() == page);
+	Lib.assertTrue(allocator.allocateZeroed() == -1);
+    }
+
+    private int numPages;
+    private int numFree;
+    private int numZeroed;
+    private int failures = 0;
+    private int hint = 0;
+    private long[] freeMap;
+    private long[] zeroMap;
+}
@@ -0,0 +1,235 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A sparse, two-level page table, in the format used by
+ * <tt>Processor.setPageDirectory()</tt>.
+ *
+ * <p>
+ * Second-level tables of <tt>Processor.pageTableSize</tt> entries are only
+ * allocated for regions of the address space that contain mapped pages, and
+ * are dropped again once they are empty. The directory itself grows to cover
+ * the highest mapped page. Memory used by a page table is therefore
+ * proportional to the number of pages mapped, rather than to the size of
+ * physical memory.
+ *
+ * <p>
+ * Iterating over a page table visits every mapped entry in order of virtual
+ * page number.
+ */
+public class PageTable implements Iterable<TranslationEntry> {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public PageTable() {
+	directory = new TranslationEntry[1][];
+	counts = new int[1];
+    }
+
+    /**
+     * Return the entry mapping the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry, or <tt>null</tt> if the page is not mapped.
+     */
+    public TranslationEntry get(int vpn) {
+	if (vpn < 0)
+	    return null;
+
+	int dir = vpn / Processor.pageTableSize;
+	if (dir >= directory.length || directory[dir] == null)
+	    return null;
+
+	return directory[dir][vpn % Processor.pageTableSize];
+    }
+
+    /**
+     * Map the specified virtual page, replacing any previous entry.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the new entry. Must not be <tt>null</tt>, and its
+     *			<tt>vpn</tt> must be <i>vpn</i>.
+     */
+    public void set(int vpn, TranslationEntry entry) {
+	Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages);
+	Lib.assertTrue(entry != null && entry.vpn == vpn);
+
+	int dir = vpn / Processor.pageTableSize;
+	if (dir >= directory.length)
+	    grow(dir);
+
+	if (directory[dir] == null)
+	    directory[dir] = new TranslationEntry[Processor.pageTableSize];
+
+	TranslationEntry[] table = directory[dir];
+	if (table[vpn % Processor.pageTableSize] == null) {
+	    counts[dir]++;
+	    numMapped++;
+	}
+	table[vpn % Processor.pageTableSize] = entry;
+    }
+
+    /**
+     * Unmap the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry that was removed, or <tt>null</tt> if the page was
+     *		not mapped.
+     */
+    public TranslationEntry remove(int vpn) {
+	TranslationEntry entry = get(vpn);
+	if (entry == null)
+	    return null;
+
+	int dir = vpn / Processor.pageTableSize;
+	directory[dir][vpn % Processor.pageTableSize] = null;
+	numMapped--;
+
+	if (--counts[dir] == 0)
+	    directory[dir] = null;
+
+	return entry;
+    }
+
+    /**
+     * Unmap every page.
+     */
+    public void clear() {
+	for (int dir=0; dir<directory.length; dir++) {
+	    directory[dir] = null;
+	    counts[dir] = 0;
+	}
+
+	numMapped = 0;
+    }
+
+    /**
+     * Return the number of pages mapped by this page table.
+     *
+     * @return	the number of mapped pages.
+     */
+    public int getNumMapped() {
+	return numMapped;
+    }
+
+    /**
+     * Return the page directory to pass to
+     * <tt>Processor.setPageDirectory()</tt>.
+     *
+     * @return	the page directory.
+     */
+    public TranslationEntry[][] getDirectory() {
+	return directory;
+    }
+
+    /**
+     * Return an iterator over every mapped entry.
+     *
+     * @return	an iterator over the mapped entries.
+     */
+    public Iterator<TranslationEntry> iterator() {
+	return new Iterator<TranslationEntry>() {
+		public boolean hasNext() {
+		    advance();
+		    return dir < directory.length;
+		}
+
+		public TranslationEntry next() {
+		    if (!hasNext())
+			throw new NoSuchElementException();
+
+		    return directory[dir][index++];
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Move to the next mapped entry, skipping empty regions a whole
+		 * second-level table at a time.
+		 */
+		private void advance() {
+		    while (dir < directory.length) {
+			TranslationEntry[] table = directory[dir];
+			if (table != null) {
+			    while (index < table.length && table[index] == null)
+				index++;
+			    if (index < table.length)
+				return;
+			}
+			dir++;
+			index = 0;
+		    }
+		}
+
+		private int dir = 0, index = 0;
+	    };
+    }
+
+    /**
+     * Enlarge the directory so that it has an entry at <i>dir</i>. If the
+     * processor is currently using the old directory, switch it to the new
+     * one.
+     */
+    private void grow(int dir) {
+	int maxDir = (Processor.maxPages + Processor.pageTableSize - 1) /
+	    Processor.pageTableSize;
+	int length = Math.min(Math.max(dir+1, directory.length*2), maxDir);
+
+	TranslationEntry[][] newDirectory = new TranslationEntry[length][];
+	System.arraycopy(directory, 0, newDirectory, 0, directory.length);
+
+	int[] newCounts = new int[length];
+	System.arraycopy(counts, 0, newCounts, 0, counts.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Processor processor = Machine.processor();
+	if (processor != null && !processor.hasTLB() &&
+	    processor.getPageDirectory() == directory)
+	    processor.setPageDirectory(newDirectory);
+
+	directory = newDirectory;
+	counts = newCounts;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	PageTable pageTable = new PageTable();
+
+	int[] vpns = { 0, 1, 200, 5000 };
+	for (int i=0; i<vpns.length; i++)
+	    pageTable.set(vpns[i],
+			  new TranslationEntry(vpns[i], i, true, false, false,
+					       false));
+
+	Lib.assertTrue(pageTable.getNumMapped() == vpns.length);
+	Lib.assertTrue(pageTable.get(200).ppn == 2 && pageTable.get(2) == null);
+
+	int i = 0;
+	for (TranslationEntry entry : pageTable)
+	    Lib.assertTrue(entry.vpn == vpns[i++]);
+	Lib.assertTrue(i == vpns.length);
+
+	Lib.assertTrue(pageTable.remove(5000).ppn == 3);
+	Lib.assertTrue(pageTable.remove(5000) == null);
+	Lib.assertTrue(pageTable.getDirectory()[5000/Processor.pageTableSize]
+		       == null);
+
+	pageTable.clear();
+	Lib.assertTrue(!pageTable.iterator().hasNext());
+    }
+
+    private TranslationEntry[][] directory;
+    private int[] counts;
+    private int numMapped = 0;
+}
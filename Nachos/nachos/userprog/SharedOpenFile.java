@@ -0,0 +1,72 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An open file that is shared by the file descriptors of several processes,
+ * as after a fork. The descriptors share a single file position, kept here,
+ * and the underlying file is closed when the last of them is closed.
+ *
+ * <p>
+ * Each process holds one reference; <tt>share()</tt> adds another, and each
+ * <tt>close()</tt> drops one. The reference count is guarded by disabling
+ * interrupts, like the other kernel data shared between processes.
+ */
+public class SharedOpenFile extends OpenFileWithPosition {
+    /**
+     * Share an open file, starting at the specified position. The new object
+     * holds one reference.
+     *
+     * @param	file		the file to share.
+     * @param	position	the initial file position.
+     */
+    public SharedOpenFile(OpenFile file, int position) {
+	super(file.getFileSystem(), file.getName());
+
+	this.file = file;
+	this.position = position;
+    }
+
+    /**
+     * Add a reference to this file, for another file descriptor.
+     *
+     * @return	this file.
+     */
+    public SharedOpenFile share() {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(references > 0);
+	references++;
+	Machine.interrupt().restore(intStatus);
+
+	return this;
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+	return file.read(pos, buf, offset, length);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+	return file.write(pos, buf, offset, length);
+    }
+
+    public int length() {
+	return file.length();
+    }
+
+    /**
+     * Drop a reference to this file, and close the underlying file if it was
+     * the last.
+     */
+    public void close() {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(references > 0);
+	boolean last = (--references == 0);
+	Machine.interrupt().restore(intStatus);
+
+	if (last)
+	    file.close();
+    }
+
+    private OpenFile file;
+    private int references = 1;
+}
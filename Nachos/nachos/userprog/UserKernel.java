@@ -3,7 +3,8 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
+
+import java.util.Arrays;
 
 /**
  * A kernel that can support multiple user processes.
@@ -34,11 +35,19 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 
-		pageLock = new Lock();
-		for (int i = 0; i < pagesAmount; i++) {
-			pageTable.add(i);
-		}
+		frameAllocator = new PageAllocator(pagesAmount);
+
+		ioBuffers = new BufferPool(Config.getInteger("UserKernel.ioBuffers", 4),
+				Config.getInteger("UserKernel.ioBufferSize", 4 * Processor.pageSize));
 
+		zeroBudget = Config.getInteger("UserKernel.zeroBudget", 4);
+		zeroInterval = Config.getInteger("UserKernel.zeroInterval", 1000);
+		zeroerIdle = new Semaphore(0);
+		new KThread(new Runnable() {
+			public void run() {
+				pageZeroer();
+			}
+		}).setName("page zeroer").fork();
 	}
 
 	/**
@@ -47,6 +56,9 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		//PageAllocator.selfTest();
+		//PageTable.selfTest();
+
 		//System.out.println("Testing the readVirtualMemory with empty pageTable.");
 		//System.out.println("Should return error or null");
 
@@ -86,6 +98,10 @@ public class UserKernel extends ThreadedKernel {
 	 * class). If the exception involves a bad virtual address (e.g. page fault, TLB
 	 * miss, read-only, bus error, or address error), the processor's BadVAddr
 	 * register identifies the virtual address that caused the exception.
+	 *
+	 * <p>
+	 * Before returning to user mode, any work deferred by interrupt handlers
+	 * is run on the current thread.
 	 */
 	public void exceptionHandler() {
 		Lib.assertTrue(KThread.currentThread() instanceof UThread);
@@ -93,24 +109,66 @@ public class UserKernel extends ThreadedKernel {
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
 		process.handleException(cause);
+
+		workQueue.runPending();
 	}
 
+	/**
+	 * Allocate a free physical page.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
 	public static int getPage() {
-		int pageNumber = -1;
+		return frameAllocator.allocate();
+	}
 
-		Machine.interrupt().disable();
-		if (pageTable.isEmpty() == false)
-			pageNumber = pageTable.removeFirst();
-		Machine.interrupt().enable();
-		return pageNumber;
+	/**
+	 * Allocate a free physical page filled with zeros. A page already zeroed by
+	 * the page zeroer is taken if there is one; otherwise a free page is zeroed
+	 * now.
+	 *
+	 * @return the physical page number, or -1 if no page is free.
+	 */
+	public static int getZeroedPage() {
+		int ppn = frameAllocator.allocateZeroed();
+		if (ppn != -1)
+			return ppn;
+
+		ppn = frameAllocator.allocate();
+		if (ppn != -1)
+			zeroPage(ppn);
+		return ppn;
+	}
+
+	/**
+	 * Fill a physical page with zeros.
+	 *
+	 * @param ppn
+	 *            the physical page number.
+	 */
+	public static void zeroPage(int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int pageSize = Processor.pageSize;
+		Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+	}
+
+	/**
+	 * Allocate a free physical page for each element of <tt>frames</tt>. Either
+	 * every element is filled in, or no page is allocated.
+	 *
+	 * @param frames
+	 *            the array in which to store the physical page numbers.
+	 * @return <tt>true</tt> if the pages were allocated.
+	 */
+	public static boolean getPages(int[] frames) {
+		return frameAllocator.allocate(frames);
 	}
 
 	//add a page to pageTable
 	public static void addAPage(int pageNum) {
 		Lib.assertTrue(pageNum >= 0 && pageNum < Machine.processor().getNumPhysPages());
-		Machine.interrupt().disable();
-		pageTable.add(pageNum);
-		Machine.interrupt().enable();
+		frameAllocator.free(pageNum);
+		wakePageZeroer();
 	}
 
 	/**
@@ -136,14 +194,68 @@ public class UserKernel extends ThreadedKernel {
 
 	//delete the page from pageTable
 	public static boolean deletePage(int ppn) {
-		boolean value = false;
+		frameAllocator.free(ppn);
+		wakePageZeroer();
+		return true;
+	}
+
+	/**
+	 * Free the first <tt>count</tt> physical pages listed in <tt>frames</tt>.
+	 *
+	 * @param frames
+	 *            the physical page numbers to free.
+	 * @param count
+	 *            the number of elements of <tt>frames</tt> to free.
+	 */
+	public static void deletePages(int[] frames, int count) {
+		frameAllocator.free(frames, count);
+		wakePageZeroer();
+	}
+
+	/**
+	 * The body of the page zeroer. It zeros the dirty free pages one at a time,
+	 * and sleeps when every free page is zeroed, so that pages taken by
+	 * <tt>getZeroedPage()</tt> usually need no clearing. To bound the time it
+	 * takes from user processes whatever the scheduler, it zeros at most
+	 * <tt>UserKernel.zeroBudget</tt> pages at a time, and then sleeps on the
+	 * alarm for <tt>UserKernel.zeroInterval</tt> ticks.
+	 */
+	private static void pageZeroer() {
+		int budget = zeroBudget;
+
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+			int ppn = frameAllocator.allocateDirty();
+			if (ppn == -1) {
+				zeroerSleeping = true;
+				zeroerIdle.P();
+				budget = zeroBudget;
+			}
+			Machine.interrupt().restore(intStatus);
+
+			if (ppn == -1)
+				continue;
 
-		pageLock.acquire();
-		pageTable.add(new Integer(ppn));
-		value = true;
-		pageLock.release();
+			zeroPage(ppn);
+			frameAllocator.freeZeroed(ppn);
 
-		return value;
+			if (--budget == 0) {
+				ThreadedKernel.alarm.waitUntil(zeroInterval);
+				budget = zeroBudget;
+			}
+		}
+	}
+
+	/**
+	 * Wake the page zeroer, if it is sleeping, to zero newly freed pages.
+	 */
+	private static void wakePageZeroer() {
+		boolean intStatus = Machine.interrupt().disable();
+		if (zeroerSleeping) {
+			zeroerSleeping = false;
+			zeroerIdle.V();
+		}
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -159,9 +271,19 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
-	private static LinkedList<Integer> pageTable = new LinkedList<Integer>();
+	/** The allocator for free physical pages. */
+	public static PageAllocator frameAllocator;
+
+	/** The buffers used for transfers between files and user memory. */
+	public static BufferPool ioBuffers;
 
-	private static Lock pageLock;
+	/** The page zeroer sleeps on this when there is nothing to zero. */
+	private static Semaphore zeroerIdle;
+	private static boolean zeroerSleeping = false;
+	/** The number of pages the page zeroer clears before resting. */
+	private static int zeroBudget;
+	/** The number of ticks the page zeroer rests for. */
+	private static long zeroInterval;
 
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
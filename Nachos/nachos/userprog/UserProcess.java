@@ -2,6 +2,7 @@ package nachos.userprog;
 
 import nachos.machine.*;
 import nachos.threads.*;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.util.*;
 
@@ -23,15 +24,8 @@ public class UserProcess {
 	 */
 
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
+		pageTable = new PageTable();
 
-		for (int i = 0; i < numPhysPages; i++) {
-			pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
-		}
-
-		//create a new lock for the function implementation
-		lock = new Lock();
 		boolean stat = Machine.interrupt().disable();
 		lock1.acquire();
 		// processID = UserKernel.numProcess++; // LEX please check this
@@ -98,45 +92,99 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		Machine.processor().setPageDirectory(pageTable.getDirectory());
 	}
 
 	protected boolean didAllocate(int vpn, int desiredPages, boolean readOnly) {
+		//if the pages would run past the end of the address space, return false
+		if (vpn < 0 || vpn + desiredPages > Processor.maxPages)
+			return false;
 
-		LinkedList<TranslationEntry> allocated = new LinkedList<TranslationEntry>();
+		//get all the physical pages at once, or none of them
+		int[] frames = new int[desiredPages];
+		if (!UserKernel.getPages(frames))
+			return false;
+
+		for (int i = 0; i < desiredPages; i++)
+			pageTable.set(vpn + i, new TranslationEntry(vpn + i, frames[i], true, readOnly, false, false));
+		numPages += desiredPages;
 
-		for (int i = 0; i < desiredPages; i++) {
-			//if virtual page number is longer than pageTable, return false
-			if (vpn >= pageTable.length)
-				return false;
-			//get the physical page number
-			int ppn = UserKernel.getPage();
-			//if free, add it to LinkedList and increase the number of pages already used and return true
-			if (ppn != -1) {
-				TranslationEntry a = new TranslationEntry(vpn + i, ppn, true, readOnly, false, false);
-				allocated.add(a);
-				pageTable[vpn + i] = a;
-				++numPages;
-			}
-			//if already allocated, delete the page and decrement the number of pages already used and return false
-			else {
-				for (TranslationEntry te : allocated) {
-					pageTable[te.vpn] = new TranslationEntry(te.vpn, 0, false, false, false, false);
-					UserKernel.deletePage(te.ppn);
-					--numPages;
-				}
-				return false;
-			}
-		}
 		return true;
 	}
 
+	/**
+	 * Free every physical page mapped by this process in one batch, and unmap
+	 * them from its page table.
+	 */
+	protected void releasePages() {
+		int[] frames = new int[pageTable.getNumMapped()];
+		int count = 0;
+
+		for (TranslationEntry entry : pageTable)
+			if (entry.valid)
+				frames[count++] = entry.ppn;
+		pageTable.clear();
+
+		UserKernel.deletePages(frames, count);
+		numPages = 0;
+	}
+
+	/**
+	 * Find the page table entry for the specified virtual page so that the
+	 * kernel can copy to or from it, and keep the page in memory until
+	 * <tt>unpinPage()</tt> is called. Called by <tt>readVirtualMemory()</tt>
+	 * and <tt>writeVirtualMemory()</tt> for each page they touch.
+	 * 
+	 * @param vpn
+	 *            the virtual page to access.
+	 * @param writing
+	 *            <tt>true</tt> if the kernel will write to the page.
+	 * @return the entry for the page, or <tt>null</tt> if the page is not
+	 *         mapped, or is read-only and <tt>writing</tt> is set.
+	 */
+	protected TranslationEntry pinPage(int vpn, boolean writing) {
+		TranslationEntry entry = pageTable.get(vpn);
+		if (entry == null || !entry.valid || (writing && entry.readOnly))
+			return null;
+
+		return entry;
+	}
+
+	/**
+	 * Release a page returned by <tt>pinPage()</tt>.
+	 * 
+	 * @param entry
+	 *            the entry returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(TranslationEntry entry) {
+	}
+
+	/**
+	 * Walk a range of this process's virtual memory one page at a time, for
+	 * copying directly between main memory and a file or device. The walk
+	 * stops early at the first page that is not mapped, or is read-only and
+	 * <tt>writing</tt> is set.
+	 * 
+	 * @param vaddr
+	 *            the first byte of virtual memory in the range.
+	 * @param length
+	 *            the number of bytes in the range.
+	 * @param writing
+	 *            <tt>true</tt> if the kernel will write to the range.
+	 * @return an iterator over the pieces of the range.
+	 */
+	public VirtualMemoryIterator iterateVirtualMemory(int vaddr, int length,
+			boolean writing) {
+		return new VirtualMemoryIterator(this, vaddr, length, writing);
+	}
+
 	/**
 	 * Read a null-terminated string from this process's virtual memory. Read at
 	 * most <tt>maxLength + 1</tt> bytes from the specified address, search for
 	 * the null terminator, and convert it to a <tt>java.lang.String</tt>,
 	 * without including the null terminator. If no null terminator is found,
-	 * returns <tt>null</tt>.
+	 * returns <tt>null</tt>. Memory is scanned a page at a time, and nothing
+	 * past the terminator is read.
 	 * 
 	 * @param vaddr
 	 *            the starting virtual address of the null-terminated string.
@@ -149,13 +197,20 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+		byte[] memory = Machine.processor().getMemory();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		VirtualMemoryIterator range = iterateVirtualMemory(vaddr, maxLength + 1, false);
+		while (range.next()) {
+			int start = range.getAddress(), end = start + range.getLength();
+			for (int i = start; i < end; i++) {
+				if (memory[i] == 0) {
+					bytes.write(memory, start, i - start);
+					range.close();
+					return bytes.toString();
+				}
+			}
+			bytes.write(memory, start, end - start);
 		}
 
 		return null;
@@ -196,62 +251,15 @@ public class UserProcess {
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		//make sure that offset and length are not negative values and they don't exceed length of array being stored to
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		
-		//If there is nothing in pageTable, return null
-		if(numPages == 0) {
-			Lib.debug(dbgProcess,  "Read Virtual Memory: Empty pageTable");
-			return 0;
-		}
 
-		//store the array of main memory
 		byte[] memory = Machine.processor().getMemory();
 
-		//initialize the number of bytes transfered to 0 and the position of the last byte
-		int transfer = 0;
-		int end = vaddr + length - 1;
-		
-		//check if the first byte is non-negative or if the address of the page being read into is within the position of last byte
-		if (vaddr < 0 || end > Machine.processor().makeAddress(numPages - 1, pageSize - 1)) {
-			Lib.debug(dbgProcess, "Read Vritual Memory: Invalid Address");
-			return 0;
-		}
-
-		//start reading the memory
-		for (int i = Machine.processor().pageFromAddress(vaddr); i <= Machine.processor().pageFromAddress(end); i++) {
-			//break if the address is negative, exceeds the allowed range, empty, or referencing to invalid page
-			if ((i < 0 || i > pageTable.length) || pageTable == null || !pageTable[i].valid)
-				break;
-			
-			//store the address of byte currently being referenced
-			int startAddress = Machine.processor().makeAddress(i, 0);
-			//store the end address of byte currently being referenced
-			int endAddress = Machine.processor().makeAddress(i, pageSize - 1);
-			int amount = 0;
-			int addressOffset;
-			
-			//depending on the value of startAddress and endAddress compared to allowed area of memory, set the values
-			if (vaddr > startAddress && end < endAddress) {
-				addressOffset = vaddr - startAddress;
-				amount = length;
-			} else if (vaddr <= startAddress && end < endAddress) {
-				addressOffset = 0;
-				amount = end - startAddress + 1;
-			} else if (vaddr > startAddress && end >= endAddress) {
-				addressOffset = vaddr - startAddress;
-				amount = endAddress - vaddr + 1;
-			} else {
-				addressOffset = 0;
-				amount = pageSize;
-			}
-			
-			//concatenate the physical address using the physical page number and address offset
-			int paddr = Machine.processor().makeAddress(pageTable[i].ppn, addressOffset);
-			System.arraycopy(memory, paddr, data, offset + transfer, amount);
-			//update teh amount being transfered
-			transfer += amount;
-		}
+		VirtualMemoryIterator range = iterateVirtualMemory(vaddr, length, false);
+		while (range.next())
+			System.arraycopy(memory, range.getAddress(), data,
+					offset + range.getOffset(), range.getLength());
 
-		return transfer;
+		return range.getOffset();
 	}
 
 	/**
@@ -288,49 +296,15 @@ public class UserProcess {
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		if(numPages >= pageTable.length) {
-			Lib.debug(dbgProcess, "Write Virtual Memory: pageTable full");
-			return 0;
-		}
 
 		byte[] memory = Machine.processor().getMemory();
 
-		int end = vaddr + length - 1;
-		int transfer = 0;
-
-		if (vaddr < 0 || end > Machine.processor().makeAddress(numPages - 1, pageSize - 1)) {// ||Machine.processor().pageFromAddress(vaddr) < 0) {
-			Lib.debug(dbgProcess, "Write Vritual Memory: Invalid Address");
-			return 0;
-		}
+		VirtualMemoryIterator range = iterateVirtualMemory(vaddr, length, true);
+		while (range.next())
+			System.arraycopy(data, offset + range.getOffset(), memory,
+					range.getAddress(), range.getLength());
 
-		for (int i = Machine.processor().pageFromAddress(vaddr); i <= Machine.processor().pageFromAddress(end); i++) {
-			if ((i < 0 || i > pageTable.length) || pageTable == null || pageTable[i].readOnly || !pageTable[i].valid)
-				break;
-
-			int startAddress = Machine.processor().makeAddress(i, 0);
-			int endAddress = Machine.processor().makeAddress(i, pageSize - 1);
-			int amount = 0;
-			int addressOffset;
-
-			if (vaddr > startAddress && end < endAddress) {
-				addressOffset = vaddr - startAddress;
-				amount = length;
-			} else if (vaddr <= startAddress && end < endAddress) {
-				addressOffset = 0;
-				amount = end - startAddress + 1;
-			} else if (vaddr > startAddress && end >= endAddress) {
-				addressOffset = vaddr - startAddress;
-				amount = endAddress - vaddr + 1;
-			} else {
-				addressOffset = 0;
-				amount = pageSize;
-			}
-
-			int paddr = Machine.processor().makeAddress(pageTable[i].ppn, addressOffset);
-			System.arraycopy(data, offset + transfer, memory, paddr, amount);
-			transfer += amount;
-		}
-		return transfer;
+		return range.getOffset();
 	}
 
 	/**
@@ -372,12 +346,7 @@ public class UserProcess {
 				return false;
 			}
 			if (!didAllocate(numPages, section.getLength(), section.isReadOnly())) {
-				for (int i = 0; i < pageTable.length; ++i)
-					if (pageTable[i].valid) {
-						UserKernel.deletePage(pageTable[i].ppn);
-						pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
-					}
-				numPages = 0;
+				releasePages();
 				return false;
 			}
 		}
@@ -400,14 +369,9 @@ public class UserProcess {
 		initialPC = coff.getEntryPoint();
 
 		// next comes the stack; stack pointer initially points to top of it
-		boolean stackAllocation = didAllocate(numPages, stackPages, false);
+		boolean stackAllocation = allocateStack();
 		if (!stackAllocation) {
-			for (int i = 0; i < pageTable.length; ++i)
-				if (pageTable[i].valid) {
-					UserKernel.deletePage(pageTable[i].ppn);
-					pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
-				}
-			numPages = 0;
+			releasePages();
 			return false;
 		}
 
@@ -416,12 +380,7 @@ public class UserProcess {
 		// and finally reserve 1 page for arguments
 		boolean argumentAllocation = didAllocate(numPages, 1, false);
 		if (!argumentAllocation) {
-			for (int i = 0; i < pageTable.length; ++i)
-				if (pageTable[i].valid) {
-					UserKernel.deletePage(pageTable[i].ppn);
-					pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
-				}
-			numPages = 0;
+			releasePages();
 			return false;
 		}
 
@@ -444,6 +403,17 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Map the stack, starting at page <tt>numPages</tt>, just past the
+	 * sections. The stack pointer starts at the top of it. The stack has a
+	 * fixed size of <tt>stackPages</tt> pages, and there is no room for a heap.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean allocateStack() {
+		return didAllocate(numPages, stackPages, false);
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -468,7 +438,7 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				TranslationEntry te = pageTable[vpn];
+				TranslationEntry te = pageTable.get(vpn);
 				if (te == null)
 					return false;
 				section.loadPage(i, te.ppn);
@@ -482,23 +452,33 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		int i;
-		for (i = 0; i < pageTable.length; ++i)
-			if (pageTable[i].valid) {
-				UserKernel.deletePage(pageTable[i].ppn);
-				pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
-			}
-		numPages = 0;
-		for (i = 0; i < 16; i++) {
+		releasePages();
+		for (int i = 0; i < 16; i++) {
 			if (fileList[i] != null) {
 				fileList[i].close();
 				fileList[i] = null;
 			}
 		}
-		coff.close();
+		releaseCoff();
 
 	}
 
+	/**
+	 * Close the executable, unless a process forked from this one is still
+	 * running it.
+	 */
+	protected void releaseCoff() {
+		boolean intStatus = Machine.interrupt().disable();
+		Integer users = coffUsers.get(coff);
+		if (users == null)
+			coff.close();
+		else if (users == 2)
+			coffUsers.remove(coff);
+		else
+			coffUsers.put(coff, users - 1);
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
@@ -509,6 +489,14 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked child resumes where its parent called fork()
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -523,26 +511,27 @@ public class UserProcess {
 	}
 
 	/**
-	 * Handle the halt() system call.
+	 * Handle the halt() system call. The kernel is terminated rather than the
+	 * machine halted directly, so that it can write back cached file data.
 	 */
 	private int handleHalt() {
 		if (processID != ROOTPROCESS) {
 			return -1;
 		}
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
 	}
 
-	private int handleExit(int status) 
+	protected int handleExit(int status) 
 	{
 		if (parentProcess != null) 
 		{
 			//acquire the lock for the parent process
-			lock.acquire(); // LEX please check this
+			lock.acquireWrite(); // LEX please check this
 			parentProcess.childProcessStatus.put(processID, status);
-			lock.release(); // LEX please check this
+			lock.releaseWrite(); // LEX please check this
 
 		}
 		
@@ -656,6 +645,98 @@ public class UserProcess {
 
 	}
 
+	/**
+	 * Handle the fork() system call. The child gets a copy of this process's
+	 * address space (see <tt>copyAddressSpace()</tt>), shares its executable
+	 * and open files, and starts with a copy of its registers, so that it
+	 * resumes at the return from fork() with 0 in $v0.
+	 * 
+	 * @return the child's process ID, or -1 if it could not be created.
+	 */
+	private int handleFork() {
+		UserProcess child = UserProcess.newUserProcess();
+
+		if (!copyAddressSpace(child)) {
+			Lib.debug(dbgProcess, "handleFork: not enough memory for the child");
+			for (int i = 0; i < MAX_FILES; i++) {
+				if (child.fileList[i] != null)
+					child.fileList[i].close();
+			}
+			return -1;
+		}
+
+		// share the executable, which stays open until both have exited
+		boolean intStatus = Machine.interrupt().disable();
+		Integer users = coffUsers.get(coff);
+		coffUsers.put(coff, (users == null) ? 2 : users + 1);
+		Machine.interrupt().restore(intStatus);
+
+		child.coff = coff;
+		child.initialPC = initialPC;
+		child.initialSP = initialSP;
+		child.argc = argc;
+		child.argv = argv;
+
+		// the console descriptors are the child's own; the others share
+		// their file and position with this process
+		for (int i = 0; i < MAX_FILES; i++) {
+			if (i == STDINPUT || i == STDOUTPUT) {
+				if (fileList[i] == null && child.fileList[i] != null) {
+					child.fileList[i].close();
+					child.fileList[i] = null;
+				}
+			}
+			else if (fileList[i] != null) {
+				if (!(fileList[i] instanceof SharedOpenFile))
+					fileList[i] = new SharedOpenFile(fileList[i], filePosList[i]);
+				child.fileList[i] = ((SharedOpenFile) fileList[i]).share();
+			}
+		}
+
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+
+		child.parentProcess = this;
+		childProcesses.add(child);
+
+		child.thread = (UThread) (new UThread(child).setName(thread.getName()));
+		child.thread.fork();
+
+		return child.processID;
+	}
+
+	/**
+	 * Give a newly created process a copy of this process's address space,
+	 * for fork(). Every mapped page is copied into a newly allocated physical
+	 * page.
+	 * 
+	 * @param child
+	 *            the new process, which has no pages mapped.
+	 * @return <tt>true</tt> if successful, or <tt>false</tt> if there was not
+	 *         enough memory, in which case <i>child</i> has no pages mapped.
+	 */
+	protected boolean copyAddressSpace(UserProcess child) {
+		int[] frames = new int[pageTable.getNumMapped()];
+		if (!UserKernel.getPages(frames))
+			return false;
+
+		byte[] memory = Machine.processor().getMemory();
+		int i = 0;
+		for (TranslationEntry entry : pageTable) {
+			System.arraycopy(memory, entry.ppn * pageSize, memory, frames[i] * pageSize, pageSize);
+			child.pageTable.set(entry.vpn,
+					new TranslationEntry(entry.vpn, frames[i], true, entry.readOnly, false, false));
+			i++;
+		}
+		child.numPages = numPages;
+
+		return true;
+	}
+
 	private int handleJoin(int processID, int statusVAddr) 
 	{
 		//if process ID or virtual Address is out of range
@@ -694,10 +775,10 @@ public class UserProcess {
 		childProcesses.remove(child); // LEX this is out of order but it works
 
 		// critical code
-		lock.acquire();
+		lock.acquireRead();
 		// wait for the lock and get the child process ID
 		Integer status = childProcessStatus.get(child.processID);
-		lock.release();
+		lock.releaseRead();
 		// remove the child from the childProcesses Join List
 		if (status == null) 
 		{
@@ -824,31 +905,44 @@ public class UserProcess {
 	private int handleRead(int fileDescriptor, int vaddr, int size) {
 		// Return -1 if the input is invalid
 		if(size < 0 || (fileDescriptor >= MAX_FILES || fileDescriptor < 0)
-				|| fileList[fileDescriptor] == null) {
+				|| fileList[fileDescriptor] == null || isMapped(fileDescriptor)) {
 			return -1;
 		}
 		
-		// Read up to size bytes and save the number of bytes read
-		byte[] readBuffer = new byte[size];
-		int bytesRead;
-		if(fileDescriptor < 2) { // comment if error
-			bytesRead = fileList[fileDescriptor].read(readBuffer, 0, size); 
-		} // comment if error
-		else {	// comment if error
-			bytesRead = fileList[fileDescriptor].read(filePosList[fileDescriptor], readBuffer, 0, size); // comment if error
-		}	// comment if error
-		
+		// Read up to size bytes, a buffer at a time, into the user's buffer
+		OpenFile file = fileList[fileDescriptor];
+		int position = (fileDescriptor < 2) ? 0 : getFilePosition(fileDescriptor);
+		byte[] buffer = UserKernel.ioBuffers.acquire();
+		int bytesRead = 0;
+
+		while (bytesRead < size) {
+			int chunk = Math.min(size - bytesRead, buffer.length);
+			int amount;
+			if (fileDescriptor < 2)
+				amount = file.read(buffer, 0, chunk);
+			else
+				amount = file.read(position + bytesRead, buffer, 0, chunk);
+			if (amount <= 0)
+				break;
+
+			int copied = writeVirtualMemory(vaddr + bytesRead, buffer, 0, amount);
+			bytesRead += copied;
+			if (copied < chunk)
+				break;
+		}
+
+		UserKernel.ioBuffers.release(buffer);
+
 		// Return -1 if failed to read
-		if(bytesRead == -1 || bytesRead == 0) {
+		if(bytesRead == 0) {
 			return -1;
 		}
-		
-		// Write the buffer into the virtual memory, update file position, and return bytes transferred
-		int bytesTransferred = writeVirtualMemory(vaddr, readBuffer, 0, bytesRead);
-		if(fileDescriptor >= 2) { // comment if error
-			filePosList[fileDescriptor] += bytesTransferred;	// comment if error
-		}	// comment if error
-		return bytesTransferred;
+
+		// Update file position, and return bytes transferred
+		if(fileDescriptor >= 2) {
+			setFilePosition(fileDescriptor, position + bytesRead);
+		}
+		return bytesRead;
 	}
 	
 	/**
@@ -879,27 +973,41 @@ public class UserProcess {
 	private int handleWrite(int fileDescriptor, int vaddr, int size) {
 		// Return -1 if the input is invalid
 		if(size < 0 || (fileDescriptor >= MAX_FILES || fileDescriptor < 0)
-				|| fileList[fileDescriptor] == null) {
+				|| fileList[fileDescriptor] == null || isMapped(fileDescriptor)) {
 			return -1;
 		}
 		
-		// Count number of buffers to write
-		byte[] writeBuffer = new byte[size];
-		int bytesToWrite = readVirtualMemory(vaddr, writeBuffer, 0, size);
-		
-		// Write the file, update file position, and return number of bytes written
-		int bytesWritten;
-		if(fileDescriptor < 2) { // comment if error
-			bytesWritten =  fileList[fileDescriptor].write(writeBuffer, 0, bytesToWrite);
-		}	// comment if error
-		else {	// comment if error
-			bytesWritten =  fileList[fileDescriptor].write(filePosList[fileDescriptor], writeBuffer, 0, bytesToWrite);	// comment if error
-		}	// comment if error
-		if(fileDescriptor >= 2) {	// comment if error
-			filePosList[fileDescriptor] += (bytesWritten > 0) ? bytesWritten : 0;	// comment if error
-		}	// comment if error
-		return (bytesWritten < size && bytesWritten != 0) ? -1 : bytesWritten;	// comment if error
-		// return bytesWritten;	// uncomment if error
+		// Write up to size bytes, a buffer at a time, from the user's buffer
+		OpenFile file = fileList[fileDescriptor];
+		int position = (fileDescriptor < 2) ? 0 : getFilePosition(fileDescriptor);
+		byte[] buffer = UserKernel.ioBuffers.acquire();
+		int bytesWritten = 0;
+
+		while (bytesWritten < size) {
+			int chunk = readVirtualMemory(vaddr + bytesWritten, buffer, 0,
+					Math.min(size - bytesWritten, buffer.length));
+			if (chunk == 0)
+				break;
+
+			int amount;
+			if (fileDescriptor < 2)
+				amount = file.write(buffer, 0, chunk);
+			else
+				amount = file.write(position + bytesWritten, buffer, 0, chunk);
+			if (amount > 0)
+				bytesWritten += amount;
+			if (amount < chunk)
+				break;
+		}
+
+		UserKernel.ioBuffers.release(buffer);
+
+		// Update file position, and return number of bytes written. A short
+		// write reports the bytes that did get written
+		if(fileDescriptor >= 2) {
+			setFilePosition(fileDescriptor, position + bytesWritten);
+		}
+		return (bytesWritten == 0 && size > 0) ? -1 : bytesWritten;
 	}
 	
 	/**
@@ -930,6 +1038,12 @@ public class UserProcess {
 			return -1;
 		}
 		
+		// Write back and remove any mapping of the file; if that fails, the
+		// file stays open and mapped
+		if(isMapped(fileDescriptor) && !unmapFile(fileDescriptor)) {
+			return -1;
+		}
+		
 		// Close and remove the element from the list
 		String fileName = fileList[fileDescriptor].getName();
 		fileList[fileDescriptor].close();
@@ -996,9 +1110,62 @@ public class UserProcess {
 		// return (removeSuccess == true) ? 0 : -1;	// uncomment if error
 	}
 	
+	/**
+	 * Handle the mmap() system call, which maps the file referred to by
+	 * fileDescriptor into the address space starting at address. Mapping files
+	 * needs demand paging, so it is not supported here; <tt>VMProcess</tt>
+	 * overrides this.
+	 * 
+	 * @param fileDescriptor
+	 * @param vaddr
+	 * @return On success, the length of the file. On error, -1.
+	 * 
+	 */
+	protected int handleMmap(int fileDescriptor, int vaddr) {
+		return -1;
+	}
+	
+	/**
+	 * Handle the sbrk() system call, which moves the end of the heap by
+	 * increment bytes. The stack lies just past the sections here, so there is
+	 * no heap; <tt>VMProcess</tt> overrides this.
+	 * 
+	 * @param increment
+	 * @return On success, the previous end of the heap. On error, -1.
+	 * 
+	 */
+	protected int handleSbrk(int increment) {
+		return -1;
+	}
+	
+	/**
+	 * Test whether a file descriptor has been mapped into memory by mmap(). A
+	 * mapped file can not be read or written until it is closed.
+	 * 
+	 * @param fileDescriptor
+	 * @return true if the file is mapped.
+	 * 
+	 */
+	protected boolean isMapped(int fileDescriptor) {
+		return false;
+	}
+	
+	/**
+	 * Remove the mapping of a file descriptor from the address space, writing
+	 * any modified pages back to the file. Called by close() on a mapped file.
+	 * 
+	 * @param fileDescriptor
+	 * @return true if every modified page was written back.
+	 * 
+	 */
+	protected boolean unmapFile(int fileDescriptor) {
+		return true;
+	}
+	
 	
 	protected static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
-			syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9;
+			syscallOpen = 5, syscallRead = 6, syscallWrite = 7, syscallClose = 8, syscallUnlink = 9,
+			syscallMmap = 10, syscallFork = 13, syscallSbrk = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -1052,6 +1219,18 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>void *sbrk(int increment);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall
@@ -1088,6 +1267,12 @@ public class UserProcess {
 			return handleJoin(a0, a1);
 		case syscallExit:
 			return handleExit(a0);
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallFork:
+			return handleFork();
+		case syscallSbrk:
+			return handleSbrk(a0);
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -1130,6 +1315,24 @@ public class UserProcess {
 	/** HashSet of whether the file is to be deleted, not allowing creat or open */
 	private static HashSet<String> fileDeleteList;
 	
+	/**
+	 * Return the position of a file descriptor. A descriptor shared with
+	 * another process by fork() keeps its position in the shared file.
+	 */
+	protected int getFilePosition(int fileDescriptor) {
+		if (fileList[fileDescriptor] instanceof SharedOpenFile)
+			return fileList[fileDescriptor].tell();
+		return filePosList[fileDescriptor];
+	}
+
+	/** Set the position of a file descriptor. */
+	protected void setFilePosition(int fileDescriptor, int position) {
+		if (fileList[fileDescriptor] instanceof SharedOpenFile)
+			fileList[fileDescriptor].seek(position);
+		else
+			filePosList[fileDescriptor] = position;
+	}
+
 	/** Get the next available index for fileList */
 	protected int getAvailIndex() {
 		for(int i = 2; i < MAX_FILES; i++) {
@@ -1149,9 +1352,11 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The number of processes running each executable shared by fork(). */
+	private static HashMap<Coff, Integer> coffUsers = new HashMap<Coff, Integer>();
 
 	/** This process's page table. */
-	protected TranslationEntry[] pageTable;
+	protected PageTable pageTable;
 	/** The number of pages occupied by the program. */
 	protected int numPages;
 
@@ -1160,6 +1365,8 @@ public class UserProcess {
 
 	protected int initialPC, initialSP;
 	protected int argc, argv;
+	/** The registers a forked process starts with, or null if not forked. */
+	private int[] forkRegisters = null;
 
 	protected static final int pageSize = Processor.pageSize;
 	protected static final char dbgProcess = 'a';
@@ -1171,7 +1378,7 @@ public class UserProcess {
 	//PART 3 VARIABLES
 	protected UserProcess parentProcess; //hold parent process
 	protected LinkedList<UserProcess> childProcesses; //maintain list of child processes
-	private static Lock lock; //lock needed for implementation
+	private static ReadWriteLock lock = new ReadWriteLock(); //guards every process's child status table
 	protected UThread thread; //thread needed for joining 
 	protected HashMap<Integer, Integer> childProcessStatus; //maintain child status
 	protected static int counter = 0; //needed to make process ID
@@ -0,0 +1,134 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Walks a range of a process's virtual memory one page at a time, yielding
+ * the physical address and length of each piece of the range. This lets the
+ * kernel copy directly between main memory and a file or device, without an
+ * intermediate buffer.
+ *
+ * <p>
+ * Each piece is pinned with <tt>UserProcess.pinPage()</tt> from the call to
+ * <tt>next()</tt> that returns it until the next call to <tt>next()</tt> or
+ * <tt>close()</tt>, so the kernel may block while using it. The walk stops
+ * early at the first page that cannot be pinned.
+ *
+ * <p>
+ * A typical use is:
+ *
+ * <pre>
+ * VirtualMemoryIterator range = process.iterateVirtualMemory(vaddr, length, true);
+ * while (range.next()) {
+ *     // fill memory[range.getAddress()] .. memory[range.getAddress() + range.getLength() - 1]
+ * }
+ * int transferred = range.getOffset();
+ * </pre>
+ */
+public class VirtualMemoryIterator {
+    /**
+     * Allocate a new iterator over a range of a process's virtual memory.
+     *
+     * @param	process	the process.
+     * @param	vaddr	the first byte of the range.
+     * @param	length	the number of bytes in the range.
+     * @param	writing	<tt>true</tt> if the kernel will write to the range.
+     */
+    VirtualMemoryIterator(UserProcess process, int vaddr, int length,
+			  boolean writing) {
+	Lib.assertTrue(length >= 0);
+
+	this.process = process;
+	this.vaddr = vaddr;
+	this.remaining = (vaddr < 0) ? 0 : length;
+	this.writing = writing;
+    }
+
+    /**
+     * Release the current piece, and move to the next one.
+     *
+     * @return	<tt>true</tt> if there is a next piece, or <tt>false</tt> if the
+     *		end of the range, or a page that could not be pinned, has been
+     *		reached.
+     */
+    public boolean next() {
+	release();
+
+	offset += length;
+	length = 0;
+
+	if (remaining == 0)
+	    return false;
+
+	entry = process.pinPage(Processor.pageFromAddress(vaddr), writing);
+	if (entry == null) {
+	    remaining = 0;
+	    return false;
+	}
+
+	int pageOffset = Processor.offsetFromAddress(vaddr);
+
+	length = Math.min(remaining, pageSize - pageOffset);
+	address = Processor.makeAddress(entry.ppn, pageOffset);
+
+	vaddr += length;
+	remaining -= length;
+	return true;
+    }
+
+    /**
+     * Release the current piece, and end the walk.
+     */
+    public void close() {
+	release();
+	remaining = 0;
+    }
+
+    /**
+     * Return the physical address of the current piece.
+     *
+     * @return	the index in main memory of the first byte of the piece.
+     */
+    public int getAddress() {
+	return address;
+    }
+
+    /**
+     * Return the length of the current piece, which is never more than the
+     * rest of its page.
+     *
+     * @return	the number of bytes in the piece.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Return the number of bytes of the range before the current piece. Once
+     * <tt>next()</tt> has returned <tt>false</tt>, this is the number of bytes
+     * that were walked.
+     *
+     * @return	the offset of the current piece in the range.
+     */
+    public int getOffset() {
+	return offset;
+    }
+
+    private void release() {
+	if (entry != null) {
+	    process.unpinPage(entry);
+	    entry = null;
+	}
+    }
+
+    private UserProcess process;
+    private boolean writing;
+
+    private int vaddr;
+    private int remaining;
+
+    private TranslationEntry entry = null;
+    private int address = 0, length = 0, offset = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,133 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * Adaptive replacement, in the CAR (Clock with Adaptive Replacement) form of
+ * Bansal and Modha, which drives ARC with reference bits instead of
+ * reordering lists on every hit.
+ *
+ * <p>
+ * Resident frames are split between <i>T1</i>, pages referenced once since
+ * they were loaded, and <i>T2</i>, pages referenced again. Each is swept like
+ * a clock: a frame whose used bit is set moves to the tail of <i>T2</i>. The
+ * ghost lists <i>B1</i> and <i>B2</i> remember pages recently evicted from
+ * <i>T1</i> and <i>T2</i>. Loading a page remembered in <i>B1</i> means
+ * <i>T1</i> was too small, and raises the target size <i>p</i> of <i>T1</i>;
+ * loading one from <i>B2</i> lowers it. Victims come from <i>T1</i> while it
+ * is at least <i>p</i> frames long, and from <i>T2</i> otherwise.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ARCPolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	c = numFrames;
+	p = 0;
+
+	pages = new long[numFrames];
+	inT2 = new boolean[numFrames];
+
+	t1 = new LinkedList<Integer>();
+	t2 = new LinkedList<Integer>();
+	b1 = new LinkedHashSet<Long>();
+	b2 = new LinkedHashSet<Long>();
+    }
+
+    public void pageLoaded(int frame, long page) {
+	pages[frame] = page;
+
+	if (b1.contains(page)) {
+	    p = Math.min(p + Math.max(1, b2.size()/b1.size()), c);
+	    b1.remove(page);
+	    inT2[frame] = true;
+	}
+	else if (b2.contains(page)) {
+	    p = Math.max(p - Math.max(1, b1.size()/b2.size()), 0);
+	    b2.remove(page);
+	    inT2[frame] = true;
+	}
+	else {
+	    // a new page: keep the history to at most c pages per side
+	    if (t1.size() + b1.size() >= c)
+		removeOldest(b1);
+	    else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2*c)
+		removeOldest(b2);
+	    inT2[frame] = false;
+	}
+
+	(inT2[frame] ? t2 : t1).add(frame);
+    }
+
+    public void pageRemoved(int frame, boolean evicted) {
+	(inT2[frame] ? t2 : t1).remove((Integer) frame);
+
+	if (evicted) {
+	    LinkedHashSet<Long> ghosts = inT2[frame] ? b2 : b1;
+	    ghosts.add(pages[frame]);
+	    if (ghosts.size() > c)
+		removeOldest(ghosts);
+	}
+    }
+
+    public int chooseVictim(ReferenceBits bits) {
+	// each frame is moved at most twice: once for a pin, once for its
+	// used bit
+	for (int i=0, n=2*(t1.size()+t2.size()); i<n; i++) {
+	    boolean fromT1 = !t1.isEmpty() &&
+		(t1.size() >= Math.max(1, p) || t2.isEmpty());
+	    LinkedList<Integer> list = fromT1 ? t1 : t2;
+	    if (list.isEmpty())
+		return -1;
+
+	    int frame = list.removeFirst();
+
+	    if (!bits.isEvictable(frame)) {
+		list.addLast(frame);
+	    }
+	    else if (bits.isUsed(frame)) {
+		bits.clearUsed(frame);
+		inT2[frame] = true;
+		t2.addLast(frame);
+	    }
+	    else {
+		list.addFirst(frame);
+		return frame;
+	    }
+	}
+
+	// the preferred list may be entirely pinned; take anything evictable
+	for (int frame : t1) {
+	    if (bits.isEvictable(frame))
+		return frame;
+	}
+	for (int frame : t2) {
+	    if (bits.isEvictable(frame))
+		return frame;
+	}
+
+	return -1;
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts) {
+	Iterator<Long> oldest = ghosts.iterator();
+	if (oldest.hasNext()) {
+	    oldest.next();
+	    oldest.remove();
+	}
+    }
+
+    /** The number of frames, and the target size of <i>T1</i>. */
+    private int c, p;
+
+    private long[] pages;
+    private boolean[] inT2;
+
+    private LinkedList<Integer> t1, t2;
+    private LinkedHashSet<Long> b1, b2;
+}
@@ -0,0 +1,50 @@
+package nachos.vm;
+
+/**
+ * The clock algorithm. A hand sweeps over the frames in order; a frame whose
+ * used bit is set has the bit cleared and is passed over, and the first frame
+ * found with its used bit clear is the victim.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	resident = new boolean[numFrames];
+	hand = 0;
+    }
+
+    public void pageLoaded(int frame, long page) {
+	resident[frame] = true;
+    }
+
+    public void pageRemoved(int frame, boolean evicted) {
+	resident[frame] = false;
+    }
+
+    public int chooseVictim(ReferenceBits bits) {
+	// two passes: the first may only clear used bits
+	for (int i=0; i<2*resident.length; i++) {
+	    int frame = hand;
+	    hand = (hand + 1) % resident.length;
+
+	    if (!resident[frame] || !bits.isEvictable(frame))
+		continue;
+
+	    if (bits.isUsed(frame)) {
+		bits.clearUsed(frame);
+		continue;
+	    }
+
+	    return frame;
+	}
+
+	return -1;
+    }
+
+    private boolean[] resident;
+    private int hand;
+}
@@ -0,0 +1,317 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A global table with one entry per physical page, recording which processes
+ * and virtual pages map it, together with a hash index from (process,
+ * virtual page) to physical page.
+ *
+ * <p>
+ * A physical page is usually mapped by a single page of a single process, its
+ * <i>owner</i>, but pages shared copy-on-write after a fork are mapped by
+ * several. Each mapping is a node on its frame's list, and on a chain of the
+ * index. The index is a hash anchor table with at least as many buckets as
+ * frames, so a lookup examines about one mapping on average.
+ *
+ * <p>
+ * An <tt>InvertedPageTable</tt> does no locking of its own; <tt>VMKernel</tt>
+ * only uses it while holding <tt>memoryLock</tt>.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table with every frame unmapped.
+     *
+     * @param	numFrames	the number of physical pages.
+     */
+    public InvertedPageTable(int numFrames) {
+	frames = new Frame[numFrames];
+	for (int i=0; i<numFrames; i++)
+	    frames[i] = new Frame();
+
+	int numBuckets = 1;
+	while (numBuckets < numFrames)
+	    numBuckets *= 2;
+
+	anchors = new Mapping[numBuckets];
+    }
+
+    /**
+     * A page of a process that is mapped to a physical page.
+     */
+    static class Mapping {
+	/** The process. */
+	VMProcess process;
+	/** The process's page table entry for the page. */
+	TranslationEntry entry;
+	/** The physical page. */
+	int ppn;
+
+	/** The next mapping of the same frame. */
+	Mapping nextInFrame;
+	/** The next mapping in the same hash bucket. */
+	private Mapping nextInBucket;
+    }
+
+    /**
+     * The mappings and state of one physical page.
+     */
+    static class Frame {
+	/** Every page mapped to this frame, owner first; null if free. */
+	Mapping mappings = null;
+	/** The number of kernel accesses in progress. */
+	int pinCount = 0;
+	/** Whether the page is being written to swap. */
+	boolean pagingOut = false;
+	/** The shared segment this page belongs to, if any. */
+	SharedSegment segment = null;
+	/** The page number within <tt>segment</tt>. */
+	int segmentPage;
+
+	/**
+	 * Return the process that owns this frame, or null if it is free.
+	 */
+	VMProcess getOwner() {
+	    return (mappings == null) ? null : mappings.process;
+	}
+
+	/**
+	 * Return the owner's page table entry for this frame.
+	 */
+	TranslationEntry getEntry() {
+	    return mappings.entry;
+	}
+
+	/**
+	 * Test whether more than one page is mapped to this frame.
+	 */
+	boolean isShared() {
+	    return mappings != null && mappings.nextInFrame != null;
+	}
+    }
+
+    /**
+     * Return the number of physical pages.
+     *
+     * @return	the number of frames.
+     */
+    public int getNumFrames() {
+	return frames.length;
+    }
+
+    /**
+     * Return the entry for a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the frame's entry.
+     */
+    Frame get(int ppn) {
+	return frames[ppn];
+    }
+
+    /**
+     * Map a page of a process to a physical page, and add it to the index.
+     * If the frame is free, the process becomes its owner; otherwise the
+     * frame becomes shared. The page must not already be mapped.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process.
+     * @param	entry	the process's page table entry for the page.
+     */
+    void insert(int ppn, VMProcess process, TranslationEntry entry) {
+	Frame frame = frames[ppn];
+
+	Mapping mapping = new Mapping();
+	mapping.process = process;
+	mapping.entry = entry;
+	mapping.ppn = ppn;
+
+	if (frame.mappings == null) {
+	    frame.mappings = mapping;
+	}
+	else {
+	    Mapping last = frame.mappings;
+	    while (last.nextInFrame != null)
+		last = last.nextInFrame;
+	    last.nextInFrame = mapping;
+	}
+
+	int bucket = hash(process, entry.vpn);
+	mapping.nextInBucket = anchors[bucket];
+	anchors[bucket] = mapping;
+    }
+
+    /**
+     * Remove the mapping of a page of a process from a physical page, and
+     * from the index. If the owner is removed, the next sharer becomes the
+     * owner.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the frame is now free.
+     */
+    boolean remove(int ppn, VMProcess process, int vpn) {
+	Frame frame = frames[ppn];
+
+	Mapping prev = null, mapping = frame.mappings;
+	while (mapping.process != process || mapping.entry.vpn != vpn) {
+	    prev = mapping;
+	    mapping = mapping.nextInFrame;
+	}
+
+	if (prev == null)
+	    frame.mappings = mapping.nextInFrame;
+	else
+	    prev.nextInFrame = mapping.nextInFrame;
+
+	unlink(mapping);
+
+	if (frame.mappings == null) {
+	    clear(frame);
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Remove every mapping of a physical page, leaving it free.
+     *
+     * @param	ppn	the physical page number.
+     */
+    void removeAll(int ppn) {
+	Frame frame = frames[ppn];
+
+	for (Mapping mapping = frame.mappings; mapping != null;
+	     mapping = mapping.nextInFrame)
+	    unlink(mapping);
+
+	frame.mappings = null;
+	clear(frame);
+    }
+
+    /**
+     * Find the mapping of a page of a process.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the mapping, or <tt>null</tt> if the page is not mapped to any
+     *		frame.
+     */
+    Mapping lookup(VMProcess process, int vpn) {
+	for (Mapping mapping = anchors[hash(process, vpn)]; mapping != null;
+	     mapping = mapping.nextInBucket) {
+	    if (mapping.process == process && mapping.entry.vpn == vpn)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Reset the state of a frame that has just become free, and remove it from
+     * its shared segment.
+     */
+    private void clear(Frame frame) {
+	frame.pagingOut = false;
+
+	if (frame.segment != null) {
+	    frame.segment.setFrame(frame.segmentPage, -1);
+	    frame.segment = null;
+	}
+    }
+
+    private void unlink(Mapping mapping) {
+	int bucket = hash(mapping.process, mapping.entry.vpn);
+
+	if (anchors[bucket] == mapping) {
+	    anchors[bucket] = mapping.nextInBucket;
+	}
+	else {
+	    Mapping prev = anchors[bucket];
+	    while (prev.nextInBucket != mapping)
+		prev = prev.nextInBucket;
+	    prev.nextInBucket = mapping.nextInBucket;
+	}
+    }
+
+    private int hash(VMProcess process, int vpn) {
+	long key = process.getPageKey(vpn);
+	int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+	return (h ^ (h >>> 16)) & (anchors.length - 1);
+    }
+
+    /**
+     * Test that mappings can be found and removed when many of them share a
+     * hash bucket.
+     */
+    public static void selfTest() {
+	InvertedPageTable table = new InvertedPageTable(4);
+	VMProcess[] processes = { VMProcess.newTestProcess(),
+				  VMProcess.newTestProcess() };
+
+	// 16 mappings in 4 buckets; the second process shares the first's
+	// frames copy-on-write
+	TranslationEntry[][] entries = new TranslationEntry[2][8];
+	for (int p=0; p<2; p++) {
+	    for (int vpn=0; vpn<8; vpn++) {
+		entries[p][vpn] = new TranslationEntry(vpn, vpn%4, true, p==1,
+						       false, false);
+		table.insert(vpn%4, processes[p], entries[p][vpn]);
+	    }
+	}
+
+	boolean collided = false;
+	for (int bucket=0; bucket<table.anchors.length; bucket++) {
+	    Mapping mapping = table.anchors[bucket];
+	    if (mapping != null && mapping.nextInBucket != null)
+		collided = true;
+	}
+	Lib.assertTrue(collided);
+
+	for (int p=0; p<2; p++) {
+	    for (int vpn=0; vpn<8; vpn++) {
+		Mapping mapping = table.lookup(processes[p], vpn);
+		Lib.assertTrue(mapping.process == processes[p] &&
+			       mapping.entry == entries[p][vpn] &&
+			       mapping.ppn == vpn%4);
+	    }
+	}
+	Lib.assertTrue(table.lookup(processes[0], 8) == null);
+
+	Frame frame = table.get(0);
+	Lib.assertTrue(frame.getOwner() == processes[0] && frame.isShared());
+
+	// removing the owner passes the frame on to a sharer
+	Lib.assertTrue(!table.remove(0, processes[0], 0));
+	Lib.assertTrue(table.lookup(processes[0], 0) == null);
+	Lib.assertTrue(table.lookup(processes[0], 4).ppn == 0);
+	Lib.assertTrue(!table.remove(0, processes[0], 4));
+	Lib.assertTrue(frame.getOwner() == processes[1]);
+
+	// remove from the heads, middles and tails of the chains in turn
+	for (int vpn=7; vpn>=0; vpn--) {
+	    if (vpn%4 == 0)
+		continue;
+
+	    Lib.assertTrue(!table.remove(vpn%4, processes[1], vpn));
+	    Lib.assertTrue(table.lookup(processes[1], vpn) == null);
+	    Lib.assertTrue(table.lookup(processes[0], vpn) != null);
+	}
+	table.removeAll(0);
+	Lib.assertTrue(table.get(0).getOwner() == null);
+	Lib.assertTrue(table.lookup(processes[1], 0) == null &&
+		       table.lookup(processes[1], 4) == null);
+
+	for (int vpn=1; vpn<8; vpn++) {
+	    if (vpn%4 != 0)
+		Lib.assertTrue(table.remove(vpn%4, processes[0], vpn) == (vpn>3));
+	}
+	for (int bucket=0; bucket<table.anchors.length; bucket++)
+	    Lib.assertTrue(table.anchors[bucket] == null);
+    }
+
+    private Frame[] frames;
+    private Mapping[] anchors;
+}
@@ -0,0 +1,68 @@
+package nachos.vm;
+
+/**
+ * An approximation of least-recently-used replacement, using the aging
+ * algorithm.
+ *
+ * <p>
+ * Each resident frame has an 8-bit age. Whenever a victim is needed, every
+ * age is shifted right one bit, the frame's used bit is shifted in at the
+ * top, and the used bit is cleared. A frame referenced in a recent interval
+ * therefore has a larger age than one referenced only in older intervals, and
+ * the evictable frame with the smallest age is chosen. Ties go to the first
+ * such frame after the previous victim, so that equally old pages are evicted
+ * in turn.
+ */
+public class LRUApproxPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new LRU-approximation policy.
+     */
+    public LRUApproxPolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	resident = new boolean[numFrames];
+	age = new int[numFrames];
+	hand = 0;
+    }
+
+    public void pageLoaded(int frame, long page) {
+	// loading a page counts as a reference to it
+	resident[frame] = true;
+	age[frame] = 0x80;
+    }
+
+    public void pageRemoved(int frame, boolean evicted) {
+	resident[frame] = false;
+    }
+
+    public int chooseVictim(ReferenceBits bits) {
+	for (int frame=0; frame<resident.length; frame++) {
+	    if (!resident[frame])
+		continue;
+
+	    age[frame] >>>= 1;
+	    if (bits.isUsed(frame)) {
+		age[frame] |= 0x80;
+		bits.clearUsed(frame);
+	    }
+	}
+
+	int victim = -1;
+	for (int i=0; i<resident.length; i++) {
+	    int frame = (hand + i) % resident.length;
+	    if (resident[frame] && bits.isEvictable(frame) &&
+		(victim == -1 || age[frame] < age[victim]))
+		victim = frame;
+	}
+
+	if (victim != -1)
+	    hand = (victim + 1) % resident.length;
+
+	return victim;
+    }
+
+    private boolean[] resident;
+    private int[] age;
+    private int hand;
+}
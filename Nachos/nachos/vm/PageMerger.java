@@ -0,0 +1,223 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A kernel thread that looks for physical pages with identical contents and
+ * merges them into a single copy-on-write page, like Linux's KSM. Processes
+ * running the same program often hold many identical pages, such as zeroed
+ * stack pages and data that is initialized the same way.
+ *
+ * <p>
+ * The merger visits the frames in order, a few at a time, and hashes the
+ * contents of each private page it finds. A page whose hash has changed
+ * since its last visit is being written, and is skipped until it settles.
+ * Otherwise its hash is looked up among the pages seen so far in this sweep,
+ * and if one of them has the same contents, the page is merged into it. The
+ * table of hashes is discarded after each sweep, since the pages in it may
+ * have changed since.
+ *
+ * <p>
+ * To bound the time it takes from user processes, the merger visits at most
+ * <tt>VMKernel.mergeBudget</tt> frames each time it wakes, and sleeps for
+ * <tt>VMKernel.mergeInterval</tt> ticks in between.
+ */
+public class PageMerger {
+    /**
+     * Allocate a new page merger.
+     *
+     * @param	numFrames	the number of physical pages.
+     * @param	budget		the number of frames to visit each time.
+     * @param	interval	the number of ticks to sleep in between.
+     */
+    public PageMerger(int numFrames, int budget, int interval) {
+	this.budget = budget;
+	this.interval = interval;
+
+	checksums = new long[numFrames];
+	Arrays.fill(checksums, noChecksum);
+    }
+
+    /**
+     * Start the merger in a new kernel thread.
+     */
+    public void start() {
+	new KThread(new Runnable() {
+		public void run() { mergeLoop(); }
+	    }).setName("page merger").fork();
+    }
+
+    /**
+     * Return the number of pages that have been merged into another, each of
+     * which freed a physical page until one of its sharers wrote to it.
+     *
+     * @return	the number of pages merged.
+     */
+    public int getNumMerged() {
+	return numMerged;
+    }
+
+    /**
+     * Print the merger's statistics, if VM debugging is enabled.
+     */
+    public void report() {
+	Lib.debug(dbgVM, "merge: " + numMerged + " pages saved, " + numScanned
+		  + " frames scanned in " + numSweeps + " sweeps");
+    }
+
+    private void mergeLoop() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(interval);
+
+	    VMKernel.memoryLock.acquire();
+	    for (int i=0; i<budget; i++) {
+		scanFrame(hand);
+
+		hand = (hand + 1) % checksums.length;
+		if (hand == 0) {
+		    candidates.clear();
+		    numSweeps++;
+		}
+	    }
+	    VMKernel.memoryLock.release();
+	}
+    }
+
+    /**
+     * Visit a frame, merging it into an identical page seen earlier in this
+     * sweep if there is one. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     */
+    private void scanFrame(int ppn) {
+	if (!VMKernel.isMergeable(ppn)) {
+	    checksums[ppn] = noChecksum;
+	    return;
+	}
+
+	numScanned++;
+
+	int hash = hashPage(ppn);
+	boolean settled = (checksums[ppn] == hash);
+	checksums[ppn] = hash;
+	if (!settled)
+	    return;
+
+	Integer other = candidates.get(hash);
+	if (other != null && other != ppn && VMKernel.isMergeable(other) &&
+	    samePage(ppn, other)) {
+	    Lib.debug(dbgVM, "merging ppn " + ppn + " into ppn " + other);
+	    VMKernel.mergeFrame(ppn, other);
+	    checksums[ppn] = noChecksum;
+	    numMerged++;
+	}
+	else {
+	    candidates.put(hash, ppn);
+	}
+    }
+
+    private static int hashPage(int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int hash = 1;
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++)
+	    hash = 31*hash + memory[i];
+
+	return hash;
+    }
+
+    private static boolean samePage(int ppn1, int ppn2) {
+	byte[] memory = Machine.processor().getMemory();
+
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[ppn1*pageSize + i] != memory[ppn2*pageSize + i])
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Test that identical heap pages of two processes are merged, and that
+     * writing to the merged page gives the writer its own copy again.
+     */
+    public static void selfTest() {
+	VMProcess[] processes = { VMProcess.newTestProcess(),
+				  VMProcess.newTestProcess() };
+
+	byte[] data = new byte[pageSize];
+	for (int i=0; i<pageSize; i++)
+	    data[i] = (byte) (i*7);
+
+	int[] vaddrs = new int[2];
+	for (int p=0; p<2; p++) {
+	    Lib.assertTrue(processes[p].load("halt.coff", new String[] {}));
+	    vaddrs[p] = processes[p].handleSbrk(pageSize);
+	    Lib.assertTrue(processes[p].writeVirtualMemory(vaddrs[p], data)
+			   == pageSize);
+	}
+
+	// the first sweep only records each page's hash
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	PageMerger merger = new PageMerger(numPhysPages, 0, 0);
+	VMKernel.memoryLock.acquire();
+	for (int sweep=0; sweep<2; sweep++) {
+	    for (int ppn=0; ppn<numPhysPages; ppn++)
+		merger.scanFrame(ppn);
+	    merger.candidates.clear();
+	}
+
+	TranslationEntry[] entries = new TranslationEntry[2];
+	for (int p=0; p<2; p++) {
+	    int vpn = Processor.pageFromAddress(vaddrs[p]);
+	    entries[p] = VMKernel.lookupPage(processes[p], vpn);
+	}
+	int ppn = entries[0].ppn;
+	Lib.assertTrue(merger.getNumMerged() > 0);
+	Lib.assertTrue(entries[1].ppn == ppn && VMKernel.isShared(ppn));
+	Lib.assertTrue(entries[0].readOnly && entries[1].readOnly);
+	VMKernel.memoryLock.release();
+
+	// a write breaks the sharing, and the other process keeps the original
+	byte[] buf = new byte[pageSize];
+	Lib.assertTrue(processes[1].writeVirtualMemory(vaddrs[1] + 1,
+						       new byte[] { 42 }) == 1);
+	Lib.assertTrue(entries[1].ppn != ppn && entries[0].ppn == ppn);
+	Lib.assertTrue(!entries[1].readOnly && entries[0].readOnly);
+	Lib.assertTrue(processes[0].readVirtualMemory(vaddrs[0], buf)
+		       == pageSize && Arrays.equals(buf, data));
+	Lib.assertTrue(processes[1].readVirtualMemory(vaddrs[1], buf)
+		       == pageSize && buf[1] == 42 && buf[2] == data[2]);
+
+	// the last sharer to write keeps the page
+	Lib.assertTrue(processes[0].writeVirtualMemory(vaddrs[0],
+						       new byte[] { 42 }) == 1);
+	Lib.assertTrue(entries[0].ppn == ppn && !entries[0].readOnly);
+
+	for (int p=0; p<2; p++)
+	    processes[p].unloadSections();
+    }
+
+    private int budget;
+    private long interval;
+    private int hand = 0;
+
+    /** The hash of each frame's contents when it was last visited. */
+    private long[] checksums;
+    /** The settled pages seen so far in this sweep, by hash. */
+    private HashMap<Integer, Integer> candidates =
+	new HashMap<Integer, Integer>();
+
+    private int numMerged = 0;
+    private int numScanned = 0;
+    private int numSweeps = 0;
+
+    /** Outside the range of an <tt>int</tt>, so it matches no hash. */
+    private static final long noChecksum = Long.MIN_VALUE;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,100 @@
+package nachos.vm;
+
+/**
+ * Decides which resident page to evict when physical memory is full.
+ *
+ * <p>
+ * A policy tracks the physical pages (<i>frames</i>) it has been told are
+ * filled, and sees references to them only through the <tt>used</tt> and
+ * <tt>dirty</tt> bits that the processor sets in each
+ * <tt>TranslationEntry</tt>, which it reads and clears through a
+ * <tt>ReferenceBits</tt> object. This is all the information a real kernel
+ * has, so the same policy object can run inside <tt>VMKernel</tt> or be
+ * replayed against a recorded trace by <tt>PolicyEvaluator</tt>.
+ *
+ * <p>
+ * Policies do no locking of their own; <tt>VMKernel</tt> only calls them
+ * while holding <tt>memoryLock</tt>. A policy is created with its no-argument
+ * constructor and must be initialized before it is used.
+ *
+ * @see	nachos.vm.VMKernel
+ * @see	nachos.vm.PolicyEvaluator
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Access to the reference state of the frames, supplied by the caller.
+     */
+    public interface ReferenceBits {
+	/**
+	 * Test whether a frame can be evicted now. Pinned frames, and frames
+	 * that are already being evicted, cannot.
+	 *
+	 * @param	frame	the frame to test.
+	 * @return	<tt>true</tt> if the frame may be chosen as a victim.
+	 */
+	public boolean isEvictable(int frame);
+
+	/**
+	 * Test whether the page in a frame has been referenced since its used
+	 * bit was last cleared.
+	 *
+	 * @param	frame	the frame to test.
+	 * @return	the page's used bit.
+	 */
+	public boolean isUsed(int frame);
+
+	/**
+	 * Clear the used bit of the page in a frame.
+	 *
+	 * @param	frame	the frame.
+	 */
+	public void clearUsed(int frame);
+
+	/**
+	 * Test whether the page in a frame has been modified since it was
+	 * filled, and so must be written out if it is evicted.
+	 *
+	 * @param	frame	the frame to test.
+	 * @return	the page's dirty bit.
+	 */
+	public boolean isDirty(int frame);
+    }
+
+    /**
+     * Prepare to manage the specified number of frames, all initially empty.
+     *
+     * @param	numFrames	the number of physical pages.
+     */
+    public void initialize(int numFrames);
+
+    /**
+     * Notify this policy that a frame has been filled.
+     *
+     * @param	frame	the frame.
+     * @param	page	a number identifying the page stored in the frame,
+     *			unique across all address spaces. Policies that
+     *			remember recently evicted pages use it to recognize
+     *			them when they are loaded again.
+     */
+    public void pageLoaded(int frame, long page);
+
+    /**
+     * Notify this policy that a frame no longer holds a page.
+     *
+     * @param	frame	the frame.
+     * @param	evicted	<tt>true</tt> if the page was evicted, and may be
+     *			loaded again, or <tt>false</tt> if it was discarded
+     *			(for example, because its process exited).
+     */
+    public void pageRemoved(int frame, boolean evicted);
+
+    /**
+     * Choose a frame to evict. The frame remains resident, as far as this
+     * policy is concerned, until <tt>pageRemoved()</tt> is called for it.
+     * This method may clear used bits as it goes.
+     *
+     * @param	bits	the reference state of the frames.
+     * @return	the frame to evict, or -1 if no frame can be evicted.
+     */
+    public int chooseVictim(ReferenceBits bits);
+}
@@ -0,0 +1,295 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Replays a recorded page-reference trace against a
+ * <tt>PageReplacementPolicy</tt>, simulating the frame table and the
+ * <tt>used</tt> and <tt>dirty</tt> bits the processor would set, and counts
+ * page faults and writebacks.
+ *
+ * <p>
+ * Run from the command line, the evaluator replays a trace file against
+ * every built-in policy for a range of frame counts, and prints a table of
+ * fault rates:
+ *
+ * <pre>
+ * java nachos.vm.PolicyEvaluator <i>trace</i> [<i>min</i> <i>max</i> [<i>step</i>]]
+ * </pre>
+ *
+ * <p>
+ * Each reference in a trace is a line of the form
+ * <tt>ref <i>pid</i> <i>vpn</i> [w]</tt>, where a trailing <tt>w</tt> marks
+ * a write; other lines are ignored. <tt>VMProcess</tt> prints such a line for
+ * every TLB miss when the <tt>r</tt> debug flag is enabled, so a trace can be
+ * recorded with <tt>nachos -d r ... &gt; trace</tt>. Since a TLB hit is not
+ * seen by the kernel, a recorded trace only contains the references that
+ * missed in the TLB, and does not mark writes.
+ */
+public class PolicyEvaluator implements PageReplacementPolicy.ReferenceBits {
+    /**
+     * Allocate a new evaluator, with every frame initially empty.
+     *
+     * @param	policy		the policy to evaluate. It is initialized by
+     *				this constructor.
+     * @param	numFrames	the number of physical pages to simulate.
+     */
+    public PolicyEvaluator(PageReplacementPolicy policy, int numFrames) {
+	Lib.assertTrue(numFrames > 0);
+
+	this.policy = policy;
+	policy.initialize(numFrames);
+
+	framePages = new long[numFrames];
+	used = new boolean[numFrames];
+	dirty = new boolean[numFrames];
+    }
+
+    /**
+     * Simulate a reference to a page, faulting it in if it is not resident.
+     *
+     * @param	page	the page referenced.
+     * @param	write	<tt>true</tt> if the reference modifies the page.
+     */
+    public void reference(long page, boolean write) {
+	numReferences++;
+
+	Integer resident = residentPages.get(page);
+	if (resident != null) {
+	    used[resident] = true;
+	    dirty[resident] |= write;
+	    return;
+	}
+
+	numFaults++;
+
+	int frame;
+	if (numLoaded < framePages.length) {
+	    frame = numLoaded++;
+	}
+	else {
+	    frame = policy.chooseVictim(this);
+	    Lib.assertTrue(frame != -1, "policy found no victim");
+
+	    if (dirty[frame])
+		numWritebacks++;
+
+	    residentPages.remove(framePages[frame]);
+	    policy.pageRemoved(frame, true);
+	}
+
+	framePages[frame] = page;
+	used[frame] = true;
+	dirty[frame] = write;
+
+	residentPages.put(page, frame);
+	policy.pageLoaded(frame, page);
+    }
+
+    /**
+     * Replay every reference in a trace.
+     *
+     * @param	pages	the pages referenced, in order.
+     * @param	writes	whether each reference is a write.
+     */
+    public void replay(long[] pages, boolean[] writes) {
+	for (int i=0; i<pages.length; i++)
+	    reference(pages[i], writes[i]);
+    }
+
+    public boolean isEvictable(int frame) {
+	return true;
+    }
+
+    public boolean isUsed(int frame) {
+	return used[frame];
+    }
+
+    public void clearUsed(int frame) {
+	used[frame] = false;
+    }
+
+    public boolean isDirty(int frame) {
+	return dirty[frame];
+    }
+
+    /**
+     * Return the number of references replayed.
+     *
+     * @return	the number of references.
+     */
+    public int getNumReferences() {
+	return numReferences;
+    }
+
+    /**
+     * Return the number of references that found their page not resident.
+     *
+     * @return	the number of page faults.
+     */
+    public int getNumFaults() {
+	return numFaults;
+    }
+
+    /**
+     * Return the number of evicted pages that had been modified.
+     *
+     * @return	the number of writebacks.
+     */
+    public int getNumWritebacks() {
+	return numWritebacks;
+    }
+
+    /**
+     * Return a new instance of each built-in policy.
+     *
+     * @return	the built-in policies.
+     */
+    public static PageReplacementPolicy[] builtinPolicies() {
+	return new PageReplacementPolicy[] {
+	    new ClockPolicy(),
+	    new SecondChancePolicy(),
+	    new LRUApproxPolicy(),
+	    new TwoQueuePolicy(),
+	    new ARCPolicy()
+	};
+    }
+
+    /**
+     * Replay a trace file against every built-in policy, for a range of frame
+     * counts, and print the fault rate of each.
+     *
+     * @param	args	the trace file name, optionally followed by the least
+     *			and greatest number of frames, and the step between
+     *			them.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1 && args.length != 3 && args.length != 4) {
+	    System.err.println("usage: java nachos.vm.PolicyEvaluator "
+			       + "trace [min max [step]]");
+	    System.exit(1);
+	}
+
+	ArrayList<Long> pageList = new ArrayList<Long>();
+	ArrayList<Boolean> writeList = new ArrayList<Boolean>();
+	readTrace(args[0], pageList, writeList);
+
+	long[] pages = new long[pageList.size()];
+	boolean[] writes = new boolean[pages.length];
+	for (int i=0; i<pages.length; i++) {
+	    pages[i] = pageList.get(i);
+	    writes[i] = writeList.get(i);
+	}
+
+	int min = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+	int max = (args.length > 1) ? Integer.parseInt(args[2]) : 32;
+	int step = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+
+	System.out.println(pages.length + " references to "
+			   + distinctPages(pages) + " pages");
+
+	System.out.print("frames");
+	for (PageReplacementPolicy policy : builtinPolicies())
+	    System.out.print(pad(policy.getClass().getSimpleName(), 20));
+	System.out.println();
+
+	for (int frames=min; frames<=max; frames+=step) {
+	    System.out.print(pad("" + frames, 6));
+
+	    for (PageReplacementPolicy policy : builtinPolicies()) {
+		PolicyEvaluator evaluator = new PolicyEvaluator(policy, frames);
+		evaluator.replay(pages, writes);
+
+		double rate = (pages.length == 0) ? 0 :
+		    100.0 * evaluator.getNumFaults() / pages.length;
+		System.out.print(pad(String.format("%.2f%% (%d)", rate,
+						   evaluator.getNumFaults()), 20));
+	    }
+	    System.out.println();
+	}
+    }
+
+    /**
+     * Parse the references in a trace file.
+     */
+    private static void readTrace(String fileName, ArrayList<Long> pages,
+				  ArrayList<Boolean> writes)
+	throws IOException {
+	BufferedReader reader = new BufferedReader(new FileReader(fileName));
+
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		String[] fields = line.trim().split("\\s+");
+		if (fields.length < 3 || !fields[0].equals("ref"))
+		    continue;
+
+		try {
+		    long pid = Long.parseLong(fields[1]);
+		    long vpn = Long.parseLong(fields[2]);
+		    pages.add((pid << 32) | vpn);
+		    writes.add(fields.length > 3 && fields[3].equals("w"));
+		}
+		catch (NumberFormatException e) {
+		}
+	    }
+	}
+	finally {
+	    reader.close();
+	}
+    }
+
+    private static int distinctPages(long[] pages) {
+	HashMap<Long, Boolean> seen = new HashMap<Long, Boolean>();
+	for (long page : pages)
+	    seen.put(page, true);
+
+	return seen.size();
+    }
+
+    private static String pad(String s, int width) {
+	StringBuffer buf = new StringBuffer();
+	for (int i=s.length(); i<width; i++)
+	    buf.append(' ');
+
+	return buf.append(s).toString();
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	// with room for every page, only the first touch of each faults
+	long[] pages = new long[200];
+	boolean[] writes = new boolean[pages.length];
+	for (int i=0; i<pages.length; i++)
+	    pages[i] = i % 5;
+
+	for (PageReplacementPolicy policy : builtinPolicies()) {
+	    PolicyEvaluator evaluator = new PolicyEvaluator(policy, 8);
+	    evaluator.replay(pages, writes);
+	    Lib.assertTrue(evaluator.getNumFaults() == 5);
+
+	    evaluator = new PolicyEvaluator(policy, 4);
+	    evaluator.replay(pages, writes);
+	    Lib.assertTrue(evaluator.getNumFaults() >= 5 &&
+			   evaluator.getNumFaults() <= pages.length);
+	    Lib.assertTrue(evaluator.getNumWritebacks() == 0);
+	}
+    }
+
+    private PageReplacementPolicy policy;
+
+    private long[] framePages;
+    private boolean[] used, dirty;
+    private HashMap<Long, Integer> residentPages = new HashMap<Long, Integer>();
+    private int numLoaded = 0;
+
+    private int numReferences = 0, numFaults = 0, numWritebacks = 0;
+}
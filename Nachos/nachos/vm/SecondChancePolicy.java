@@ -0,0 +1,75 @@
+package nachos.vm;
+
+/**
+ * The enhanced second-chance algorithm. Like the clock algorithm, but frames
+ * are ranked by their used and dirty bits together, and a clean page is
+ * preferred over a dirty one with the same used bit, since evicting it costs
+ * no write to swap.
+ *
+ * <p>
+ * Each round makes up to two sweeps of the hand. The first looks for an
+ * unused, clean frame and changes nothing. The second looks for an unused,
+ * dirty frame, clearing used bits as it goes. After two rounds every used
+ * bit has been cleared, so any evictable frame would have been found.
+ */
+public class SecondChancePolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new second-chance policy.
+     */
+    public SecondChancePolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	resident = new boolean[numFrames];
+	hand = 0;
+    }
+
+    public void pageLoaded(int frame, long page) {
+	resident[frame] = true;
+    }
+
+    public void pageRemoved(int frame, boolean evicted) {
+	resident[frame] = false;
+    }
+
+    public int chooseVictim(ReferenceBits bits) {
+	for (int round=0; round<2; round++) {
+	    int frame = sweep(bits, false);
+	    if (frame == -1)
+		frame = sweep(bits, true);
+	    if (frame != -1)
+		return frame;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Make one sweep of the hand, looking for an unused frame with the
+     * specified dirty bit. If <i>dirty</i> is <tt>true</tt>, clear the used
+     * bit of every frame passed over.
+     */
+    private int sweep(ReferenceBits bits, boolean dirty) {
+	for (int i=0; i<resident.length; i++) {
+	    int frame = hand;
+	    hand = (hand + 1) % resident.length;
+
+	    if (!resident[frame] || !bits.isEvictable(frame))
+		continue;
+
+	    if (bits.isUsed(frame)) {
+		if (dirty)
+		    bits.clearUsed(frame);
+		continue;
+	    }
+
+	    if (bits.isDirty(frame) == dirty)
+		return frame;
+	}
+
+	return -1;
+    }
+
+    private boolean[] resident;
+    private int hand;
+}
@@ -0,0 +1,136 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A read-only section of an executable, shared by every process running that
+ * executable, or a file mapped into memory by <tt>mmap()</tt>, shared by
+ * every process mapping the file. The first process to fault on a page of the
+ * segment loads it into a physical page; the others map the same physical
+ * page instead of loading their own copy.
+ *
+ * <p>
+ * The pages of a mapped file are read from, and written back to, the file
+ * itself, through a handle that the segment keeps open for as long as it is
+ * in use. They never go to swap.
+ *
+ * <p>
+ * A segment only records which of its pages are resident. The physical pages
+ * themselves belong to the processes mapping them, and are freed or evicted
+ * like any other, at which point the inverted page table removes them from
+ * the segment. The segment itself is kept in <tt>VMKernel</tt>'s cache for as
+ * long as some process is using it.
+ */
+public class SharedSegment {
+    /**
+     * Allocate a new segment with no pages resident.
+     *
+     * @param	key		the name of the segment in the cache.
+     * @param	numPages	the number of pages in the section.
+     */
+    SharedSegment(String key, int numPages) {
+	this.key = key;
+
+	frames = new int[numPages];
+	Arrays.fill(frames, -1);
+    }
+
+    /**
+     * Allocate a new segment for a mapped file, with no pages resident.
+     *
+     * @param	key	the name of the segment in the cache.
+     * @param	file	the file, which the segment closes when it is no
+     *			longer used.
+     * @param	length	the number of bytes of the file that are mapped.
+     */
+    SharedSegment(String key, OpenFile file, int length) {
+	this(key, Lib.divRoundUp(length, pageSize));
+
+	this.file = file;
+	this.length = length;
+    }
+
+    /**
+     * Return the physical page holding a page of this segment.
+     *
+     * @param	spn	the page number within the segment.
+     * @return	the physical page, or -1 if the page is not resident.
+     */
+    int getFrame(int spn) {
+	return frames[spn];
+    }
+
+    /**
+     * Record the physical page holding a page of this segment.
+     *
+     * @param	spn	the page number within the segment.
+     * @param	ppn	the physical page, or -1 if the page is no longer
+     *			resident.
+     */
+    void setFrame(int spn, int ppn) {
+	frames[spn] = ppn;
+    }
+
+    /**
+     * Return the number of pages in this segment.
+     *
+     * @return	the number of pages.
+     */
+    int getLength() {
+	return frames.length;
+    }
+
+    /**
+     * Return the file backing this segment.
+     *
+     * @return	the file, or <tt>null</tt> if this is a section of an
+     *		executable.
+     */
+    OpenFile getFile() {
+	return file;
+    }
+
+    /**
+     * Fill a physical page with a page of the mapped file. The part of the
+     * last page past the end of the file is zero-filled.
+     *
+     * @param	spn	the page number within the segment.
+     * @param	ppn	the physical page to fill.
+     */
+    void readPage(int spn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int amount = Math.min(pageSize, length - spn*pageSize);
+
+	Lib.strictReadFile(file, spn*pageSize, memory, ppn*pageSize, amount);
+	Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize, (byte) 0);
+    }
+
+    /**
+     * Write a physical page back to the mapped file. Only the part of the
+     * last page before the end of the file is written.
+     *
+     * @param	spn	the page number within the segment.
+     * @param	ppn	the physical page to write.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    boolean writePage(int spn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int amount = Math.min(pageSize, length - spn*pageSize);
+
+	return file.write(spn*pageSize, memory, ppn*pageSize, amount) == amount;
+    }
+
+    /** The name of this segment in the cache. */
+    final String key;
+    /** The number of processes using this segment. */
+    int users = 0;
+
+    private int[] frames;
+
+    private OpenFile file = null;
+    private int length;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,520 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Backing store for evicted pages, kept in a file on the kernel's file
+ * system.
+ *
+ * <p>
+ * The file is divided into page-sized <i>slots</i>, tracked with a
+ * <tt>PageAllocator</tt>. Pages that are evicted together can be given a
+ * cluster of consecutive slots, so that they are written with a single file
+ * operation, and are near each other when they are read back.
+ *
+ * <p>
+ * A slot can be shared by several processes, as when a forked child
+ * inherits its parent's swapped-out pages. Each slot has a reference count;
+ * <tt>allocate()</tt> takes the first reference, <tt>share()</tt> takes
+ * another, and the slot is only freed when every reference has been dropped.
+ *
+ * <p>
+ * In front of the file is an optional pool of compressed pages, held in
+ * kernel memory up to a fixed number of bytes. A page written to swap is
+ * compressed into the pool if it compresses well, and is only written to the
+ * file when it is the least recently used page in the pool and the pool is
+ * full. Reading a page that is in the pool needs no file I/O. The pool is
+ * transparent to callers: pages are named by slot either way.
+ *
+ * <p>
+ * A page being written back from the pool to the file is kept in memory
+ * until the write finishes, and the slot is not written to the file again
+ * in the meantime, so that the two writes cannot land out of order.
+ *
+ * <p>
+ * A <tt>SwapFile</tt> does no locking of its own. The caller must make sure
+ * that a slot is not freed or reused while it is being read or written.
+ */
+public class SwapFile {
+    /**
+     * Create a swap file. Any existing file with the same name is truncated.
+     *
+     * @param	name		the name of the file.
+     * @param	numSlots	the number of pages the file can hold.
+     */
+    public SwapFile(String name, int numSlots) {
+	this(name, numSlots, 0);
+    }
+
+    /**
+     * Create a swap file with a compressed pool in front of it.
+     *
+     * @param	name		the name of the file.
+     * @param	numSlots	the number of pages the file can hold.
+     * @param	poolSize	the number of bytes of compressed pages to keep
+     *				in memory, or 0 for no pool.
+     */
+    public SwapFile(String name, int numSlots, int poolSize) {
+	this.name = name;
+	this.poolSize = poolSize;
+
+	// swap has its own in-memory tier, so it goes around the buffer cache
+	fileSystem = (ThreadedKernel.bufferCache != null) ?
+	    ThreadedKernel.bufferCache.getFileSystem() :
+	    ThreadedKernel.fileSystem;
+
+	if (ThreadedKernel.disk != null) {
+	    // swap to the raw disk, using as much of it as is needed
+	    int sectorsPerPage = pageSize / ThreadedKernel.disk.getSectorSize();
+	    Lib.assertTrue(sectorsPerPage * ThreadedKernel.disk.getSectorSize()
+			   == pageSize, "disk sectors do not fit in a page");
+	    numSlots = Math.min(numSlots, ThreadedKernel.disk.getNumSectors() /
+				sectorsPerPage);
+	    file = ThreadedKernel.disk.openPartition(0, numSlots*sectorsPerPage);
+	}
+	else {
+	    file = fileSystem.open(name, true);
+	}
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+
+	slots = new PageAllocator(numSlots);
+	references = new int[numSlots];
+    }
+
+    /**
+     * Allocate a cluster of consecutive slots, each with one reference.
+     *
+     * @param	count	the number of slots to allocate.
+     * @return	the first slot of the cluster, or -1 if there is no free run
+     *		that long.
+     */
+    public int allocate(int count) {
+	int slot = (count == 1) ? slots.allocate() : slots.allocateContiguous(count);
+	for (int i=0; slot != -1 && i<count; i++)
+	    references[slot+i] = 1;
+
+	return slot;
+    }
+
+    /**
+     * Add a reference to an allocated slot.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(references[slot] > 0);
+	references[slot]++;
+    }
+
+    /**
+     * Test whether a slot has more than one reference.
+     *
+     * @param	slot	the slot.
+     * @return	<tt>true</tt> if the slot is shared.
+     */
+    public boolean isShared(int slot) {
+	return references[slot] > 1;
+    }
+
+    /**
+     * Drop a reference to a slot, and free it if it was the last.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(references[slot] > 0);
+	if (--references[slot] == 0) {
+	    removeFromPool(slot);
+	    slots.free(slot);
+	}
+    }
+
+    /**
+     * Read the page stored in a slot into physical memory.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    public void read(int slot, int ppn) {
+	read(slot, new int[] { ppn }, 0, 1);
+    }
+
+    /**
+     * Read a run of consecutive slots into physical memory. Pages in the
+     * compressed pool are decompressed; each run of the others is read with
+     * a single file operation.
+     *
+     * @param	slot	the first slot to read.
+     * @param	ppns	the physical pages to fill, in slot order.
+     * @param	offset	the index in <i>ppns</i> of the first page to fill.
+     * @param	count	the number of pages to read.
+     */
+    public void read(int slot, int[] ppns, int offset, int count) {
+	int run = 0;
+	for (int i=0; i<count; i++) {
+	    if (loadFromPool(slot+i, ppns[offset+i])) {
+		readFile(slot+i-run, ppns, offset+i-run, run);
+		run = 0;
+	    }
+	    else {
+		run++;
+	    }
+	}
+	readFile(slot+count-run, ppns, offset+count-run, run);
+    }
+
+    /**
+     * Write physical pages to a run of consecutive slots. Pages that
+     * compress well go to the compressed pool; each run of the others is
+     * written with a single file operation.
+     *
+     * @param	slot	the first slot to write.
+     * @param	ppns	the physical pages to write, in slot order.
+     * @param	offset	the index in <i>ppns</i> of the first page to write.
+     * @param	count	the number of pages to write.
+     */
+    public void write(int slot, int[] ppns, int offset, int count) {
+	int run = 0;
+	for (int i=0; i<count; i++) {
+	    if (storeInPool(slot+i, ppns[offset+i])) {
+		writeFile(slot+i-run, ppns, offset+i-run, run);
+		run = 0;
+	    }
+	    else {
+		run++;
+	    }
+	}
+	writeFile(slot+count-run, ppns, offset+count-run, run);
+
+	trimPool();
+    }
+
+    private void readFile(int slot, int[] ppns, int offset, int count) {
+	if (count == 0)
+	    return;
+
+	byte[] memory = Machine.processor().getMemory();
+	int amount;
+
+	if (count == 1) {
+	    amount = file.read(slot*pageSize, memory, ppns[offset]*pageSize,
+			       pageSize);
+	}
+	else {
+	    byte[] buf = new byte[count*pageSize];
+	    amount = file.read(slot*pageSize, buf, 0, buf.length);
+
+	    for (int i=0; i<count; i++)
+		System.arraycopy(buf, i*pageSize, memory,
+				 ppns[offset+i]*pageSize, pageSize);
+	}
+
+	Lib.assertTrue(amount == count*pageSize, "swap read failed");
+
+	numReads++;
+	numPagesRead += count;
+    }
+
+    private void writeFile(int slot, int[] ppns, int offset, int count) {
+	if (count == 0)
+	    return;
+
+	byte[] memory = Machine.processor().getMemory();
+	int amount;
+
+	if (count == 1) {
+	    amount = file.write(slot*pageSize, memory, ppns[offset]*pageSize,
+				pageSize);
+	}
+	else {
+	    byte[] buf = new byte[count*pageSize];
+	    for (int i=0; i<count; i++)
+		System.arraycopy(memory, ppns[offset+i]*pageSize,
+				 buf, i*pageSize, pageSize);
+
+	    amount = file.write(slot*pageSize, buf, 0, buf.length);
+	}
+
+	Lib.assertTrue(amount == count*pageSize, "swap write failed");
+
+	numWrites++;
+	numPagesWritten += count;
+    }
+
+    /**
+     * Fill a physical page from the compressed pool, or from a write-back
+     * still in progress.
+     *
+     * @return	<tt>true</tt> if the slot's page was in memory.
+     */
+    private boolean loadFromPool(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	byte[] data = pool.get(slot);
+	if (data != null) {
+	    inflater.reset();
+	    inflater.setInput(data);
+	    try {
+		Lib.assertTrue(inflater.inflate(memory, ppn*pageSize, pageSize)
+			       == pageSize, "compressed swap page corrupt");
+	    }
+	    catch (DataFormatException e) {
+		Lib.assertNotReached("compressed swap page corrupt");
+	    }
+
+	    numPoolHits++;
+	    return true;
+	}
+
+	data = writingBack.get(slot);
+	if (data != null) {
+	    System.arraycopy(data, 0, memory, ppn*pageSize, pageSize);
+	    numPoolHits++;
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Compress a physical page into the pool, replacing anything the pool
+     * held for the slot. A page that does not compress to at most
+     * <tt>maxCompressed</tt> bytes is left for the file, unless the slot is
+     * being written back, in which case it is kept uncompressed.
+     *
+     * @return	<tt>true</tt> if the page was stored in the pool.
+     */
+    private boolean storeInPool(int slot, int ppn) {
+	removeFromPool(slot);
+
+	if (poolSize == 0 && !writingBack.containsKey(slot))
+	    return false;
+
+	byte[] memory = Machine.processor().getMemory();
+
+	deflater.reset();
+	deflater.setInput(memory, ppn*pageSize, pageSize);
+	deflater.finish();
+	int length = deflater.deflate(compressBuffer);
+
+	if (!deflater.finished() || length > maxCompressed) {
+	    if (!writingBack.containsKey(slot))
+		return false;
+
+	    // store it with no compression at all
+	    deflater.reset();
+	    deflater.setLevel(Deflater.NO_COMPRESSION);
+	    deflater.setInput(memory, ppn*pageSize, pageSize);
+	    deflater.finish();
+	    length = deflater.deflate(compressBuffer);
+	    deflater.setLevel(Deflater.BEST_SPEED);
+	    Lib.assertTrue(deflater.finished());
+	}
+
+	byte[] data = new byte[length];
+	System.arraycopy(compressBuffer, 0, data, 0, length);
+
+	pool.put(slot, data);
+	poolBytes += length;
+	numPoolStores++;
+	return true;
+    }
+
+    private void removeFromPool(int slot) {
+	byte[] data = pool.remove(slot);
+	if (data != null)
+	    poolBytes -= data.length;
+    }
+
+    /**
+     * Write the least recently used pages in the pool back to the file until
+     * the pool fits in its budget. Pages already being written back are
+     * skipped.
+     */
+    private void trimPool() {
+	while (poolBytes > poolSize) {
+	    int slot = -1;
+	    for (Iterator<Integer> i = pool.keySet().iterator(); i.hasNext(); ) {
+		int candidate = i.next();
+		if (!writingBack.containsKey(candidate)) {
+		    slot = candidate;
+		    break;
+		}
+	    }
+	    if (slot == -1)
+		return;
+
+	    byte[] buf = new byte[pageSize];
+	    inflater.reset();
+	    inflater.setInput(pool.get(slot));
+	    try {
+		inflater.inflate(buf);
+	    }
+	    catch (DataFormatException e) {
+		Lib.assertNotReached("compressed swap page corrupt");
+	    }
+	    removeFromPool(slot);
+
+	    writingBack.put(slot, buf);
+	    int amount = file.write(slot*pageSize, buf, 0, pageSize);
+	    Lib.assertTrue(amount == pageSize, "swap write failed");
+	    writingBack.remove(slot);
+
+	    numWrites++;
+	    numPagesWritten++;
+	    numPoolWriteBacks++;
+	}
+    }
+
+    /**
+     * Return the number of free slots.
+     *
+     * @return	the number of free slots.
+     */
+    public int getNumFree() {
+	return slots.getNumFree();
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	Lib.debug(dbgVM, "swap: " + numReads + " reads (" + numPagesRead
+		  + " pages), " + numWrites + " writes (" + numPagesWritten
+		  + " pages)");
+	if (poolSize > 0)
+	    Lib.debug(dbgVM, "compressed swap: " + numPoolStores + " stores, "
+		      + numPoolHits + " hits, " + numPoolWriteBacks
+		      + " written back");
+
+	file.close();
+	if (ThreadedKernel.disk == null)
+	    fileSystem.remove(name);
+    }
+
+    /**
+     * Test that pages that compress well are kept in the pool and read back
+     * from it, that the others go to the file, and that a page can be read
+     * while the pool is writing it back.
+     */
+    public static void selfTest() {
+	final SwapFile swap = new SwapFile("swap.tst", 4, pageSize);
+	byte[] memory = Machine.processor().getMemory();
+
+	// borrow two physical pages, and put back what they held afterwards
+	VMKernel.memoryLock.acquire();
+	byte[] saved = new byte[2*pageSize];
+	System.arraycopy(memory, 0, saved, 0, saved.length);
+
+	final byte[][] pages = new byte[3][pageSize];
+	for (int i=0; i<pageSize; i++) {
+	    pages[0][i] = (byte) (i/64);
+	    pages[1][i] = (byte) (i%3);
+	}
+	new Random(0).nextBytes(pages[2]);
+
+	final int first = swap.allocate(3);
+	for (int i=0; i<3; i++) {
+	    System.arraycopy(pages[i], 0, memory, 0, pageSize);
+	    swap.write(first+i, new int[] { 0 }, 0, 1);
+	}
+	Lib.assertTrue(swap.pool.size() == 2 && swap.numWrites == 1);
+
+	// the two compressed pages are hits, even within a run
+	swap.read(first, new int[] { 0, 1, 0 }, 0, 3);
+	Lib.assertTrue(swap.numPoolHits == 2 && swap.numReads == 1);
+	Lib.assertTrue(samePage(memory, 1, pages[1]) &&
+		       samePage(memory, 0, pages[2]));
+
+	// read each page as it is being written back
+	final OpenFile file = swap.file;
+	final boolean[] checked = new boolean[1];
+	swap.file = new OpenFile(file.getFileSystem(), file.getName()) {
+		public int read(int pos, byte[] buf, int offset, int length) {
+		    return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+		    int slot = pos/pageSize;
+		    if (swap.writingBack.containsKey(slot)) {
+			int hits = swap.numPoolHits;
+			swap.read(slot, 1);
+			Lib.assertTrue(swap.numPoolHits == hits+1);
+			Lib.assertTrue(samePage(Machine.processor().getMemory(), 1,
+						pages[slot-first]));
+			checked[0] = true;
+		    }
+		    return file.write(pos, buf, offset, length);
+		}
+	    };
+
+	swap.poolSize = 0;
+	swap.trimPool();
+	Lib.assertTrue(checked[0] && swap.numPoolWriteBacks == 2);
+	Lib.assertTrue(swap.pool.isEmpty() && swap.writingBack.isEmpty());
+	swap.file = file;
+
+	for (int i=0; i<3; i++) {
+	    swap.read(first+i, 0);
+	    Lib.assertTrue(samePage(memory, 0, pages[i]));
+	}
+	Lib.assertTrue(swap.numReads == 4);
+
+	for (int i=0; i<3; i++)
+	    swap.free(first+i);
+	Lib.assertTrue(swap.getNumFree() == 4);
+	swap.close();
+
+	System.arraycopy(saved, 0, memory, 0, saved.length);
+	VMKernel.memoryLock.release();
+    }
+
+    private static boolean samePage(byte[] memory, int ppn, byte[] page) {
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[ppn*pageSize + i] != page[i])
+		return false;
+	}
+
+	return true;
+    }
+
+    private String name;
+    private FileSystem fileSystem;
+    private OpenFile file;
+    private PageAllocator slots;
+    private int[] references;
+
+    /** The most bytes of compressed pages to keep in memory. */
+    private int poolSize;
+    private int poolBytes = 0;
+    /** The compressed page in each slot held in memory, in LRU order. */
+    private LinkedHashMap<Integer, byte[]> pool =
+	new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    /** The pages being written back from the pool, by slot. */
+    private HashMap<Integer, byte[]> writingBack =
+	new HashMap<Integer, byte[]>();
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] compressBuffer = new byte[2*pageSize];
+
+    private int numPoolStores = 0, numPoolHits = 0, numPoolWriteBacks = 0;
+
+    private int numReads = 0, numPagesRead = 0;
+    private int numWrites = 0, numPagesWritten = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    /** The largest compressed page worth keeping in the pool. */
+    private static final int maxCompressed = pageSize*3/4;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,125 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * The 2Q algorithm of Johnson and Shasha, adapted to reference bits.
+ *
+ * <p>
+ * A page loaded for the first time goes into <i>A1in</i>, a FIFO queue
+ * holding about a quarter of the frames. When it is evicted from there, it is
+ * remembered (without its contents) in <i>A1out</i>. A page that is loaded
+ * again while remembered in <i>A1out</i> has proven it is reused, and goes
+ * into the main queue <i>Am</i>. Pages that are touched once, such as those of
+ * a sequential scan, therefore pass through <i>A1in</i> without displacing the
+ * working set in <i>Am</i>.
+ *
+ * <p>
+ * The kernel does not see individual references, so <i>Am</i> is kept in
+ * approximate LRU order with second chance: a frame at the head of <i>Am</i>
+ * whose used bit is set has the bit cleared and moves to the tail.
+ */
+public class TwoQueuePolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new 2Q policy.
+     */
+    public TwoQueuePolicy() {
+    }
+
+    public void initialize(int numFrames) {
+	pages = new long[numFrames];
+	inMain = new boolean[numFrames];
+
+	a1in = new LinkedList<Integer>();
+	am = new LinkedList<Integer>();
+	a1out = new LinkedHashSet<Long>();
+
+	maxIn = Math.max(1, numFrames/4);
+	maxOut = Math.max(1, numFrames/2);
+    }
+
+    public void pageLoaded(int frame, long page) {
+	pages[frame] = page;
+	inMain[frame] = a1out.remove(page);
+
+	if (inMain[frame])
+	    am.add(frame);
+	else
+	    a1in.add(frame);
+    }
+
+    public void pageRemoved(int frame, boolean evicted) {
+	if (inMain[frame]) {
+	    am.remove((Integer) frame);
+	}
+	else {
+	    a1in.remove((Integer) frame);
+
+	    if (evicted) {
+		a1out.add(pages[frame]);
+		if (a1out.size() > maxOut) {
+		    Iterator<Long> oldest = a1out.iterator();
+		    oldest.next();
+		    oldest.remove();
+		}
+	    }
+	}
+    }
+
+    public int chooseVictim(ReferenceBits bits) {
+	int victim = -1;
+
+	if (a1in.size() > maxIn || am.isEmpty())
+	    victim = chooseFromIn(bits);
+	if (victim == -1)
+	    victim = chooseFromMain(bits);
+	if (victim == -1)
+	    victim = chooseFromIn(bits);
+
+	return victim;
+    }
+
+    /**
+     * Return the oldest evictable frame in <i>A1in</i>, ignoring used bits.
+     */
+    private int chooseFromIn(ReferenceBits bits) {
+	for (int frame : a1in) {
+	    if (bits.isEvictable(frame))
+		return frame;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Sweep <i>Am</i> from its head, giving frames with their used bit set a
+     * second chance at the tail, until an unused evictable frame is found.
+     */
+    private int chooseFromMain(ReferenceBits bits) {
+	for (int i=0, n=2*am.size(); i<n; i++) {
+	    int frame = am.removeFirst();
+	    am.addLast(frame);
+
+	    if (!bits.isEvictable(frame))
+		continue;
+
+	    if (bits.isUsed(frame)) {
+		bits.clearUsed(frame);
+		continue;
+	    }
+
+	    return frame;
+	}
+
+	return -1;
+    }
+
+    private long[] pages;
+    private boolean[] inMain;
+
+    private LinkedList<Integer> a1in, am;
+    private LinkedHashSet<Long> a1out;
+    private int maxIn, maxOut;
+}
@@ -4,6 +4,10 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
+import nachos.vm.InvertedPageTable.Frame;
+import nachos.vm.InvertedPageTable.Mapping;
+
+import java.util.HashMap;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -21,13 +25,52 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	memoryLock = new Lock();
+
+	pageoutDone = new Condition2(memoryLock);
+	pageoutNeeded = new Condition2(memoryLock);
+
+	frames = new InvertedPageTable(Machine.processor().getNumPhysPages());
+
+	policy = (PageReplacementPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.replacementPolicy",
+			     "nachos.vm.ClockPolicy"));
+	policy.initialize(frames.getNumFrames());
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "nachos.swp"),
+			    Config.getInteger("VMKernel.swapPages", 1024),
+			    Config.getInteger("VMKernel.compressedSwapBytes",
+					      8*Processor.pageSize));
+
+	swapCluster = Config.getInteger("VMKernel.swapCluster", 4);
+	freeTarget = Config.getInteger("VMKernel.freeFrames",
+				       Math.max(1, frames.getNumFrames()/8));
+	maxFaultAhead = Math.max(1, Config.getInteger("VMKernel.maxFaultAhead", 8));
+	maxStackPages = Math.max(1, Config.getInteger("VMKernel.maxStackPages", 64));
+	maxHeapPages = Math.max(0, Config.getInteger("VMKernel.maxHeapPages", 256));
+
+	new KThread(new Runnable() {
+		public void run() { pageoutDaemon(); }
+	    }).setName("pageout").fork();
+
+	if (Config.getBoolean("VMKernel.mergePages", false)) {
+	    merger = new PageMerger(frames.getNumFrames(),
+				    Config.getInteger("VMKernel.mergeBudget", 4),
+				    Config.getInteger("VMKernel.mergeInterval",
+						      2000));
+	    merger.start();
+	}
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
+//	InvertedPageTable.selfTest();
+//	PageMerger.selfTest();
+//	SwapFile.selfTest();
     }
 
     /**
@@ -36,14 +79,828 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+	if (merger != null)
+	    merger.report();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page to hold the specified virtual page of a
+     * process, evicting another resident page if no page is free. The caller
+     * must hold <tt>memoryLock</tt>, which may be released while a modified
+     * page is written to swap. The page is returned pinned; the caller must
+     * fill it, validate its page table entry, and unpin it.
+     *
+     * @param	process	the process that will own the page.
+     * @param	entry	the process's (invalid) entry for the page.
+     * @return	the physical page number, or -1 if every resident page is
+     *		pinned or cannot be evicted.
+     */
+    static int allocateFrame(VMProcess process, TranslationEntry entry) {
+	int ppn = reserveFrame(false);
+	if (ppn != -1)
+	    mapFrame(ppn, process, entry);
+
+	return ppn;
+    }
+
+    /**
+     * Allocate a zero-filled physical page, as with <tt>allocateFrame()</tt>.
+     * A page cleared in advance by the page zeroer is used if there is one.
+     *
+     * @param	process	the process that will own the page.
+     * @param	entry	the process's (invalid) entry for the page.
+     * @return	the physical page number, or -1 if no page is available.
+     */
+    static int allocateZeroedFrame(VMProcess process, TranslationEntry entry) {
+	int ppn = reserveFrame(true);
+	if (ppn != -1)
+	    mapFrame(ppn, process, entry);
+
+	return ppn;
+    }
+
+    /**
+     * Take a physical page for the caller's own use, evicting another
+     * resident page if no page is free, as with <tt>allocateFrame()</tt>. The
+     * page is returned pinned and mapped by no process; the caller must map it
+     * with <tt>mapFrame()</tt> before unpinning it.
+     *
+     * @return	the physical page number, or -1 if every resident page is
+     *		pinned or cannot be evicted.
+     */
+    static int reserveFrame() {
+	return reserveFrame(false);
+    }
+
+    private static int reserveFrame(boolean zeroed) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn;
+	while (true) {
+	    ppn = zeroed ? getZeroedPage() : getPage();
+	    if (ppn == -1) {
+		ppn = evictFrame();
+		if (ppn != -1 && zeroed)
+		    zeroPage(ppn);
+	    }
+	    if (ppn != -1)
+		break;
+
+	    // pages being written out will be free soon
+	    if (!pageoutInProgress())
+		return -1;
+	    pageoutDone.sleep();
+	}
+
+	// let the page-out thread refill the pool before it runs dry
+	if (frameAllocator.getNumFree() < freeTarget)
+	    pageoutNeeded.wake();
+
+	frames.get(ppn).pinCount = 1;
+	return ppn;
+    }
+
+    /**
+     * Map a page of a process to a physical page. If the page is not free, it
+     * becomes shared with the processes already mapping it. The caller must
+     * hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page.
+     * @param	process	the process.
+     * @param	entry	the process's entry for the page.
+     */
+    static void mapFrame(int ppn, VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	boolean loaded = (frames.get(ppn).getOwner() == null);
+	frames.insert(ppn, process, entry);
+	if (loaded)
+	    policy.pageLoaded(ppn, process.getPageKey(entry.vpn));
+    }
+
+    /**
+     * Allocate a free physical page to hold a page that is being faulted in
+     * ahead of use, but only if doing so would not take the free pool below
+     * the page-out thread's target. Nothing is evicted. The caller must hold
+     * <tt>memoryLock</tt>, and the page is returned pinned, as with
+     * <tt>allocateFrame()</tt>.
+     *
+     * @param	process	the process that will own the page.
+     * @param	entry	the process's (invalid) entry for the page.
+     * @return	the physical page number, or -1 if there are no free pages to
+     *		spare.
+     */
+    static int allocateSpareFrame(VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	if (frameAllocator.getNumFree() <= freeTarget)
+	    return -1;
+
+	int ppn = getPage();
+	if (ppn == -1)
+	    return -1;
+
+	frames.get(ppn).pinCount = 1;
+	mapFrame(ppn, process, entry);
+
+	return ppn;
+    }
+
+    /**
+     * Unmap a resident page of a process, and return its physical page to the
+     * free pool unless other processes still share it. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	process	the process.
+     * @param	entry	the process's valid entry for the page.
+     */
+    static void releaseFrame(VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = entry.ppn;
+	if (frames.remove(ppn, process, entry.vpn)) {
+	    Lib.assertTrue(frames.get(ppn).pinCount == 0);
+
+	    policy.pageRemoved(ppn, false);
+	    deletePage(ppn);
+	}
+    }
+
+    /**
+     * Find the shared segment for a read-only section of an executable,
+     * creating it if no running process uses it, and add a user to it. The
+     * caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	key		identifies the executable's contents and the
+     *				section.
+     * @param	numPages	the number of pages in the section.
+     * @return	the segment.
+     */
+    static SharedSegment getSegment(String key, int numPages) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	SharedSegment segment = segments.get(key);
+	if (segment == null || segment.getLength() != numPages) {
+	    segment = new SharedSegment(key, numPages);
+	    segments.put(key, segment);
+	}
+
+	segment.users++;
+	return segment;
+    }
+
+    /**
+     * Find the shared segment for a file that is being mapped into memory,
+     * creating it if no process has the file mapped, and add a user to it.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	file	a new handle for the file. If the returned segment
+     *			does not use it, the caller must close it.
+     * @return	the segment.
+     */
+    static SharedSegment getFileSegment(OpenFile file) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	String key = "file:" + file.getName();
+	int length = file.length();
+
+	SharedSegment segment = segments.get(key);
+	if (segment == null ||
+	    segment.getLength() != Lib.divRoundUp(length, Processor.pageSize)) {
+	    segment = new SharedSegment(key, file, length);
+	    segments.put(key, segment);
+	}
+
+	segment.users++;
+	return segment;
+    }
+
+    /**
+     * Add a user to a shared segment, for a forked process. The caller must
+     * hold <tt>memoryLock</tt>.
+     *
+     * @param	segment	the segment.
+     */
+    static void shareSegment(SharedSegment segment) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(segment.users > 0);
+
+	segment.users++;
+    }
+
+    /**
+     * Remove a user from a shared segment, and drop the segment from the
+     * cache if it was the last. By then every page of the segment has been
+     * freed along with the users' address spaces. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	segment	the segment.
+     */
+    static void putSegment(SharedSegment segment) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(segment.users > 0);
+
+	if (--segment.users > 0)
+	    return;
+
+	if (segments.get(segment.key) == segment)
+	    segments.remove(segment.key);
+	if (segment.getFile() != null)
+	    segment.getFile().close();
+    }
+
+    /**
+     * Record that a physical page holds a page of a shared segment, so that
+     * other processes can map it. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	segment	the segment.
+     * @param	spn	the page number within the segment.
+     * @param	ppn	the physical page, which must already be mapped.
+     */
+    static void addSegmentPage(SharedSegment segment, int spn, int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame = frames.get(ppn);
+	Lib.assertTrue(frame.getOwner() != null && frame.segment == null);
+
+	frame.segment = segment;
+	frame.segmentPage = spn;
+	segment.setFrame(spn, ppn);
+    }
+
+    /**
+     * Write a resident page of a mapped file back to the file if any process
+     * has modified it, leaving it mapped. The caller must hold
+     * <tt>memoryLock</tt>, which is released during the write, and must have
+     * synced the current process's TLB. If the write fails, the page is
+     * marked modified again, so that it is not lost.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is clean or was written back.
+     */
+    static boolean flushFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame = frames.get(ppn);
+	Lib.assertTrue(frame.segment != null && frame.segment.getFile() != null);
+
+	if (!isDirty(frame))
+	    return true;
+
+	// a write made during the flush sets the bit again
+	for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame)
+	    m.entry.dirty = false;
+
+	pinFrame(ppn);
+	memoryLock.release();
+
+	boolean written = frame.segment.writePage(frame.segmentPage, ppn);
+
+	memoryLock.acquire();
+	unpinFrame(ppn);
+
+	if (!written) {
+	    Lib.debug(dbgVM, "could not write ppn " + ppn + " back to "
+		      + frame.segment.getFile().getName());
+	    for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame)
+		m.entry.dirty = true;
+	}
+
+	return written;
+    }
+
+    /**
+     * Test whether a resident page can be merged with an identical page: it
+     * must be a private or copy-on-write page, not part of a shared segment,
+     * and must not be pinned or being written out. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page can be merged.
+     */
+    static boolean isMergeable(int ppn) {
+	Frame frame = frames.get(ppn);
+	return frame.getOwner() != null && frame.pinCount == 0 &&
+	    !frame.pagingOut && frame.segment == null;
+    }
+
+    /**
+     * Move every mapping of a physical page to another page with the same
+     * contents, and free it. Both pages become copy-on-write in every
+     * process that maps them. The caller must hold <tt>memoryLock</tt>, and
+     * both pages must be mergeable.
+     *
+     * @param	ppn	the page to free.
+     * @param	target	the page to keep.
+     */
+    static void mergeFrame(int ppn, int target) {
+	Lib.assertTrue(isMergeable(ppn) && isMergeable(target));
+
+	for (Mapping m=frames.get(target).mappings; m!=null; m=m.nextInFrame)
+	    m.process.makeCopyOnWrite(m.entry);
+
+	Frame frame = frames.get(ppn);
+	while (frame.mappings != null) {
+	    Mapping m = frame.mappings;
+	    m.process.makeCopyOnWrite(m.entry);
+
+	    frames.remove(ppn, m.process, m.entry.vpn);
+	    m.entry.ppn = target;
+	    frames.insert(target, m.process, m.entry);
+	}
+
+	policy.pageRemoved(ppn, false);
+	deletePage(ppn);
+    }
+
+    /**
+     * Test whether a physical page is being written out. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is being written out.
+     */
+    static boolean isFramePagingOut(int ppn) {
+	return frames.get(ppn).pagingOut;
+    }
+
+    /**
+     * Test whether a physical page is mapped by more than one page. The
+     * caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    static boolean isShared(int ppn) {
+	return frames.get(ppn).isShared();
+    }
+
+    /**
+     * Prevent the specified physical page from being evicted until a matching
+     * call to <tt>unpinFrame()</tt>. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page to pin.
+     */
+    static void pinFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	frames.get(ppn).pinCount++;
+    }
+
+    /**
+     * Allow the specified physical page to be evicted again. The caller must
+     * hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page to unpin.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames.get(ppn).pinCount > 0);
+
+	frames.get(ppn).pinCount--;
+    }
+
+    /**
+     * Find the entry of a resident page, with a single probe of the inverted
+     * page table. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page.
+     * @return	the process's page table entry for the page, or <tt>null</tt>
+     *		if the page is not resident.
+     */
+    static TranslationEntry lookupPage(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Mapping mapping = frames.lookup(process, vpn);
+
+	// the frame may still be loading, or on its way out to swap
+	if (mapping == null || !mapping.entry.valid)
+	    return null;
+
+	return mapping.entry;
+    }
+
+    /**
+     * Test whether a page of the specified process is being written to swap.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page, or -1 to test for any page of
+     *			<i>process</i>.
+     * @return	<tt>true</tt> if such a page is being written out.
+     */
+    static boolean isPagingOut(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	if (vpn != -1) {
+	    Mapping mapping = frames.lookup(process, vpn);
+	    return mapping != null && frames.get(mapping.ppn).pagingOut;
+	}
+
+	for (int ppn=0; ppn<frames.getNumFrames(); ppn++) {
+	    Frame frame = frames.get(ppn);
+	    if (!frame.pagingOut)
+		continue;
+
+	    for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame) {
+		if (m.process == process)
+		    return true;
+	    }
+	}
+
+	return false;
+    }
+
+    private static boolean pageoutInProgress() {
+	for (int ppn=0; ppn<frames.getNumFrames(); ppn++) {
+	    if (frames.get(ppn).pagingOut)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Choose a resident page with the replacement policy, remove it from the
+     * address space of every process that maps it, and return its physical
+     * page number. A modified page is written to swap first, during which
+     * <tt>memoryLock</tt> is released. Returns -1 if the page had to be left
+     * resident.
+     */
+    private static int evictFrame() {
+	int ppn = chooseVictim();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "no page can be evicted");
+	    return -1;
+	}
+
+	if (evictIfClean(ppn)) {
+	    Lib.debug(dbgVM, "evicted ppn " + ppn);
+	    return ppn;
+	}
+
+	if (isMappedFilePage(ppn)) {
+	    if (!evictMappedFilePage(ppn))
+		return -1;
+	    return ppn;
+	}
+
+	int[] ppns = { ppn };
+	if (pageOut(ppns, 1) == 0)
+	    return -1;
+
+	return ppn;
+    }
+
+    /**
+     * Remove a resident page from every address space that maps it, if its
+     * contents can be recovered when it is next touched without writing it to
+     * swap. The caller must hold <tt>memoryLock</tt>, and must have synced the
+     * current process's TLB.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if it
+     *		has been modified.
+     */
+    private static boolean evictIfClean(int ppn) {
+	Frame frame = frames.get(ppn);
+	if (isDirty(frame))
+	    return false;
+
+	for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame)
+	    m.process.unmapPage(m.entry.vpn);
+
+	policy.pageRemoved(ppn, true);
+	frames.removeAll(ppn);
+	return true;
+    }
+
+    /**
+     * Test whether a physical page holds a page of a mapped file.
+     */
+    private static boolean isMappedFilePage(int ppn) {
+	SharedSegment segment = frames.get(ppn).segment;
+	return segment != null && segment.getFile() != null;
+    }
+
+    /**
+     * Write a modified page of a mapped file back to the file, and remove it
+     * from every address space that maps it. <tt>memoryLock</tt> is released
+     * during the write; meanwhile, the frame is marked as being written out,
+     * as in <tt>pageOut()</tt>. On success, the frame is owned by no process
+     * but is not in the free pool.
+     *
+     * <p>
+     * If the write fails, the page is mapped again, still modified, like a
+     * page that could not be given a swap slot. The failure is reported to
+     * the process when it next unmaps the file, which retries the write.
+     *
+     * @return	<tt>true</tt> if the page was written back and evicted.
+     */
+    private static boolean evictMappedFilePage(int ppn) {
+	Frame frame = frames.get(ppn);
+
+	for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame)
+	    m.process.unmapPage(m.entry.vpn);
+	frame.pagingOut = true;
+
+	Lib.debug(dbgVM, "writing ppn " + ppn + " back to "
+		  + frame.segment.getFile().getName());
+
+	memoryLock.release();
+	boolean written = frame.segment.writePage(frame.segmentPage, ppn);
+	memoryLock.acquire();
+
+	if (written) {
+	    policy.pageRemoved(ppn, true);
+	    frames.removeAll(ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "could not write ppn " + ppn + " back to "
+		      + frame.segment.getFile().getName());
+
+	    // used, so that the policy passes over it for now
+	    for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame) {
+		m.entry.valid = true;
+		m.entry.dirty = true;
+		m.entry.used = true;
+	    }
+	    frame.pagingOut = false;
+	}
+
+	pageoutDone.wakeAll();
+	return written;
+    }
+
+    /**
+     * Test whether any process has modified a resident page.
+     */
+    private static boolean isDirty(Frame frame) {
+	for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame) {
+	    if (m.entry.dirty)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Ask the replacement policy for a resident page to evict. The caller must
+     * hold <tt>memoryLock</tt>.
+     *
+     * @return	the physical page number of the victim, or -1 if every page
+     *		is free, pinned, or being written out.
+     */
+    private static int chooseVictim() {
+	// bring the current process's used and dirty bits up to date
+	UserProcess current = currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).syncTLB();
+
+	return policy.chooseVictim(referenceBits);
+    }
+
+    /**
+     * The inverted page table's view of the reference bits, for the
+     * replacement policy. Bits are read straight from the page table entries
+     * of the processes mapping each frame, without consulting them; a shared
+     * frame is used or dirty if any of its mappings is.
+     */
+    private static class FrameReferenceBits
+	implements PageReplacementPolicy.ReferenceBits {
+	public boolean isEvictable(int ppn) {
+	    Frame frame = frames.get(ppn);
+	    return frame.getOwner() != null && frame.pinCount == 0 &&
+		!frame.pagingOut;
+	}
+
+	public boolean isUsed(int ppn) {
+	    for (Mapping m=frames.get(ppn).mappings; m!=null; m=m.nextInFrame) {
+		if (m.entry.used)
+		    return true;
+	    }
+
+	    return false;
+	}
+
+	public void clearUsed(int ppn) {
+	    for (Mapping m=frames.get(ppn).mappings; m!=null; m=m.nextInFrame)
+		m.process.clearUsed(m.entry);
+	}
+
+	public boolean isDirty(int ppn) {
+	    return VMKernel.isDirty(frames.get(ppn));
+	}
+    }
+
+    /**
+     * Write modified resident pages to swap and remove them from the address
+     * spaces that map them. Pages that do not yet have a swap slot of their
+     * own are given a cluster of consecutive slots, and pages in consecutive
+     * slots are written together. Every process mapping a shared page is
+     * given the page's slot. <tt>memoryLock</tt> is released during the writes;
+     * meanwhile, each frame is marked as being written out, and a process
+     * that faults on one of the pages waits for <tt>pageoutDone</tt>.
+     *
+     * <p>
+     * On return, the frames that were written out are owned by no process but
+     * are not in the free pool, and are moved to the front of <i>ppns</i>.
+     * Pages that could not be given a slot are left resident.
+     *
+     * @param	ppns	the physical pages to write out.
+     * @param	count	the number of elements of <i>ppns</i> to use.
+     * @return	the number of pages written out.
+     */
+    private static int pageOut(int[] ppns, int count) {
+	int[] slots = new int[count];
+	int unslotted = 0;
+	for (int i=0; i<count; i++) {
+	    Frame frame = frames.get(ppns[i]);
+	    slots[i] = frame.getOwner().getSwapSlot(frame.getEntry().vpn);
+
+	    // other processes still need the contents of a shared slot
+	    if (slots[i] != -1 && swap.isShared(slots[i]))
+		slots[i] = -1;
+
+	    if (slots[i] == -1)
+		unslotted++;
+	}
+
+	// give new pages a cluster, or failing that, whatever slots are left
+	int cluster = (unslotted > 0) ? swap.allocate(unslotted) : -1;
+
+	int n = 0;
+	for (int i=0; i<count; i++) {
+	    Frame frame = frames.get(ppns[i]);
+	    int slot = slots[i];
+	    boolean taken = (slot != -1);
+	    if (slot == -1) {
+		slot = (cluster != -1) ? cluster++ : swap.allocate(1);
+		if (slot == -1) {
+		    frame.pagingOut = false;
+		    continue;
+		}
+	    }
+
+	    for (Mapping m=frame.mappings; m!=null; m=m.nextInFrame) {
+		if (m.process.getSwapSlot(m.entry.vpn) != slot) {
+		    // the first mapping takes the reference from allocate()
+		    if (taken)
+			swap.share(slot);
+		    taken = true;
+		    m.process.setSwapSlot(m.entry.vpn, slot);
+		}
+
+		m.process.unmapPage(m.entry.vpn);
+	    }
+	    frame.pagingOut = true;
+
+	    ppns[n] = ppns[i];
+	    slots[n] = slot;
+	    n++;
+	}
+
+	if (n == 0) {
+	    Lib.debug(dbgVM, "swap is full");
+	    return 0;
+	}
+
+	sortBySlot(ppns, slots, n);
+
+	memoryLock.release();
+
+	for (int i=0, run; i<n; i+=run) {
+	    for (run=1; i+run < n && slots[i+run] == slots[i]+run; run++)
+		;
+	    Lib.debug(dbgVM, "writing " + run + " pages to slot " + slots[i]);
+	    swap.write(slots[i], ppns, i, run);
+	}
+
+	memoryLock.acquire();
+
+	for (int i=0; i<n; i++) {
+	    policy.pageRemoved(ppns[i], true);
+	    frames.removeAll(ppns[i]);
+	}
+
+	pageoutDone.wakeAll();
+	return n;
+    }
+
+    /**
+     * Sort the first <i>count</i> elements of <i>ppns</i> and <i>slots</i>
+     * together, in slot order. Batches are small, so insertion sort is used.
+     */
+    private static void sortBySlot(int[] ppns, int[] slots, int count) {
+	for (int i=1; i<count; i++) {
+	    int ppn = ppns[i], slot = slots[i], j;
+	    for (j=i; j>0 && slots[j-1] > slot; j--) {
+		ppns[j] = ppns[j-1];
+		slots[j] = slots[j-1];
+	    }
+	    ppns[j] = ppn;
+	    slots[j] = slot;
+	}
+    }
+
+    /**
+     * The body of the page-out thread. Whenever the number of free physical
+     * pages drops below <tt>freeTarget</tt>, evicts pages chosen by the
+     * replacement policy until twice that many are free, so that a page fault
+     * can usually be satisfied without waiting for a write to swap. Modified
+     * pages are written out in batches of up to <tt>swapCluster</tt> pages.
+     */
+    private static void pageoutDaemon() {
+	int[] batch = new int[swapCluster];
+
+	memoryLock.acquire();
+
+	while (true) {
+	    while (frameAllocator.getNumFree() >= freeTarget)
+		pageoutNeeded.sleep();
+
+	    int needed = 2*freeTarget - frameAllocator.getNumFree();
+	    int freed = 0, count = 0;
+
+	    while (freed + count < needed && count < batch.length) {
+		int ppn = chooseVictim();
+		if (ppn == -1)
+		    break;
+
+		if (evictIfClean(ppn)) {
+		    deletePage(ppn);
+		    freed++;
+		}
+		else if (isMappedFilePage(ppn)) {
+		    // the file cannot be written now; try again later
+		    if (!evictMappedFilePage(ppn))
+			break;
+		    deletePage(ppn);
+		    freed++;
+		}
+		else {
+		    // keep the policy from choosing it again for this batch
+		    frames.get(ppn).pagingOut = true;
+		    batch[count++] = ppn;
+		}
+	    }
+
+	    if (count > 0) {
+		int written = pageOut(batch, count);
+		for (int i=0; i<written; i++)
+		    deletePage(batch[i]);
+		freed += written;
+	    }
+
+	    // nothing can be evicted now; try again after the next allocation
+	    if (freed == 0)
+		pageoutNeeded.sleep();
+	}
+    }
+
+    /** Guards the inverted page table and every VM process's page table. */
+    static Lock memoryLock;
+    /** Signalled whenever a batch of pages has been written to swap. */
+    static Condition2 pageoutDone;
+    /** Wakes the page-out thread when free pages run low. */
+    private static Condition2 pageoutNeeded;
+
+    /** Backing store for modified pages that have been evicted. */
+    static SwapFile swap;
+
+    /** The processes and pages mapping every physical page. */
+    private static InvertedPageTable frames;
+    /** The read-only sections and mapped files in use. */
+    private static HashMap<String, SharedSegment> segments =
+	new HashMap<String, SharedSegment>();
+
+    /** Merges identical pages, if <tt>VMKernel.mergePages</tt> is set. */
+    private static PageMerger merger = null;
+
+    /** Chooses the pages to evict; see <tt>VMKernel.replacementPolicy</tt>. */
+    private static PageReplacementPolicy policy;
+    private static FrameReferenceBits referenceBits = new FrameReferenceBits();
+
+    /** The number of free pages the page-out thread tries to maintain. */
+    private static int freeTarget;
+    /** The largest number of pages the page-out thread writes at once. */
+    private static int swapCluster;
+    /** The largest number of pages a single page fault reads in. */
+    static int maxFaultAhead;
+    /** The largest number of pages a process's stack can grow to. */
+    static int maxStackPages;
+    /** The largest number of pages a process's heap can grow to. */
+    static int maxHeapPages;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,50 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical memory is allocated when a program is loaded. Instead, every
+ * page of its address space starts out invalid, and is filled the first time
+ * it is touched: COFF pages are read with <tt>CoffSection.loadPage()</tt>,
+ * and stack, heap and argument pages are zero-filled. A page that has not been
+ * modified since it was filled can be evicted at any time, since it can be
+ * filled again the same way. A modified page is written to
+ * <tt>VMKernel.swap</tt> when it is evicted, and is read back from there
+ * from then on.
+ *
+ * <p>
+ * A forked child shares its parent's physical pages and swap slots instead
+ * of copying them. Every writable page is marked read-only and
+ * <i>copy-on-write</i> in both processes, and is only copied when one of
+ * them writes to it and takes a read-only exception.
+ *
+ * <p>
+ * When <tt>VMKernel.mergePages</tt> is set, pages with identical contents
+ * are merged by a <tt>PageMerger</tt> into a single copy-on-write page.
+ *
+ * <p>
+ * Read-only sections are shared between all processes running the same
+ * executable, through <tt>SharedSegment</tt>s kept by the kernel: a page
+ * another process has already loaded is mapped rather than loaded again.
+ * <p>
+ * The stack starts out as a single page, and grows down one fault at a time
+ * to at most <tt>VMKernel.maxStackPages</tt> pages. Below it is room for a
+ * heap of up to <tt>VMKernel.maxHeapPages</tt> pages, which starts just past
+ * the executable and is extended with <tt>sbrk()</tt>. Neither uses any
+ * physical memory until it is touched.
+ *
+ * <p>
+ * Files mapped with <tt>mmap()</tt> are shared the same way between every
+ * process mapping the same file, but their pages are read from and written
+ * back to the file instead of swap.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,40 +56,1150 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	savedTLB = new int[Machine.processor().getTLBSize()];
+	Arrays.fill(savedTLB, -1);
+    }
+
+    /**
+     * Allocate a process for a self test, which is never run. It is given a
+     * negative process ID, so that the first real process is still the root.
+     *
+     * @return	a new process.
+     */
+    static VMProcess newTestProcess() {
+	VMProcess process = new VMProcess();
+
+	counter--;
+	process.processID = -(++numTestProcesses);
+
+	return process;
     }
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Copies the TLB's used and dirty
+     * bits into the page table, remembers which pages the TLB held, and
+     * flushes the TLB.
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB();
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    savedTLB[i] = tlbEntry.valid ? tlbEntry.vpn : -1;
+	    processor.writeTLBEntry(i, invalidEntry);
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. Reloads the TLB with the pages it held
+     * when this process was switched out, as long as they are still resident.
+     * Otherwise, a process switched out after every TLB miss could lose each
+     * entry before using it, and never get two pages into the TLB at once.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry =
+		(savedTLB[i] == -1) ? null : pageTable.get(savedTLB[i]);
+	    if (entry != null && entry.valid)
+		processor.writeTLBEntry(i, entry);
+	}
+    }
+
+    /**
+     * Map <i>desiredPages</i> pages starting at <i>vpn</i> without allocating
+     * physical memory for them. Each page is filled when first touched.
+     */
+    protected boolean didAllocate(int vpn, int desiredPages, boolean readOnly) {
+	if (vpn < 0 || vpn + desiredPages > Processor.maxPages)
+	    return false;
+
+	for (int i=0; i<desiredPages; i++)
+	    pageTable.set(vpn + i, new TranslationEntry(vpn + i, 0, false,
+							readOnly, false, false));
+	numPages += desiredPages;
+
+	return true;
+    }
+
+    /**
+     * Reserve address space for the heap and stack past the sections, and map
+     * the top page of the stack. The rest of the stack is mapped as it grows
+     * into it, and the heap as <tt>sbrk()</tt> extends it.
+     */
+    protected boolean allocateStack() {
+	heapStart = numPages;
+	heapBreak = heapStart*pageSize;
+	stackLimit = heapStart + VMKernel.maxHeapPages;
+	stackBottom = stackLimit + VMKernel.maxStackPages - 1;
+
+	// the unmapped pages below the stack count towards the address space
+	numPages = stackBottom;
+	return didAllocate(stackBottom, 1, false);
+    }
+
+    /**
+     * Handle the <tt>sbrk()</tt> system call. The pages the heap grows into
+     * are zero-filled when first touched; the pages it shrinks out of are
+     * freed. The heap cannot grow into pages that are already mapped, such
+     * as a file mapped into the space reserved for the heap.
+     *
+     * @return	the previous end of the heap, or -1 on error.
+     */
+    protected int handleSbrk(int increment) {
+	long newBreak = (long) heapBreak + increment;
+	if (newBreak < heapStart*pageSize || newBreak > stackLimit*pageSize)
+	    return -1;
+
+	int oldBreak = heapBreak;
+	int oldEnd = Lib.divRoundUp(oldBreak, pageSize);
+	int newEnd = Lib.divRoundUp((int) newBreak, pageSize);
+
+	VMKernel.memoryLock.acquire();
+
+	if (!isUnmapped(oldEnd, newEnd)) {
+	    VMKernel.memoryLock.release();
+	    Lib.debug(dbgVM, "sbrk: heap would overlap a mapping");
+	    return -1;
+	}
+
+	for (int vpn=oldEnd; vpn<newEnd; vpn++)
+	    pageTable.set(vpn, new TranslationEntry(vpn, 0, false, false,
+						    false, false));
+
+	if (newEnd < oldEnd) {
+	    syncTLB();
+	    for (int vpn=newEnd; vpn<oldEnd; vpn++)
+		removePage(vpn);
+	}
+
+	heapBreak = (int) newBreak;
+
+	VMKernel.memoryLock.release();
+	return oldBreak;
+    }
+
+    /**
+     * Map the stack down to the specified page, if it is in the space
+     * reserved for the stack, no more than a page below the stack pointer,
+     * and the stack would not grow over a mapped file. The new pages are
+     * zero-filled when first touched. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the unmapped page that was accessed.
+     * @return	the page's new entry, or <tt>null</tt> if the access was not
+     *		to the stack.
+     */
+    private TranslationEntry growStack(int vpn) {
+	int sp = Machine.processor().readRegister(Processor.regSP);
+	if (vpn < stackLimit || vpn >= stackBottom ||
+	    vpn < Processor.pageFromAddress(sp) - 1)
+	    return null;
+
+	if (!isUnmapped(vpn, stackBottom)) {
+	    Lib.debug(dbgVM, "stack would overlap a mapping at vpn " + vpn);
+	    return null;
+	}
+
+	Lib.debug(dbgVM, "growing stack from vpn " + stackBottom + " to "
+		  + vpn);
+
+	for (; stackBottom > vpn; stackBottom--)
+	    pageTable.set(stackBottom - 1,
+			  new TranslationEntry(stackBottom - 1, 0, false,
+					       false, false, false));
+
+	return pageTable.get(vpn);
+    }
+
+    /**
+     * Test whether every page in a range is unmapped. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	firstVPN	the first page of the range.
+     * @param	endVPN		the page after the last page of the range.
+     * @return	<tt>true</tt> if no page in the range is mapped.
+     */
+    private boolean isUnmapped(int firstVPN, int endVPN) {
+	for (int vpn=firstVPN; vpn<endVPN; vpn++) {
+	    if (pageTable.get(vpn) != null)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Remove a page from the address space, freeing its physical page unless
+     * another process shares it, and its swap slot. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>, and must have synced the TLB.
+     *
+     * @param	vpn	the mapped page to remove.
+     */
+    private void removePage(int vpn) {
+	// the page may be on its way out
+	while (VMKernel.isPagingOut(this, vpn))
+	    VMKernel.pageoutDone.sleep();
+
+	TranslationEntry entry = pageTable.get(vpn);
+	if (entry.valid) {
+	    unmapPage(vpn);
+	    VMKernel.releaseFrame(this, entry);
+	}
+	pageTable.remove(vpn);
+
+	Integer slot = swapSlots.remove(vpn);
+	if (slot != null)
+	    VMKernel.swap.free(slot);
+	cowPages.remove(vpn);
+    }
+
+    /**
+     * Free every resident page of this process and unmap its address space.
+     */
+    protected void releasePages() {
+	VMKernel.memoryLock.acquire();
+
+	// the slots being written cannot be freed until the writes finish
+	while (VMKernel.isPagingOut(this, -1))
+	    VMKernel.pageoutDone.sleep();
+
+	for (TranslationEntry entry : pageTable) {
+	    if (entry.valid)
+		VMKernel.releaseFrame(this, entry);
+	}
+	pageTable.clear();
+	numPages = 0;
+	cowPages.clear();
+
+	for (int slot : swapSlots.values())
+	    VMKernel.swap.free(slot);
+	swapSlots.clear();
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Handle the <tt>mmap()</tt> system call. Map the file referred to by
+     * <i>fileDescriptor</i> into the address space starting at <i>vaddr</i>,
+     * which must be page-aligned, with every page of the range unmapped. No
+     * pages are read until they are touched.
+     *
+     * @return	the length of the file, or -1 on error.
+     */
+    protected int handleMmap(int fileDescriptor, int vaddr) {
+	if (fileDescriptor < 2 || fileDescriptor >= fileList.length ||
+	    fileList[fileDescriptor] == null || isMapped(fileDescriptor) ||
+	    vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+	    return -1;
+
+	// the mapping keeps its own handle, which outlives the descriptor
+	OpenFile file =
+	    ThreadedKernel.fileSystem.open(fileList[fileDescriptor].getName(),
+					   false);
+	if (file == null)
+	    return -1;
+
+	int length = file.length();
+	int firstVPN = Processor.pageFromAddress(vaddr);
+	int count = Lib.divRoundUp(length, pageSize);
+
+	VMKernel.memoryLock.acquire();
+
+	boolean free = (firstVPN + count <= Processor.maxPages &&
+			isUnmapped(firstVPN, firstVPN + count));
+
+	if (!free) {
+	    VMKernel.memoryLock.release();
+	    file.close();
+	    Lib.debug(dbgVM, "mmap: address range in use");
+	    return -1;
+	}
+
+	MappedFile map = new MappedFile();
+	map.fileDescriptor = fileDescriptor;
+	map.firstVPN = firstVPN;
+	map.numPages = count;
+	map.segment = VMKernel.getFileSegment(file);
+	mappedFiles.add(map);
+
+	for (int i=0; i<count; i++)
+	    pageTable.set(firstVPN + i, new TranslationEntry(firstVPN + i, 0,
+							     false, false,
+							     false, false));
+
+	VMKernel.memoryLock.release();
+
+	if (map.segment.getFile() != file)
+	    file.close();
+
+	Lib.debug(dbgVM, "mapped " + file.getName() + " at vpn " + firstVPN);
+	return length;
+    }
+
+    protected boolean isMapped(int fileDescriptor) {
+	return getMappedFile(fileDescriptor) != null;
+    }
+
+    /**
+     * Remove the mapping of a file descriptor from the address space. Each
+     * resident page is written back to the file if it has been modified, and
+     * then freed unless another process still maps it. If a page cannot be
+     * written back, the whole mapping is left in place.
+     *
+     * @return	<tt>true</tt> if the mapping was removed.
+     */
+    protected boolean unmapFile(int fileDescriptor) {
+	return unmapFile(getMappedFile(fileDescriptor), false);
+    }
+
+    /**
+     * Write back and remove a mapping.
+     *
+     * @param	map	the mapping to remove.
+     * @param	discard	<tt>true</tt> to remove the mapping even if some of its
+     *			pages could not be written back, losing the changes.
+     * @return	<tt>true</tt> if every modified page was written back.
+     */
+    private boolean unmapFile(MappedFile map, boolean discard) {
+	VMKernel.memoryLock.acquire();
+
+	if (isCurrent())
+	    syncTLB();
+
+	boolean flushed = true;
+	for (int i=0; i<map.numPages; i++) {
+	    int vpn = map.firstVPN + i;
+
+	    // the page may be on its way back to the file already
+	    while (VMKernel.isPagingOut(this, vpn))
+		VMKernel.pageoutDone.sleep();
+
+	    TranslationEntry entry = pageTable.get(vpn);
+	    if (entry.valid && !VMKernel.flushFrame(entry.ppn))
+		flushed = false;
+	}
+
+	if (!flushed && !discard) {
+	    VMKernel.memoryLock.release();
+	    return false;
+	}
+
+	if (!flushed) {
+	    Lib.debug(dbgVM, "discarding changes to "
+		      + map.segment.getFile().getName());
+	}
+
+	for (int i=0; i<map.numPages; i++)
+	    removePage(map.firstVPN + i);
+
+	mappedFiles.remove(map);
+	VMKernel.putSegment(map.segment);
+
+	VMKernel.memoryLock.release();
+	return flushed;
+    }
+
+    /**
+     * Return the mapping of a file descriptor.
+     *
+     * @return	the mapping, or <tt>null</tt> if the descriptor is not mapped.
+     */
+    private MappedFile getMappedFile(int fileDescriptor) {
+	for (MappedFile map : mappedFiles) {
+	    if (map.fileDescriptor == fileDescriptor)
+		return map;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the mapping containing the specified page.
+     *
+     * @return	the mapping, or <tt>null</tt> if the page is not part of a
+     *		mapped file.
+     */
+    private MappedFile getMappedFileAt(int vpn) {
+	for (MappedFile map : mappedFiles) {
+	    if (vpn >= map.firstVPN && vpn < map.firstVPN + map.numPages)
+		return map;
+	}
+
+	return null;
+    }
+
+    protected boolean load(String name, String[] args) {
+	executableId = identifyExecutable(name);
+	return super.load(name, args);
+    }
+
+    /**
+     * Return a string that identifies the contents of an executable: its
+     * name, its length and a checksum of its headers. An executable that is
+     * rebuilt while an old copy is running gets a new identity, as long as
+     * its length or the size or placement of any section changes.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	the identity of the executable, or just its name if its
+     *		headers cannot be read.
+     */
+    private static String identifyExecutable(String name) {
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null)
+	    return name;
+
+	int length = file.length();
+
+	// the file header, the a.out header and the section headers
+	byte[] header = new byte[coffHeaderLength];
+	String id = name;
+	if (file.read(0, header, 0, header.length) == header.length) {
+	    int numSections = Lib.bytesToUnsignedShort(header, 2);
+	    int headersLength = coffHeaderLength +
+		Lib.bytesToUnsignedShort(header, 16) +
+		numSections * CoffSection.headerLength;
+
+	    byte[] headers = new byte[Math.min(headersLength, length)];
+	    if (file.read(0, headers, 0, headers.length) == headers.length) {
+		CRC32 checksum = new CRC32();
+		checksum.update(headers);
+		id = name + ":" + length + ":" +
+		    Long.toHexString(checksum.getValue());
+	    }
+	}
+
+	file.close();
+	return id;
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged, and finds the shared segment for each read-only section.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// every page was mapped invalid by didAllocate(), and is loaded from
+	// the executable on first use
+	segments = new SharedSegment[coff.getNumSections()];
+
+	VMKernel.memoryLock.acquire();
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly())
+		segments[s] = VMKernel.getSegment(executableId + ":" + s,
+						  section.getLength());
+	}
+	VMKernel.memoryLock.release();
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	// write back mapped files before the address space goes away; any
+	// changes that cannot be written now are lost
+	while (!mappedFiles.isEmpty())
+	    unmapFile(mappedFiles.get(0), true);
+
 	super.unloadSections();
-    }    
+
+	VMKernel.memoryLock.acquire();
+	for (SharedSegment segment : segments) {
+	    if (segment != null)
+		VMKernel.putSegment(segment);
+	}
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Make the specified page resident, and pin it until the kernel is done
+     * copying to or from it.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean writing) {
+	VMKernel.memoryLock.acquire();
+
+	TranslationEntry entry = pageTable.get(vpn);
+	if (entry == null)
+	    entry = growStack(vpn);
+
+	if (entry == null ||
+	    (writing && entry.readOnly && !cowPages.contains(vpn)) ||
+	    (!entry.valid && !pageIn(entry)) ||
+	    (writing && entry.readOnly && !breakCopyOnWrite(entry))) {
+	    VMKernel.memoryLock.release();
+	    return null;
+	}
+
+	VMKernel.pinFrame(entry.ppn);
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	VMKernel.memoryLock.release();
+	return entry;
+    }
+
+    protected void unpinPage(TranslationEntry entry) {
+	VMKernel.memoryLock.acquire();
+	VMKernel.unpinFrame(entry.ppn);
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Fill a physical page with the contents of the specified page, and mark
+     * its entry valid. The page is read from swap if it has been written
+     * there, and otherwise gets its initial contents. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * <p>
+     * Up to <tt>faultWindow - 1</tt> following pages that can be read with the
+     * same operation (the rest of the same COFF section, or a run of
+     * consecutive swap slots) are faulted in too, as long as there are free
+     * physical pages to spare for them.
+     *
+     * @param	entry	the invalid page table entry to fill.
+     * @return	<tt>true</tt> if a physical page was available.
+     */
+    protected boolean pageIn(TranslationEntry entry) {
+	// the page may still be on its way out to swap
+	while (VMKernel.isPagingOut(this, entry.vpn))
+	    VMKernel.pageoutDone.sleep();
+
+	// a page of a mapped file stays if it cannot be written back
+	if (entry.valid)
+	    return true;
+
+	int vpn = entry.vpn;
+
+	MappedFile map = getMappedFileAt(vpn);
+	if (map != null)
+	    return pageInMappedFile(entry, map);
+
+	CoffSection section = getSection(vpn);
+	SharedSegment segment = getSegment(vpn);
+	int slot = getSwapSlot(vpn);
+	boolean zeroFill = (slot == -1 && section == null);
+	int ppn;
+
+	while (true) {
+	    // another process may have loaded this page already
+	    if (segment != null) {
+		int sharedPPN = segment.getFrame(vpn - section.getFirstVPN());
+		if (sharedPPN != -1) {
+		    mapSharedPage(entry, sharedPPN);
+		    return true;
+		}
+	    }
+
+	    ppn = zeroFill ? VMKernel.allocateZeroedFrame(this, entry) :
+		VMKernel.allocateFrame(this, entry);
+	    if (ppn == -1)
+		return false;
+
+	    // or while a page was being evicted to make room for it
+	    if (segment == null ||
+		segment.getFrame(vpn - section.getFirstVPN()) == -1)
+		break;
+
+	    discardFrame(entry, ppn);
+	}
+
+	TranslationEntry[] entries = new TranslationEntry[VMKernel.maxFaultAhead];
+	int[] ppns = new int[VMKernel.maxFaultAhead];
+	entries[0] = entry;
+	ppns[0] = ppn;
+
+	int count;
+
+	// only faults that read a file take part in the window; zero-filling
+	// is cheap either way
+	if (slot != -1 || section != null)
+	    updateFaultWindow(vpn);
+
+	if (slot != -1) {
+	    count = gatherCluster(entries, ppns, slot, null);
+	    faultAheadEnd = vpn + count;
+	    Lib.debug(dbgVM, "reading " + count + " pages at vpn " + vpn
+		      + " from slot " + slot);
+	    VMKernel.swap.read(slot, ppns, 0, count);
+	}
+	else if (section != null) {
+	    count = gatherCluster(entries, ppns, -1, section);
+	    faultAheadEnd = vpn + count;
+	    Lib.debug(dbgVM, "loading " + count + " pages at vpn " + vpn
+		      + " from " + section.getName());
+	    section.loadPages(vpn - section.getFirstVPN(), ppns, count);
+
+	    if (segment != null) {
+		for (int i=0; i<count; i++)
+		    VMKernel.addSegmentPage(segment,
+					    vpn + i - section.getFirstVPN(),
+					    ppns[i]);
+	    }
+	}
+	else {
+	    // allocateZeroedFrame() has cleared the page already
+	    count = 1;
+	    Lib.debug(dbgVM, "zero-filling vpn " + vpn);
+	}
+
+	for (int i=0; i<count; i++) {
+	    entries[i].ppn = ppns[i];
+	    entries[i].valid = true;
+	    entries[i].used = false;
+	    entries[i].dirty = false;
+
+	    VMKernel.unpinFrame(ppns[i]);
+	}
+
+	return true;
+    }
+
+    /**
+     * Fill a physical page with a page of a mapped file, or map the physical
+     * page already holding it. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	entry	the invalid page table entry to fill.
+     * @param	map	the mapping containing the page.
+     * @return	<tt>true</tt> if a physical page was available.
+     */
+    private boolean pageInMappedFile(TranslationEntry entry, MappedFile map) {
+	int spn = entry.vpn - map.firstVPN;
+	SharedSegment segment = map.segment;
+	int ppn;
+
+	while (true) {
+	    int sharedPPN = segment.getFrame(spn);
+	    if (sharedPPN != -1) {
+		// wait for a write back to the file to finish before reading
+		// the page again
+		if (VMKernel.isFramePagingOut(sharedPPN)) {
+		    VMKernel.pageoutDone.sleep();
+		    continue;
+		}
+
+		mapSharedPage(entry, sharedPPN);
+		return true;
+	    }
+
+	    ppn = VMKernel.allocateFrame(this, entry);
+	    if (ppn == -1)
+		return false;
+
+	    if (segment.getFrame(spn) == -1)
+		break;
+
+	    discardFrame(entry, ppn);
+	}
+
+	Lib.debug(dbgVM, "reading vpn " + entry.vpn + " from "
+		  + segment.getFile().getName());
+	segment.readPage(spn, ppn);
+	VMKernel.addSegmentPage(segment, spn, ppn);
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	VMKernel.unpinFrame(ppn);
+	return true;
+    }
+
+    /**
+     * Map a page to the physical page of a shared segment that already holds
+     * it.
+     */
+    private void mapSharedPage(TranslationEntry entry, int ppn) {
+	Lib.debug(dbgVM, "sharing vpn " + entry.vpn + " at ppn " + ppn);
+	VMKernel.mapFrame(ppn, this, entry);
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+    }
+
+    /**
+     * Give back a physical page allocated for a page that turned out to be
+     * resident in a shared segment already.
+     */
+    private void discardFrame(TranslationEntry entry, int ppn) {
+	entry.ppn = ppn;
+	VMKernel.unpinFrame(ppn);
+	VMKernel.releaseFrame(this, entry);
+    }
+
+    /**
+     * Grow the fault-ahead window when a fault continues a sequential stream,
+     * that is, when it is for the page just past those faulted in last time,
+     * and shrink it otherwise. The first fault keeps the initial window.
+     */
+    private void updateFaultWindow(int vpn) {
+	if (faultAheadEnd == -1)
+	    return;
+
+	if (vpn == faultAheadEnd)
+	    faultWindow = Math.min(faultWindow*2, VMKernel.maxFaultAhead);
+	else
+	    faultWindow = Math.max(faultWindow/2, 1);
+    }
+
+    /**
+     * Allocate frames for the pages following <tt>entries[0]</tt> that can be
+     * read along with it, stopping at the first page that cannot. If
+     * <i>section</i> is <tt>null</tt>, the pages must be in consecutive swap
+     * slots starting at <i>slot</i>; otherwise they must be in
+     * <i>section</i>, must never have been written to swap, and must not be
+     * resident in the section's shared segment.
+     *
+     * @return	the number of pages to read, including the first.
+     */
+    private int gatherCluster(TranslationEntry[] entries, int[] ppns,
+			      int slot, CoffSection section) {
+	int count = 1;
+	SharedSegment segment = getSegment(entries[0].vpn);
+
+	for (; count < faultWindow; count++) {
+	    int vpn = entries[0].vpn + count;
+
+	    TranslationEntry entry = pageTable.get(vpn);
+	    if (entry == null || entry.valid ||
+		VMKernel.isPagingOut(this, vpn))
+		break;
+
+	    if (section == null) {
+		if (getSwapSlot(vpn) != slot + count)
+		    break;
+	    }
+	    else {
+		if (vpn >= section.getFirstVPN() + section.getLength() ||
+		    getSwapSlot(vpn) != -1)
+		    break;
+
+		if (segment != null &&
+		    segment.getFrame(vpn - section.getFirstVPN()) != -1)
+		    break;
+	    }
+
+	    int ppn = VMKernel.allocateSpareFrame(this, entry);
+	    if (ppn == -1)
+		break;
+
+	    entries[count] = entry;
+	    ppns[count] = ppn;
+	}
+
+	return count;
+    }
+
+    /**
+     * Give a forked child this process's address space without copying it.
+     * The child maps the same physical pages and shares the same swap slots,
+     * and every writable page becomes copy-on-write in both processes.
+     */
+    protected boolean copyAddressSpace(UserProcess process) {
+	VMProcess child = (VMProcess) process;
+
+	VMKernel.memoryLock.acquire();
+
+	// a slot being written cannot be shared until the write finishes
+	while (VMKernel.isPagingOut(this, -1))
+	    VMKernel.pageoutDone.sleep();
+
+	syncTLB();
+
+	for (TranslationEntry entry : pageTable) {
+	    int vpn = entry.vpn;
+
+	    // mapped files stay shared and writable
+	    if (getMappedFileAt(vpn) == null &&
+		(!entry.readOnly || cowPages.contains(vpn))) {
+		entry.readOnly = true;
+		cowPages.add(vpn);
+		child.cowPages.add(vpn);
+	    }
+
+	    TranslationEntry copy = new TranslationEntry(entry);
+	    child.pageTable.set(vpn, copy);
+
+	    int slot = getSwapSlot(vpn);
+	    if (slot != -1) {
+		VMKernel.swap.share(slot);
+		child.swapSlots.put(vpn, slot);
+	    }
+
+	    if (entry.valid)
+		VMKernel.mapFrame(entry.ppn, child, copy);
+	}
+	child.numPages = numPages;
+	child.heapStart = heapStart;
+	child.heapBreak = heapBreak;
+	child.stackLimit = stackLimit;
+	child.stackBottom = stackBottom;
+
+	child.executableId = executableId;
+	child.segments = new SharedSegment[segments.length];
+	for (int s=0; s<segments.length; s++) {
+	    if (segments[s] != null) {
+		VMKernel.shareSegment(segments[s]);
+		child.segments[s] = segments[s];
+	    }
+	}
+
+	for (MappedFile map : mappedFiles) {
+	    MappedFile copy = new MappedFile();
+	    copy.fileDescriptor = map.fileDescriptor;
+	    copy.firstVPN = map.firstVPN;
+	    copy.numPages = map.numPages;
+	    copy.segment = map.segment;
+	    VMKernel.shareSegment(map.segment);
+	    child.mappedFiles.add(copy);
+	}
+
+	// writes to pages that just became read-only must trap
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalidEntry);
+
+	VMKernel.memoryLock.release();
+	return true;
+    }
+
+    /**
+     * Make a resident copy-on-write page writable by this process, copying it
+     * into a new physical page if another process still shares it. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>, which may be released
+     * while a physical page is found.
+     *
+     * @param	entry	the valid entry of a copy-on-write page.
+     * @return	<tt>true</tt> if successful, or <tt>false</tt> if no physical
+     *		page was available.
+     */
+    private boolean breakCopyOnWrite(TranslationEntry entry) {
+	Lib.assertTrue(entry.valid && cowPages.contains(entry.vpn));
+
+	int oldPPN = entry.ppn;
+
+	if (VMKernel.isShared(oldPPN)) {
+	    VMKernel.pinFrame(oldPPN);
+
+	    int ppn = VMKernel.reserveFrame();
+	    if (ppn == -1) {
+		VMKernel.unpinFrame(oldPPN);
+		return false;
+	    }
+
+	    Lib.debug(dbgVM, "copying vpn " + entry.vpn + " from ppn " + oldPPN
+		      + " to ppn " + ppn);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, oldPPN*pageSize, memory, ppn*pageSize,
+			     pageSize);
+
+	    VMKernel.unpinFrame(oldPPN);
+	    VMKernel.releaseFrame(this, entry);
+
+	    entry.ppn = ppn;
+	    VMKernel.mapFrame(ppn, this, entry);
+	    VMKernel.unpinFrame(ppn);
+	}
+
+	cowPages.remove(entry.vpn);
+	entry.readOnly = false;
+	entry.used = true;
+	entry.dirty = true;
+
+	// replace any stale read-only translation
+	if (isCurrent()) {
+	    int i = findTLBEntry(entry.vpn);
+	    if (i != -1)
+		Machine.processor().writeTLBEntry(i, entry);
+	}
+
+	return true;
+    }
+
+    /**
+     * Make a resident page read-only until it is written, so that its
+     * physical page can be shared. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	entry	the valid entry of a writable or copy-on-write page.
+     */
+    void makeCopyOnWrite(TranslationEntry entry) {
+	if (entry.readOnly)
+	    return;
+
+	entry.readOnly = true;
+	cowPages.add(entry.vpn);
+
+	// writes must trap from now on
+	if (isCurrent()) {
+	    int i = findTLBEntry(entry.vpn);
+	    if (i != -1) {
+		TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+		entry.used |= tlbEntry.used;
+		entry.dirty |= tlbEntry.dirty;
+		Machine.processor().writeTLBEntry(i, invalidEntry);
+	    }
+	}
+    }
+
+    /**
+     * Handle a read-only exception. A write to a copy-on-write page gets the
+     * process its own writable copy, and the write is retried; any other
+     * write to a read-only page kills the process.
+     *
+     * @param	vaddr	the virtual address that was written.
+     */
+    protected void handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	VMKernel.memoryLock.acquire();
+
+	TranslationEntry entry = pageTable.get(vpn);
+	if (entry == null || !cowPages.contains(vpn) ||
+	    (!entry.valid && !pageIn(entry)) || !breakCopyOnWrite(entry)) {
+	    VMKernel.memoryLock.release();
+
+	    Lib.debug(dbgVM, (entry != null && cowPages.contains(vpn) ?
+			      "out of memory" : "write to read-only page")
+		      + " at vpn " + vpn);
+	    handleExit(-1);
+	    return;
+	}
+
+	if (findTLBEntry(vpn) == -1)
+	    writeTLB(entry);
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Return the COFF section containing the specified page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section, or <tt>null</tt> if the page is not part of the
+     *		executable.
+     */
+    protected CoffSection getSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the shared segment containing the specified page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the segment, or <tt>null</tt> if the page is not part of a
+     *		read-only section.
+     */
+    private SharedSegment getSegment(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return segments[s];
+	}
+
+	return null;
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry into this
+     * process's page table. Must only be called while this process's
+     * translations are in the TLB.
+     */
+    void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid)
+		continue;
+
+	    TranslationEntry entry = pageTable.get(tlbEntry.vpn);
+	    if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+		entry.used |= tlbEntry.used;
+		entry.dirty |= tlbEntry.dirty;
+	    }
+	}
+    }
+
+    /**
+     * Clear the used bit of a resident page, in both the page table and the
+     * TLB. The caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	entry	the page's entry.
+     */
+    void clearUsed(TranslationEntry entry) {
+	entry.used = false;
+	if (isCurrent()) {
+	    int i = findTLBEntry(entry.vpn);
+	    if (i != -1) {
+		TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+		tlbEntry.used = false;
+		Machine.processor().writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Return a number identifying the specified page among the pages of all
+     * processes, for the replacement policy.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the page's identifier.
+     */
+    long getPageKey(int vpn) {
+	return ((long) processID << 32) | vpn;
+    }
+
+    /**
+     * Invalidate the page table entry and TLB entry of a resident page. The
+     * caller must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void unmapPage(int vpn) {
+	TranslationEntry entry = pageTable.get(vpn);
+
+	if (isCurrent()) {
+	    int i = findTLBEntry(vpn);
+	    if (i != -1)
+		Machine.processor().writeTLBEntry(i, invalidEntry);
+	}
+
+	entry.valid = false;
+	entry.dirty = false;
+    }
+
+    /**
+     * Return the swap slot holding the specified page. The caller must hold
+     * <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @return	the slot, or -1 if the page has never been written to swap.
+     */
+    int getSwapSlot(int vpn) {
+	Integer slot = swapSlots.get(vpn);
+	return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * Record the swap slot allocated to the specified page, taking over one
+     * reference to it, and drop the page's reference to any previous slot.
+     * The slot is kept until this process exits, so that the page can be
+     * evicted again without being rewritten if it is not modified. The caller
+     * must hold <tt>VMKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	Integer oldSlot = swapSlots.put(vpn, slot);
+	if (oldSlot != null && oldSlot != slot)
+	    VMKernel.swap.free(oldSlot);
+    }
+
+    /**
+     * Handle a TLB miss by loading the page's entry into the TLB. A resident
+     * page is found with a single probe of the kernel's inverted page table;
+     * otherwise the page is made resident first. An access to an unmapped
+     * page kills the process.
+     *
+     * @param	vaddr	the virtual address that missed.
+     */
+    protected void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	Lib.debug(dbgTrace, "ref " + processID + " " + vpn);
+
+	VMKernel.memoryLock.acquire();
+
+	TranslationEntry entry = VMKernel.lookupPage(this, vpn);
+	if (entry == null)
+	    entry = pageTable.get(vpn);
+	if (entry == null)
+	    entry = growStack(vpn);
+
+	if (entry == null || (!entry.valid && !pageIn(entry))) {
+	    VMKernel.memoryLock.release();
+
+	    Lib.debug(dbgVM, (entry == null ? "segmentation fault" :
+			      "out of memory") + " at vpn " + vpn);
+	    handleExit(-1);
+	    return;
+	}
+
+	writeTLB(entry);
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Load the specified entry into the TLB, replacing an invalid entry if
+     * there is one, or else the entries in round-robin order.
+     */
+    private void writeTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	int victim = findTLBEntry(-1);
+	if (victim == -1) {
+	    victim = tlbHand;
+	    tlbHand = (tlbHand + 1) % processor.getTLBSize();
+
+	    // keep the bits of the entry being replaced
+	    TranslationEntry old = processor.readTLBEntry(victim);
+	    TranslationEntry oldEntry = pageTable.get(old.vpn);
+	    if (oldEntry != null && oldEntry.valid && oldEntry.ppn == old.ppn) {
+		oldEntry.used |= old.used;
+		oldEntry.dirty |= old.dirty;
+	    }
+	}
+
+	processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Return the index of the valid TLB entry for the specified page, or of an
+     * invalid TLB entry if <i>vpn</i> is -1.
+     */
+    private int findTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (vpn == -1 ? !tlbEntry.valid :
+		(tlbEntry.valid && tlbEntry.vpn == vpn))
+		return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Test whether this process's translations are in the TLB.
+     */
+    private boolean isCurrent() {
+	return UserKernel.currentProcess() == this;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,13 +1213,77 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    private int tlbHand = 0;
+    /** The page held by each TLB entry when this process was switched out. */
+    private int[] savedTLB;
+
+    /** The number of pages to fault in at once. */
+    private int faultWindow = Math.max(VMKernel.maxFaultAhead/2, 1);
+    /** The page just past those faulted in by the last fault. */
+    private int faultAheadEnd = -1;
+
+    /** The first page of the heap. */
+    private int heapStart;
+    /** The address just past the end of the heap. */
+    private int heapBreak;
+    /** The lowest page the stack can grow to, just past the heap's limit. */
+    private int stackLimit;
+    /** The lowest page of the stack mapped so far. */
+    private int stackBottom;
+
+    /** Maps each page that has been written to swap to its slot. */
+    private HashMap<Integer, Integer> swapSlots = new HashMap<Integer, Integer>();
+    /**
+     * Identifies the contents of this process's executable, so that only
+     * processes running the same build of a program share its text.
+     */
+    private String executableId;
+    /** The shared segment of each read-only section, by section number. */
+    private SharedSegment[] segments;
+
+    /**
+     * A file mapped into the address space by <tt>mmap()</tt>.
+     */
+    private static class MappedFile {
+	/** The descriptor the file was mapped through. */
+	int fileDescriptor;
+	/** The first page of the mapping. */
+	int firstVPN;
+	/** The number of pages in the mapping. */
+	int numPages;
+	/** The pages of the file that are resident. */
+	SharedSegment segment;
+    }
+
+    /** The files mapped into this process's address space. */
+    private ArrayList<MappedFile> mappedFiles = new ArrayList<MappedFile>();
+
+    /** The pages that are read-only only until they are copied. */
+    private HashSet<Integer> cowPages = new HashSet<Integer>();
+
+    private static final TranslationEntry invalidEntry =
+	new TranslationEntry();
+
+    private static int numTestProcesses = 0;
+
     private static final int pageSize = Processor.pageSize;
+    /** The length of the file header at the start of a COFF executable. */
+    private static final int coffHeaderLength = 20;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
+    private static final char dbgTrace = 'r';
 }